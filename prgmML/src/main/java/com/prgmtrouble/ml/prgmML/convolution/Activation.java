@@ -1,13 +1,13 @@
 package com.prgmtrouble.ml.prgmML.convolution;
 
 import java.io.Serializable;
-
-import org.apache.commons.lang3.ArrayUtils;
+import java.util.Arrays;
 
 import com.prgmtrouble.ml.prgmML.generic.ListOfTypes;
 import com.prgmtrouble.ml.prgmML.generic.Parameter;
 import com.prgmtrouble.ml.prgmML.math.FunctionTypes;
 import com.prgmtrouble.ml.prgmML.math.Tensor;
+import com.prgmtrouble.ml.prgmML.math.Tensor.Layout;
 import com.prgmtrouble.ml.prgmML.math.Vector;
 
 /**
@@ -22,18 +22,66 @@ public class Activation implements Serializable, ConvolutionLayer {
 	/***/
 	private static final long serialVersionUID = 1L;
 	
+	/**
+	 * Algorithms which can run the convolution of an {@linkplain Activation}.
+	 * 1x1 convolutions always run as a single matrix multiply.
+	 * 
+	 * @author prgmTrouble
+	 */
+	public static enum Algorithm {
+		/**Direct loops over each filter and output position.*/
+		Direct,
+		/**
+		 * Unrolls the receptive fields of each image with {@linkplain Tensor#im2col(double[], int, int, int, int, int, int, int, double[])}
+		 * and multiplies them by all filters at once. Only used with the {@linkplain Layout#CHW} layout.
+		 */
+		Im2Col;
+	}
+	
 	/**Vector which holds the activation function.*/
 	private final Vector act;
 	/**Convolutional filters.*/
 	private Filter[] filters;
-	/**Output parameters.*/
-	private Parameter<ListOfTypes> out;
+	/**Input to the convolution, which is the output of the activation function.*/
+	private transient double[] in;
+	/**Number of images in the last batch, or zero if the last input was a single image.*/
+	private transient int batch;
+	/**Number of images the buffers were planned for, or zero if no plan was built.*/
+	private transient int planned;
+	/**Planned buffer for the output of the activation function.*/
+	private transient double[] actBuffer;
+	/**Planned buffer for the output of the convolution.*/
+	private transient double[] outBuffer;
+	/**Planned buffer for the gradient with respect to the input.*/
+	private transient double[] gradBuffer;
+	/**Planned buffer for the gradient with respect to one filter.*/
+	private transient double[] filterBuffer;
+	/**Weights of a 1x1 convolution packed into a matrix, indexed by filter, then by channel.*/
+	private transient double[] mix;
+	/**Version of each filter when {@linkplain #mix} was packed.*/
+	private transient int[] mixVersions;
+	/**Gradient with respect to {@linkplain #mix}.*/
+	private transient double[] mixGrad;
+	/**Unrolled receptive fields of one image.*/
+	private transient double[] col;
+	/**Gradient with respect to {@linkplain #col}.*/
+	private transient double[] colGrad;
+	/**Algorithm used for the convolution.*/
+	private Algorithm algorithm = Algorithm.Direct;
 	/**Learning rate.*/
 	private double lr = 0.1;
 	/**Forward hyperparameters.*/
 	private int[] fwd;
 	/**Backward hyperparameters.*/
 	private int[] bkwd;
+	/**Memory layout of the input and output tensors.*/
+	private Layout layout = Layout.CHW;
+	/**Distance between adjacent filter elements on the input map.*/
+	private int dilation = 1;
+	/**True if the bias of each filter is added to its output and learned.*/
+	private boolean biased = false;
+	/**Type for creating new {@linkplain Parameter} objects.*/
+	private static final ListOfTypes outputType = new ListOfTypes(new Class<?>[] {double[].class});
 	
 	/**
 	 * Creates a convolutional activation.
@@ -41,7 +89,15 @@ public class Activation implements Serializable, ConvolutionLayer {
 	 * @param filters Convolutional filters.
 	 * @param function Type of activation function.
 	 */
-	public Activation(Filter[] filters, FunctionTypes function) {act = new Vector(function); this.filters = filters;}
+	public Activation(Filter[] filters, FunctionTypes function) {this(filters, new Vector(function));}
+	
+	/**
+	 * Creates a convolutional activation with the given activation function vector.
+	 * 
+	 * @param filters Convolutional filters.
+	 * @param act Vector which holds the activation function.
+	 */
+	private Activation(Filter[] filters, Vector act) {this.act = act; this.filters = filters;}
 	
 	/**
 	 * Creates a convolutional activation with preset hyperparameters.
@@ -65,34 +121,222 @@ public class Activation implements Serializable, ConvolutionLayer {
 	}
 	
 	/**
-	 * Performs a convolution on an array of filters with constant dimensions.
+	 * Performs a convolution on an array of filters with constant dimensions
+	 * over a batch of input maps. Each filter is read once and applied to every
+	 * image in the batch before moving on to the next filter.
 	 * 
-	 * @param in Flattened input map. 
+	 * @param in Flattened input maps, indexed by image. 
+	 * @param n Number of images.
 	 * @param is Input map side length.
 	 * @param filters Filters.
 	 * @param fs Filter side length.
 	 * @param step Step size.
 	 * @param c Channels.
 	 * @param pad Padding.
-	 * @return The flattened output maps indexed by filter.
+	 * @param dil Distance between adjacent filter elements on the input map.
+	 * @param out Buffer for the flattened output maps.
+	 * @param hwc True if the maps and filters use the {@linkplain Layout#HWC} layout.
+	 * @return The flattened output maps indexed by image.
+	 */
+	private static double[] convolve(double[] in, int n, int is, Filter[] filters, int fs, int step, int c, int pad, int dil,
+									 double[] out, boolean hwc) {
+		final int fl  = filters.length,
+				  os  = (is + 2 * pad - (fs - 1) * dil - 1) / step + 1,
+				  osq = os * os,
+				  ims = c * is * is; //Size of one input image.
+		for(int k = 0; k < fl; k++) { //For each filter:
+			final double[] f = filters[k].get();
+			for(int b = 0; b < n; b++) //For each image:
+				if(hwc)
+					Tensor.convolveHWC(in, b * ims, is, c, f, 0, fs, c, step, pad, dil, out, b * fl * osq + k, fl);
+				else
+					Tensor.convolve(in, b * ims, is, f, 0, fs, c, step, pad, dil, out, (b * fl + k) * osq);
+		}
+		return out;
+	}
+	
+	/**
+	 * @param fs Filter side length.
+	 * @param step Step size.
+	 * @param pad Padding.
+	 * @return True if the convolution only mixes channels and can run as a matrix multiply.
+	 */
+	private static boolean pointwise(int fs, int step, int pad) {return fs == 1 && step == 1 && pad == 0;}
+	
+	/**
+	 * @param fs Filter side length.
+	 * @param step Step size.
+	 * @param pad Padding.
+	 * @return True if the convolution is unrolled with {@linkplain Algorithm#Im2Col}.
+	 */
+	private boolean unrolled(int fs, int step, int pad) {
+		return algorithm() == Algorithm.Im2Col && layout != Layout.HWC && !pointwise(fs, step, pad);
+	}
+	
+	/**
+	 * Packs the filters into the rows of {@linkplain #mix}. The matrix is
+	 * only repacked after a filter changes.
+	 * 
+	 * @param r Size of each filter.
+	 * @return The weight matrix, indexed by filter, then by filter element.
 	 */
-	private static double[][] convolve(double[] in, int is, Filter[] filters, int fs, int step, int c, int pad) {
+	private double[] weights(int r) {
 		final int fl = filters.length;
-		final double[][] out = new double[fl][];
-		for(int i = 0; i < fl; i++) {
-			final Filter f = filters[i];
-			out[i] = Tensor.convolve(in, is, f.get(), fs, c, step, pad);
+		if(mixVersions == null || mixVersions.length != fl)
+			mixVersions = new int[fl];
+		final boolean current = Filter.current(filters, mixVersions);
+		if(mix != null && mix.length == fl * r && current)
+			return mix;
+		if(mix == null || mix.length != fl * r)
+			mix = new double[fl * r];
+		for(int k = 0; k < fl; k++) //For each filter:
+			System.arraycopy(filters[k].get(), 0, mix, k * r, r);
+		return mix;
+	}
+	
+	/**
+	 * @param buffer A buffer, or null.
+	 * @param length Required length.
+	 * @return <code>buffer</code> if it has the required length, otherwise a new buffer.
+	 */
+	private static double[] fit(double[] buffer, int length) {return (buffer != null && buffer.length == length)? buffer:new double[length];}
+	
+	/**
+	 * Performs a convolution over a batch of input maps by unrolling each image
+	 * and multiplying it by the matrix of all filters.
+	 * 
+	 * @param in Flattened input maps, indexed by image.
+	 * @param n Number of images.
+	 * @param is Input map side length.
+	 * @param fs Filter side length.
+	 * @param step Step size.
+	 * @param c Channels.
+	 * @param pad Padding.
+	 * @param out Buffer for the flattened output maps.
+	 * @return The flattened output maps indexed by image.
+	 */
+	private double[] unroll(double[] in, int n, int is, int fs, int step, int c, int pad, double[] out) {
+		final int dil = dilation(),
+				  fl  = filters.length,
+				  os  = (is + 2 * pad - (fs - 1) * dil - 1) / step + 1,
+				  osq = os * os,
+				  r   = c * fs * fs, //Size of each filter.
+				  ims = c * is * is; //Size of one input image.
+		final double[] w = weights(r);
+		col = fit(col, r * osq);
+		for(int b = 0; b < n; b++) { //For each image:
+			Tensor.im2col(in, b * ims, is, fs, c, step, pad, dil, col);
+			Tensor.pointwise(col, 0, osq, r, w, fl, out, b * fl * osq, false);
 		}
 		return out;
 	}
 	
+	/**
+	 * Performs a 1x1 convolution over a batch of input maps as one channel-mixing
+	 * matrix multiply per image.
+	 * 
+	 * @param in Flattened input maps, indexed by image.
+	 * @param n Number of images.
+	 * @param sq Number of positions in each map.
+	 * @param c Channels.
+	 * @param out Buffer for the flattened output maps.
+	 * @return The flattened output maps indexed by image.
+	 * 
+	 * @see Tensor#pointwise(double[], int, int, int, double[], int, double[], int, boolean)
+	 */
+	private double[] mix(double[] in, int n, int sq, int c, double[] out) {
+		final int fl = filters.length;
+		final double[] w = weights(c);
+		for(int b = 0; b < n; b++) //For each image:
+			Tensor.pointwise(in, b * c * sq, sq, c, w, fl, out, b * fl * sq, layout == Layout.HWC);
+		return out;
+	}
+	
+	/**
+	 * Performs the backpropagation operation for {@linkplain #convolve(double[], int, int, Filter[], int, int, int, int, int, double[], boolean)}.
+	 * The gradient for each filter is accumulated across the batch before
+	 * the filter is updated.
+	 * 
+	 * @param loss Flattened gradient with respect to the output maps, indexed by image, then by filter.
+	 * @param n Number of images.
+	 * @param learningRate Learning rate.
+	 * @param is Input map side length.
+	 * @param fs Filter side length.
+	 * @param step Step size.
+	 * @param c Channels.
+	 * @param pad Padding.
+	 * @param di Buffer for the gradient with respect to the input maps.
+	 * @param df Buffer for the gradient with respect to one filter.
+	 * @return Flattened gradient with respect to the input maps, indexed by image.
+	 */
+	private double[] backConvolve(double[] loss, int n, double learningRate, int is, int fs, int step, int c, int pad,
+								  double[] di, double[] df) {
+		final int dil = dilation(),
+				  fl  = filters.length,
+				  os  = (is + 2 * pad - (fs - 1) * dil - 1) / step + 1,
+				  osq = os * os,
+				  ims = c * is * is; //Size of one input image.
+		if(in == null)
+			error("Feed-forward function has not been called for the current cycle.");
+		if(loss.length != n * fl * osq)
+			error("Invalid gradient size.");
+		if(biased)
+			for(int k = 0; k < fl; k++) { //For each filter:
+				double g = 0.0; //Gradient with respect to the bias.
+				for(int b = 0; b < n; b++) //For each image:
+					if(layout == Layout.HWC)
+						for(int p = 0, o = b * fl * osq + k; p < osq; p++, o += fl)
+							g += loss[o];
+					else
+						for(int o = (b * fl + k) * osq, e = o + osq; o < e; o++)
+							g += loss[o];
+				filters[k].updateBias(g, learningRate);
+			}
+		Arrays.fill(di, 0.0);
+		final boolean pw = pointwise(fs, step, pad);
+		if(pw || unrolled(fs, step, pad)) { //If the convolution is a matrix multiply:
+			final int r = c * fs * fs; //Size of each filter.
+			final double[] w = weights(r);
+			mixGrad = fit(mixGrad, w.length);
+			Arrays.fill(mixGrad, 0.0);
+			if(pw)
+				for(int b = 0; b < n; b++) //For each image:
+					Tensor.backPointwise(loss, b * fl * osq, in, b * ims, osq, c, w, fl, di, b * ims, mixGrad, layout == Layout.HWC);
+			else {
+				col = fit(col, r * osq);
+				colGrad = fit(colGrad, r * osq);
+				for(int b = 0; b < n; b++) { //For each image:
+					Tensor.im2col(in, b * ims, is, fs, c, step, pad, dil, col);
+					Arrays.fill(colGrad, 0.0);
+					Tensor.backPointwise(loss, b * fl * osq, col, 0, osq, r, w, fl, colGrad, 0, mixGrad, false);
+					Tensor.col2im(colGrad, is, fs, c, step, pad, dil, di, b * ims);
+				}
+			}
+			for(int k = 0; k < fl; k++) { //For each filter:
+				System.arraycopy(mixGrad, k * r, df, 0, r);
+				filters[k].update(df, learningRate); //Update once per batch.
+			}
+			return di;
+		}
+		for(int k = 0; k < fl; k++) { //For each filter:
+			final double[] f = filters[k].get();
+			Arrays.fill(df, 0.0);
+			for(int b = 0; b < n; b++) //For each image:
+				if(layout == Layout.HWC)
+					Tensor.backConvolveHWC(loss, b * fl * osq + k, fl, in, b * ims, is, c, f, fs, c, step, pad, dil, di, b * ims, df);
+				else
+					Tensor.backConvolve(loss, (b * fl + k) * osq, in, b * ims, is, f, fs, c, step, pad, dil, di, b * ims, df);
+			filters[k].update(df, learningRate); //Update once per batch.
+		}
+		return di;
+	}
+	
 	/**
 	 * Performs the feed-forward operation with convolution.
 	 * 
 	 * This function executes the activation function for each element
 	 * and runs the convolution operation with the given filters. The
-	 * output is then flattened and stored in the same <code>Parameter</code>
-	 * object output from the {@linkplain Vector#forward(Parameter)} function.
+	 * output maps are flattened in filter order.
 	 * 
 	 * This function will run if the filters have different sizes, steps, and/or
 	 * channels, however this function will not guarantee that the output is
@@ -105,24 +349,284 @@ public class Activation implements Serializable, ConvolutionLayer {
 	 * 				(<code>double[]</code>) followed by any other parameters as 
 	 * 			    required by the activation function.
 	 * @param inputSize Input map side length.
-	 * @param filters The filters for the convolution.
 	 * @param filterSize Filter side length.
 	 * @param step Step size.
 	 * @param channels Number of channels.
 	 * @param pad Padding.
-	 * @return A {@linkplain Parameter} object containing the output of the
-	 * 		   activation operation and a flattened output map from the
-	 * 		   convolution.
+	 * @return The flattened output maps from the convolution (<code>double[]</code>)
+	 * 		   wrapped in a {@linkplain Parameter}.
 	 */
 	public Parameter<ListOfTypes> forward(Parameter<ListOfTypes> input, int inputSize, int filterSize, int step, int channels, int pad) {
-		final Parameter<ListOfTypes> out = act.forward(input);
-		double[][] nOut = convolve((double[]) out.getValues()[0], inputSize, filters, filterSize, step, channels, pad);
-		double[] o = new double[0];
-		for(double[] i : nOut)
-			o = ArrayUtils.addAll(o,i);
-		nOut = null;
-		return this.out = new Parameter<ListOfTypes>(new ListOfTypes(act.getFunctionTypes()[0],new Class<?>[] {double[].class}),
-										  			 ArrayUtils.add(out.getValues(), o));
+		final int os = Tensor.outputSize(inputSize, filterSize, step, pad, dilation());
+		in = (double[]) act.forward(input).getValues()[0];
+		batch = 0;
+		final double[] out = new double[filters.length * os * os];
+		return new Parameter<ListOfTypes>(outputType, new Object[] {run(in, 1, inputSize, filterSize, step, channels, pad, out)});
+	}
+	
+	/**
+	 * Performs the feed-forward operation for a batch of input maps, using the
+	 * local values set by {@linkplain #setForwardHyperparams(int, int, int, int, int)}
+	 * or {@linkplain #Activation(Filter[], FunctionTypes, int, int, int, int, int, int, double)}.
+	 * The activation function must not require any parameters other than its input.
+	 * If a plan was built for <code>n</code> images, the planned buffers are used
+	 * and the returned array is overwritten by the next call.
+	 * 
+	 * @param input Flattened input maps, indexed by image.
+	 * @param n Number of images.
+	 * @return Flattened output maps, indexed by image, then by filter.
+	 * 
+	 * @see #plan(int)
+	 */
+	@Override
+	public double[] forward(double[] input, int n) {
+		final boolean p = (n == planned); //True if the planned buffers can be used.
+		if(!p)
+			check();
+		if(input.length != n * inputLength())
+			error("Invalid input size.");
+		act.forward(input, in = p? actBuffer:new double[input.length]);
+		batch = n;
+		return run(in, n, fwd[0], fwd[1], fwd[2], fwd[3], fwd[4], p? outBuffer:new double[n * outputLength()]);
+	}
+	
+	/**
+	 * Runs the convolution over a batch of activated input maps with the
+	 * fastest applicable kernel.
+	 * 
+	 * @param in Flattened input maps, indexed by image.
+	 * @param n Number of images.
+	 * @param is Input map side length.
+	 * @param fs Filter side length.
+	 * @param step Step size.
+	 * @param c Channels.
+	 * @param pad Padding.
+	 * @param out Buffer for the flattened output maps.
+	 * @return The flattened output maps indexed by image.
+	 */
+	private double[] run(double[] in, int n, int is, int fs, int step, int c, int pad, double[] out) {
+		if(pointwise(fs, step, pad))
+			mix(in, n, is * is, c, out);
+		else if(unrolled(fs, step, pad))
+			unroll(in, n, is, fs, step, c, pad, out);
+		else
+			convolve(in, n, is, filters, fs, step, c, pad, dilation(), out, layout == Layout.HWC);
+		if(biased) {
+			final int fl = filters.length,
+					  osq = out.length / (n * fl); //Elements per output map.
+			for(int b = 0; b < n; b++) //For each image:
+				for(int k = 0; k < fl; k++) { //For each filter:
+					final double bk = filters[k].bias();
+					if(layout == Layout.HWC)
+						for(int p = 0, o = b * fl * osq + k; p < osq; p++, o += fl)
+							out[o] += bk;
+					else
+						for(int o = (b * fl + k) * osq, e = o + osq; o < e; o++)
+							out[o] += bk;
+				}
+		}
+		return out;
+	}
+	
+	/**
+	 * Validates the hyperparameters and activation function for batched execution.
+	 */
+	private void check() {
+		if(fwd == null)
+			error("setForwardHyperparams not called.");
+		if(act.getFunctionTypes()[0].getTypes().length != 1)
+			error("Batched execution requires an activation function without additional parameters.");
+		Tensor.outputSize(fwd[0], fwd[1], fwd[2], fwd[4], dilation());
+	}
+	
+	/**
+	 * Validates the hyperparameters once and allocates the buffers used by
+	 * {@linkplain #forward(double[], int)} and {@linkplain #backward(double[], int)}
+	 * for batches of <code>n</code> images.
+	 * 
+	 * @param n Number of images.
+	 */
+	@Override
+	public void plan(int n) {
+		check();
+		final int il = n * inputLength(),
+				  fs = fwd[1];
+		actBuffer = new double[il];
+		gradBuffer = new double[il];
+		outBuffer = new double[n * outputLength()];
+		filterBuffer = new double[fwd[3] * fs * fs];
+		planned = n;
+	}
+	
+	/**@return Size of one flattened input map.*/
+	@Override
+	public int inputLength() {
+		if(fwd == null)
+			error("setForwardHyperparams not called.");
+		return fwd[3] * fwd[0] * fwd[0];
+	}
+	
+	/**@return Size of the flattened output maps for one input.*/
+	@Override
+	public int outputLength() {
+		if(fwd == null)
+			error("setForwardHyperparams not called.");
+		final int os = (fwd[0] + 2 * fwd[4] - (fwd[1] - 1) * dilation() - 1) / fwd[2] + 1;
+		return filters.length * os * os;
+	}
+	
+	/**@return Number of input channels.*/
+	@Override
+	public int inputChannels() {
+		if(fwd == null)
+			error("setForwardHyperparams not called.");
+		return fwd[3];
+	}
+	
+	/**@return Number of filters.*/
+	@Override
+	public int outputChannels() {return filters.length;}
+	
+	/**@return Convolutional filters.*/
+	public Filter[] getFilters() {return filters;}
+	
+	/**@return Input map side length, dilated filter side length, step size, and padding.*/
+	@Override
+	public int[] geometry() {
+		if(fwd == null)
+			error("setForwardHyperparams not called.");
+		return new int[] {fwd[0], (fwd[1] - 1) * dilation() + 1, fwd[2], fwd[4]};
+	}
+	
+	/**
+	 * Creates a convolutional activation with the filters, activation function,
+	 * and settings of this layer for input maps with another side length.
+	 * 
+	 * @param inputSize Input map side length.
+	 * @param pad Padding.
+	 * @return The resized layer.
+	 */
+	@Override
+	public Activation resize(int inputSize, int pad) {return copy(filters, inputSize, pad);}
+	
+	/**
+	 * Creates a convolutional activation which applies the per-channel transform
+	 * of an {@linkplain AffineLayer} to its output. Each filter is copied and
+	 * scaled, and the shift is added to its bias, so the affine layer can be
+	 * removed from inference.
+	 * 
+	 * @param affine Layer which follows this layer.
+	 * @return The folded layer.
+	 */
+	public Activation fold(AffineLayer affine) {
+		if(fwd == null)
+			error("setForwardHyperparams not called.");
+		if(affine.inputChannels() != filters.length)
+			error("Affine layer does not match the number of filters.");
+		final double[] scale = affine.scale(),
+					   shift = affine.shift();
+		final Filter[] folded = new Filter[filters.length];
+		for(int k = 0; k < filters.length; k++) { //For each filter:
+			folded[k] = filters[k].copy();
+			final double[] f = folded[k].get();
+			for(int i = 0; i < f.length; i++)
+				f[i] *= scale[k];
+			folded[k].invalidate();
+			folded[k].setBias((biased? scale[k] * filters[k].bias():0.0) + shift[k]);
+		}
+		final Activation r = copy(folded, fwd[0], fwd[4]);
+		r.biased = true;
+		return r;
+	}
+	
+	/**
+	 * @param filters Convolutional filters.
+	 * @param inputSize Input map side length.
+	 * @param pad Padding.
+	 * @return A convolutional activation with the given filters, a copy of the
+	 * 		   activation function of this layer, and the settings of this layer.
+	 */
+	private Activation copy(Filter[] filters, int inputSize, int pad) {
+		if(fwd == null)
+			error("setForwardHyperparams not called.");
+		final Activation r = new Activation(filters, act.copy());
+		r.setForwardHyperparams(inputSize, fwd[1], fwd[2], fwd[3], pad);
+		r.setBackwardHyperparams(Tensor.outputSize(inputSize, fwd[1], fwd[2], pad, dilation()), lr);
+		r.layout = layout;
+		r.dilation = dilation;
+		r.algorithm = algorithm;
+		r.biased = biased;
+		return r;
+	}
+	
+	/**
+	 * Sets whether the bias of each filter is added to its output. Biases are
+	 * learned along with the filters while enabled.
+	 * 
+	 * @param biased True if biases should be used.
+	 * 
+	 * @see Filter#bias()
+	 */
+	public void setBiased(boolean biased) {this.biased = biased;}
+	
+	/**@return True if the bias of each filter is added to its output.*/
+	public boolean isBiased() {return biased;}
+	
+	/**
+	 * Sets the memory layout of the input and output maps and rearranges
+	 * the filters to match.
+	 * 
+	 * @param layout Memory layout.
+	 */
+	@Override
+	public void setLayout(Layout layout) {
+		for(Filter f : filters)
+			f.setLayout(layout);
+		this.layout = layout;
+	}
+	
+	/**
+	 * Sets the dilation of the filters. Filter elements are applied to input
+	 * elements <code>dilation</code> apart, which widens the receptive field
+	 * without adding weights. The dilated filter is never materialized.
+	 * 
+	 * @param dilation Distance between adjacent filter elements on the input map.
+	 */
+	public void setDilation(int dilation) {
+		if(dilation <= 0)
+			error("Invalid dilation.");
+		this.dilation = dilation;
+	}
+	
+	/**@return Distance between adjacent filter elements on the input map.*/
+	public int dilation() {return (dilation > 0)? dilation:1;}
+	
+	/**
+	 * Sets the algorithm used for the convolution.
+	 * 
+	 * @param algorithm Algorithm.
+	 * 
+	 * @see ConvolutionTuner
+	 */
+	public void setAlgorithm(Algorithm algorithm) {this.algorithm = algorithm;}
+	
+	/**@return Algorithm used for the convolution.*/
+	public Algorithm algorithm() {return (algorithm == null)? Algorithm.Direct:algorithm;}
+	
+	/**
+	 * Describes the shape of the convolution for batches of <code>n</code> images.
+	 * Layers with the same signature run the same amount of work with the same
+	 * memory access pattern.
+	 * 
+	 * @param n Number of images.
+	 * @return Input size, channels, filter size, step, padding, dilation, filter count,
+	 * 		   batch size, and layout.
+	 */
+	public String signature(int n) {
+		if(fwd == null)
+			error("setForwardHyperparams not called.");
+		return fwd[0] + "x" + fwd[0] + "x" + fwd[3] + ":f" + fwd[1] + ":s" + fwd[2] + ":p" + fwd[4] + ":d" + dilation() +
+			   ":k" + filters.length + ":n" + n + ":" + layout;
 	}
 	
 	/**
@@ -141,13 +645,13 @@ public class Activation implements Serializable, ConvolutionLayer {
 	 * except uses the local values set by
 	 * {@linkplain #setForwardHyperparams(int, int, int, int, int)} or
 	 * {@linkplain #Activation(Filter[], FunctionTypes, int, int, int, int, int, int, double)}.
+	 * The output of the activation function is kept only for backpropagation.
 	 * 
 	 * @param input A {@linkplain Parameter} object containing the input
 	 * 				(<code>double[]</code>) followed by any other parameters as 
 	 * 			    required by the activation function.
-	 * @return A {@linkplain Parameter} object containing the output of the
-	 * 		   activation operation and a flattened output map from the
-	 * 		   convolution.
+	 * @return The flattened output maps from the convolution (<code>double[]</code>)
+	 * 		   wrapped in a {@linkplain Parameter}.
 	 */
 	@Override
 	public Parameter<ListOfTypes> forward(Parameter<ListOfTypes> input) {
@@ -178,20 +682,45 @@ public class Activation implements Serializable, ConvolutionLayer {
 	 * @return Gradient with respect to the input map.
 	 */
 	public Parameter<ListOfTypes> backward(Parameter<ListOfTypes> loss, double learningRate, int inputSize, int filterSize, int lossSize, int step, int channels, int pad) {
-		double[] nloss = (double[]) loss.getValues()[0];
-		double[] in = (double[]) out.getValues()[0],
-				 di = new double[inputSize * inputSize * channels];
-		for(Filter f : filters) {
-			final double[][] g = Tensor.backConvolve(nloss, in, inputSize, f.get(), filterSize, channels, step, pad);
-			Tensor.sum(di, g[0]);
-			f.update(Tensor.scale(g[1], learningRate));
-		}
-		nloss = in = null;
-		loss.setValue(di,0);
-		di = null;
+		if(batch != 0)
+			error("The last feed-forward operation was batched.");
+		final double[] nloss = (double[]) loss.getValues()[0];
+		loss.setValue(backConvolve(nloss, 1, learningRate, inputSize, filterSize, step, channels, pad,
+								   new double[channels * inputSize * inputSize],
+								   new double[channels * filterSize * filterSize]), 0);
 		return act.backward(loss);
 	}
 	
+	/**
+	 * Performs the backpropagation operation for a batch of gradients, using the
+	 * local values set by {@linkplain #setForwardHyperparams(int, int, int, int, int)}
+	 * and {@linkplain #setBackwardHyperparams(int, double)}. Filter gradients are
+	 * summed across the batch and each filter is updated once.
+	 * 
+	 * If a plan was built for <code>n</code> images, the planned buffers are used
+	 * and the returned array is overwritten by the next call.
+	 * 
+	 * @param loss Flattened gradients with respect to the output maps, indexed by image, then by filter.
+	 * @param n Number of images.
+	 * @return Flattened gradients with respect to the input maps, indexed by image.
+	 */
+	@Override
+	public double[] backward(double[] loss, int n) {
+		if(fwd == null)
+			error("setForwardHyperparams not called.");
+		if(bkwd == null)
+			error("setBackwardHyperparams not called.");
+		if(batch != n)
+			error("Batch size does not match the last feed-forward operation.");
+		final int fs = fwd[1];
+		final double[] di = (n == planned)?
+				backConvolve(loss, n, lr, fwd[0], fs, fwd[2], fwd[3], fwd[4], gradBuffer, filterBuffer) :
+				backConvolve(loss, n, lr, fwd[0], fs, fwd[2], fwd[3], fwd[4], new double[n * inputLength()],
+							 new double[fwd[3] * fs * fs]);
+		act.backward(di, in, di);
+		return di;
+	}
+	
 	/**
 	 * Sets the learning rate.
 	 * 
@@ -228,6 +757,27 @@ public class Activation implements Serializable, ConvolutionLayer {
 		return backward(loss, lr, fwd[0], fwd[1], bkwd[0], fwd[2], fwd[3], fwd[4]);
 	}
 	
+	/**
+	 * Sets the activation-memory mode of the activation function.
+	 * 
+	 * @param compact True if compact storage should be used.
+	 * 
+	 * @see Vector#setCompact(boolean)
+	 */
+	@Override
+	public void setCompact(boolean compact) {act.setCompact(compact);}
+	
+	/**@return True if the activation function maps zero to zero.*/
+	@Override
+	public boolean preservesZero() {return act.preservesZero();}
+	
+	/**Releases the stored outputs of the activation function.*/
+	@Override
+	public void release() {
+		in = null;
+		act.release();
+	}
+	
 	/**
 	 * A custom exception which indicates an error in the activation map.
 	 * 
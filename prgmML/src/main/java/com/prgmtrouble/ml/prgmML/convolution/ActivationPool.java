@@ -0,0 +1,484 @@
+package com.prgmtrouble.ml.prgmML.convolution;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+import com.prgmtrouble.ml.prgmML.convolution.Pool.PoolingTypes;
+import com.prgmtrouble.ml.prgmML.generic.ListOfTypes;
+import com.prgmtrouble.ml.prgmML.generic.Parameter;
+import com.prgmtrouble.ml.prgmML.math.FunctionTypes;
+import com.prgmtrouble.ml.prgmML.math.Tensor;
+import com.prgmtrouble.ml.prgmML.math.Tensor.Layout;
+import com.prgmtrouble.ml.prgmML.math.Vector;
+
+/**
+ * An {@linkplain Activation} followed by a max {@linkplain Pool}, fused into a single
+ * layer. The convolution outputs in each pooling window are computed together and
+ * reduced to the pooled output immediately, so the full-size convolution output
+ * is never stored. Only the position of the selected output in each window is
+ * recorded for the backward pass.
+ * 
+ * @author prgmTrouble
+ */
+public class ActivationPool implements Serializable, ConvolutionLayer {
+	/***/
+	private static final long serialVersionUID = 1L;
+	
+	/**Vector which holds the activation function.*/
+	private final Vector act;
+	/**Convolutional filters.*/
+	private final Filter[] filters;
+	/**Input map side length.*/
+	private final int is;
+	/**Filter side length.*/
+	private final int fs;
+	/**Step size.*/
+	private final int step;
+	/**Number of channels.*/
+	private final int c;
+	/**Padding.*/
+	private final int pad;
+	/**Side length of the convolution output.*/
+	private final int os;
+	/**Pooling constant.*/
+	private final int f;
+	/**Side length of the pooled output.*/
+	private final int p;
+	/**True if windows are reduced by absolute value.*/
+	private final boolean abs;
+	/**Learning rate.*/
+	private double lr;
+	/**True if the maps and filters use the {@linkplain Layout#HWC} layout.*/
+	private boolean hwc;
+	/**Input to the convolution, which is the output of the activation function.*/
+	private transient double[] in;
+	/**Convolution output index selected in each pooling window.*/
+	private transient int[] arg;
+	/**Number of images in the last batch, or zero if the last input was a single image.*/
+	private transient int batch;
+	/**Number of images the buffers were planned for, or zero if no plan was built.*/
+	private transient int planned;
+	/**Planned buffer for the output of the activation function.*/
+	private transient double[] actBuffer;
+	/**Planned buffer for the pooled output.*/
+	private transient double[] outBuffer;
+	/**Planned buffer for the selected indices.*/
+	private transient int[] argBuffer;
+	/**Planned buffer for the gradient with respect to the input.*/
+	private transient double[] gradBuffer;
+	/**Planned buffer for the gradient with respect to one filter.*/
+	private transient double[] filterBuffer;
+	/**Type for creating new {@linkplain Parameter} objects.*/
+	private static final ListOfTypes outputType = new ListOfTypes(new Class<?>[] {double[].class});
+	
+	/**
+	 * Creates a fused activation and pooling layer.
+	 * 
+	 * @param filters Convolutional filters.
+	 * @param function Type of activation function.
+	 * @param inputSize Input map side length.
+	 * @param filterSize Filter side length.
+	 * @param step Step size.
+	 * @param channels Number of channels.
+	 * @param pad Padding.
+	 * @param factor Pooling constant.
+	 * @param type Pooling operation type. Must be {@linkplain PoolingTypes#Max} or
+	 * 			   {@linkplain PoolingTypes#MaxAbs}.
+	 * @param learningRate Learning rate.
+	 */
+	public ActivationPool(Filter[] filters, FunctionTypes function,
+						  int inputSize, int filterSize, int step, int channels, int pad,
+						  int factor, PoolingTypes type, double learningRate) {
+		this(filters, new Vector(function), inputSize, filterSize, step, channels, pad, factor, type, learningRate);
+	}
+	
+	/**
+	 * Creates a fused activation and pooling layer with the given activation function vector.
+	 * 
+	 * @param filters Convolutional filters.
+	 * @param act Vector which holds the activation function.
+	 * @param inputSize Input map side length.
+	 * @param filterSize Filter side length.
+	 * @param step Step size.
+	 * @param channels Number of channels.
+	 * @param pad Padding.
+	 * @param factor Pooling constant.
+	 * @param type Pooling operation type.
+	 * @param learningRate Learning rate.
+	 */
+	private ActivationPool(Filter[] filters, Vector act,
+						   int inputSize, int filterSize, int step, int channels, int pad,
+						   int factor, PoolingTypes type, double learningRate) {
+		if(type != PoolingTypes.Max && type != PoolingTypes.MaxAbs)
+			error("Only max pooling can be fused.");
+		this.act = act;
+		this.filters = filters;
+		is = inputSize;
+		fs = filterSize;
+		this.step = step;
+		c = channels;
+		this.pad = pad;
+		os = Tensor.outputSize(is, fs, step, pad);
+		if(os % factor != 0)
+			error("Pooling constant is not a factor of the convolution output size.");
+		f = factor;
+		p = os / f;
+		abs = (type == PoolingTypes.MaxAbs);
+		lr = learningRate;
+	}
+	
+	/**
+	 * Computes one convolution output.
+	 * 
+	 * @param in Flattened input maps.
+	 * @param io Offset of the input map.
+	 * @param filter Flattened filter.
+	 * @param r Input row of the top left filter element.
+	 * @param col Input column of the top left filter element.
+	 * @return The convolution output.
+	 */
+	private double dot(double[] in, int io, double[] filter, int r, int col) {
+		final int ich = hwc? 1:is * is, //Input channel stride.
+				  irs = hwc? is * c:is, //Input row stride.
+				  ics = hwc? c:1,       //Input column stride.
+				  fch = hwc? 1:fs * fs, //Filter channel stride.
+				  frs = hwc? fs * c:fs, //Filter row stride.
+				  fcs = hwc? c:1;       //Filter column stride.
+		double o = 0.0;
+		for(int ch = 0; ch < c; ch++) { //For each channel:
+			final int chisq = io + ch * ich,
+					  chfsq = ch * fch;
+			for(int fr = 0; fr < fs; fr++) { //For each filter row:
+				final int ir = r + fr;
+				if(ir < 0 || ir >= is)
+					continue;
+				final int irx = chisq + ir * irs,
+						  frx = chfsq + fr * frs;
+				for(int fc = 0; fc < fs; fc++) { //For each filter column:
+					final int ic = col + fc;
+					if(ic >= 0 && ic < is)
+						o += in[irx + ic * ics] * filter[frx + fc * fcs];
+				}
+			}
+		}
+		return o;
+	}
+	
+	/**
+	 * Convolves and pools a batch of input maps.
+	 * 
+	 * @param in Flattened input maps, indexed by image.
+	 * @param n Number of images.
+	 * @param out Buffer for the pooled output maps.
+	 * @param arg Buffer for the selected indices.
+	 * @return The pooled output maps indexed by image.
+	 */
+	private double[] pool(double[] in, int n, double[] out, int[] arg) {
+		final int fl  = filters.length,
+				  pq  = p * p,
+				  ims = c * is * is, //Size of one input image.
+				  ost = hwc? fl:1;   //Output position stride.
+		for(int k = 0; k < fl; k++) { //For each filter:
+			final double[] fk = filters[k].get();
+			for(int b = 0; b < n; b++) { //For each image:
+				final int io = b * ims,
+						  oo = hwc? (b * fl * pq + k):((b * fl + k) * pq);
+				for(int pr = 0; pr < p; pr++) //For each pooled row:
+					for(int pc = 0; pc < p; pc++) { //For each pooled column:
+						double a = 0.0; //Selected value.
+						int x = -1; //Selected index.
+						for(int wr = 0; wr < f; wr++) { //For each window row:
+							final int or = pr * f + wr; //Convolution output row.
+							for(int wc = 0; wc < f; wc++) { //For each window column:
+								final int oc = pc * f + wc; //Convolution output column.
+								final double v = dot(in, io, fk, or * step - pad, oc * step - pad);
+								if(x < 0 || (abs? (Math.abs(v) > Math.abs(a)):(v > a))) {a = v; x = or * os + oc;}
+							}
+						}
+						final int oidx = oo + (pr * p + pc) * ost; //Output index.
+						out[oidx] = a; //Record value.
+						arg[oidx] = x; //Record index.
+					}
+			}
+		}
+		return out;
+	}
+	
+	/**
+	 * Propagates the pooled gradient to the selected convolution outputs, then
+	 * through the convolution. Filter gradients are accumulated across the batch
+	 * before each filter is updated.
+	 * 
+	 * @param loss Flattened gradient with respect to the pooled output maps.
+	 * @param n Number of images.
+	 * @param di Buffer for the gradient with respect to the input maps.
+	 * @param df Buffer for the gradient with respect to one filter.
+	 * @return Flattened gradient with respect to the input maps, indexed by image.
+	 */
+	private double[] unpool(double[] loss, int n, double[] di, double[] df) {
+		final int fl  = filters.length,
+				  pq  = p * p,
+				  ims = c * is * is,    //Size of one input image.
+				  ost = hwc? fl:1,      //Output position stride.
+				  ich = hwc? 1:is * is, //Input channel stride.
+				  irs = hwc? is * c:is, //Input row stride.
+				  ics = hwc? c:1,       //Input column stride.
+				  fch = hwc? 1:fs * fs, //Filter channel stride.
+				  frs = hwc? fs * c:fs, //Filter row stride.
+				  fcs = hwc? c:1;       //Filter column stride.
+		if(in == null || arg == null)
+			error("Feed-forward function has not been called for the current cycle.");
+		if(loss.length != n * fl * pq)
+			error("Invalid gradient size.");
+		Arrays.fill(di, 0.0);
+		for(int k = 0; k < fl; k++) { //For each filter:
+			final double[] fk = filters[k].get();
+			Arrays.fill(df, 0.0);
+			for(int b = 0; b < n; b++) { //For each image:
+				final int io = b * ims,
+						  oo = hwc? (b * fl * pq + k):((b * fl + k) * pq);
+				for(int x = 0; x < pq; x++) { //For each pooled output:
+					final double g = loss[oo + x * ost];
+					if(g == 0.0)
+						continue;
+					final int sel = arg[oo + x * ost], //Selected convolution output.
+							  r = (sel / os) * step - pad,
+							  col = (sel % os) * step - pad;
+					for(int ch = 0; ch < c; ch++) { //For each channel:
+						final int chisq = io + ch * ich,
+								  chfsq = ch * fch;
+						for(int fr = 0; fr < fs; fr++) { //For each filter row:
+							final int ir = r + fr;
+							if(ir < 0 || ir >= is)
+								continue;
+							final int irx = chisq + ir * irs,
+									  frx = chfsq + fr * frs;
+							for(int fc = 0; fc < fs; fc++) { //For each filter column:
+								final int ic = col + fc;
+								if(ic >= 0 && ic < is) {
+									df[frx + fc * fcs] += g * in[irx + ic * ics];
+									di[irx + ic * ics] += g * fk[frx + fc * fcs];
+								}
+							}
+						}
+					}
+				}
+			}
+			filters[k].update(df, lr); //Update once per batch.
+		}
+		return di;
+	}
+	
+	/**
+	 * Performs the feed-forward operation.
+	 * 
+	 * @param input A {@linkplain Parameter} object containing the input
+	 * 				(<code>double[]</code>) followed by any other parameters as
+	 * 			    required by the activation function.
+	 * @return The flattened pooled output maps (<code>double[]</code>)
+	 * 		   wrapped in a {@linkplain Parameter}.
+	 */
+	@Override
+	public Parameter<ListOfTypes> forward(Parameter<ListOfTypes> input) {
+		in = (double[]) act.forward(input).getValues()[0];
+		batch = 0;
+		arg = new int[outputLength()];
+		return new Parameter<ListOfTypes>(outputType, new Object[] {pool(in, 1, new double[outputLength()], arg)});
+	}
+	
+	/**
+	 * Performs the backpropagation operation.
+	 * 
+	 * @param loss A {@linkplain Parameter} object containing the gradient with respect to
+	 * 			   the output (<code>double[]</code>) followed by any other parameters as
+	 * 			   required by the activation function.
+	 * @return Gradient with respect to the input map.
+	 */
+	@Override
+	public Parameter<ListOfTypes> backward(Parameter<ListOfTypes> loss) {
+		if(batch != 0)
+			error("The last feed-forward operation was batched.");
+		loss.setValue(unpool((double[]) loss.getValues()[0], 1, new double[inputLength()], new double[c * fs * fs]), 0);
+		return act.backward(loss);
+	}
+	
+	/**
+	 * Performs the feed-forward operation for a batch of input maps. The
+	 * activation function must not require any parameters other than its input.
+	 * If a plan was built for <code>n</code> images, the planned buffers are used
+	 * and the returned array is overwritten by the next call.
+	 * 
+	 * @param input Flattened input maps, indexed by image.
+	 * @param n Number of images.
+	 * @return Flattened pooled output maps, indexed by image, then by filter.
+	 */
+	@Override
+	public double[] forward(double[] input, int n) {
+		final boolean pl = (n == planned); //True if the planned buffers can be used.
+		if(!pl)
+			check();
+		if(input.length != n * inputLength())
+			error("Invalid input size.");
+		act.forward(input, in = pl? actBuffer:new double[input.length]);
+		arg = pl? argBuffer:new int[n * outputLength()];
+		batch = n;
+		return pool(in, n, pl? outBuffer:new double[n * outputLength()], arg);
+	}
+	
+	/**
+	 * Performs the backpropagation operation for a batch of gradients. Filter
+	 * gradients are summed across the batch and each filter is updated once.
+	 * If a plan was built for <code>n</code> images, the planned buffers are
+	 * used and the returned array is overwritten by the next call.
+	 * 
+	 * @param loss Flattened gradients with respect to the pooled output maps, indexed by image, then by filter.
+	 * @param n Number of images.
+	 * @return Flattened gradients with respect to the input maps, indexed by image.
+	 */
+	@Override
+	public double[] backward(double[] loss, int n) {
+		if(batch != n)
+			error("Batch size does not match the last feed-forward operation.");
+		final double[] di = (n == planned)?
+				unpool(loss, n, gradBuffer, filterBuffer) :
+				unpool(loss, n, new double[n * inputLength()], new double[c * fs * fs]);
+		act.backward(di, in, di);
+		return di;
+	}
+	
+	/**
+	 * Validates the activation function for batched execution.
+	 */
+	private void check() {
+		if(act.getFunctionTypes()[0].getTypes().length != 1)
+			error("Batched execution requires an activation function without additional parameters.");
+	}
+	
+	/**
+	 * Allocates the buffers used by {@linkplain #forward(double[], int)} and
+	 * {@linkplain #backward(double[], int)} for batches of <code>n</code> images.
+	 * 
+	 * @param n Number of images.
+	 */
+	@Override
+	public void plan(int n) {
+		check();
+		if(n <= 0)
+			error("Invalid batch size.");
+		actBuffer = new double[n * inputLength()];
+		gradBuffer = new double[n * inputLength()];
+		outBuffer = new double[n * outputLength()];
+		argBuffer = new int[n * outputLength()];
+		filterBuffer = new double[c * fs * fs];
+		planned = n;
+	}
+	
+	/**@return Size of one flattened input map.*/
+	@Override
+	public int inputLength() {return c * is * is;}
+	
+	/**@return Size of the flattened pooled output maps for one input.*/
+	@Override
+	public int outputLength() {return filters.length * p * p;}
+	
+	/**@return Number of input channels.*/
+	@Override
+	public int inputChannels() {return c;}
+	
+	/**@return Number of filters.*/
+	@Override
+	public int outputChannels() {return filters.length;}
+	
+	/**
+	 * @return Input map side length, side length of the input window covered by
+	 * 		   each pooling window, distance between pooling windows on the input,
+	 * 		   and padding.
+	 */
+	@Override
+	public int[] geometry() {return new int[] {is, fs + (f - 1) * step, step * f, pad};}
+	
+	/**
+	 * Creates a fused layer with the filters, activation function, and settings
+	 * of this layer for input maps with another side length.
+	 * 
+	 * @param inputSize Input map side length.
+	 * @param pad Padding.
+	 * @return The resized layer.
+	 */
+	@Override
+	public ActivationPool resize(int inputSize, int pad) {
+		final ActivationPool r = new ActivationPool(filters, act.copy(), inputSize, fs, step, c, pad, f,
+													abs? PoolingTypes.MaxAbs:PoolingTypes.Max, lr);
+		r.hwc = hwc;
+		return r;
+	}
+	
+	/**
+	 * Sets the memory layout of the input and output maps and rearranges
+	 * the filters to match.
+	 * 
+	 * @param layout Memory layout.
+	 */
+	@Override
+	public void setLayout(Layout layout) {
+		for(Filter fk : filters)
+			fk.setLayout(layout);
+		hwc = (layout == Layout.HWC);
+	}
+	
+	/**
+	 * Sets the learning rate.
+	 * 
+	 * @param learningRate Learning rate.
+	 */
+	public void setLR(double learningRate) {lr = learningRate;}
+	
+	/**
+	 * Sets the activation-memory mode of the activation function.
+	 * 
+	 * @param compact True if compact storage should be used.
+	 * 
+	 * @see Vector#setCompact(boolean)
+	 */
+	@Override
+	public void setCompact(boolean compact) {act.setCompact(compact);}
+	
+	/**@return True if the activation function maps zero to zero.*/
+	@Override
+	public boolean preservesZero() {return act.preservesZero();}
+	
+	/**Releases the stored output of the activation function and the selected indices.*/
+	@Override
+	public void release() {
+		in = null;
+		arg = null;
+		act.release();
+	}
+	
+	/**
+	 * A custom exception which indicates an error in the fused layer.
+	 * 
+	 * @author prgmTrouble
+	 */
+	private static class ActivationPoolException extends Exception {
+		/***/
+		private static final long serialVersionUID = 1L;
+		private static final String prefix = "Activation Pool Exception: ";
+		
+		public ActivationPoolException(String s) {super(prefix + s);}
+	}
+	
+	/**
+	 * Throws a {@linkplain ActivationPoolException} and terminates execution.
+	 * 
+	 * @param s Description of error.
+	 */
+	protected static void error(String s) {
+		try {
+			throw new ActivationPoolException(s);
+		} catch(ActivationPoolException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,342 @@
+package com.prgmtrouble.ml.prgmML.convolution;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+import com.prgmtrouble.ml.prgmML.generic.ListOfTypes;
+import com.prgmtrouble.ml.prgmML.generic.Parameter;
+import com.prgmtrouble.ml.prgmML.math.Tensor.Layout;
+
+/**
+ * A layer which scales and shifts each channel of its input maps by a learned
+ * amount, as used to normalize the output of a convolution. At inference, a
+ * layer which directly follows an {@linkplain Activation} can be folded into
+ * its filters and biases.
+ * 
+ * @author prgmTrouble
+ * 
+ * @see Activation#fold(AffineLayer)
+ * @see Convolution#fold()
+ */
+public class AffineLayer implements Serializable, ConvolutionLayer {
+	/***/
+	private static final long serialVersionUID = 1L;
+	
+	/**Input map side length.*/
+	private final int s;
+	/**Number of channels.*/
+	private final int c;
+	/**Scale of each channel.*/
+	private final double[] scale;
+	/**Shift of each channel.*/
+	private final double[] shift;
+	/**Learning rate.*/
+	private double lr;
+	/**True if the maps use the {@linkplain Layout#HWC} layout.*/
+	private boolean hwc;
+	/**Input of the last feed-forward operation.*/
+	private transient double[] in;
+	/**Number of images in the last batch, or zero if the last input was a single image.*/
+	private transient int batch;
+	/**Number of images the buffers were planned for, or zero if no plan was built.*/
+	private transient int planned;
+	/**Planned buffer for the output.*/
+	private transient double[] outBuffer;
+	/**Planned buffer for the gradient with respect to the input.*/
+	private transient double[] gradBuffer;
+	/**Gradient with respect to the scale of each channel.*/
+	private transient double[] scaleGrad;
+	/**Gradient with respect to the shift of each channel.*/
+	private transient double[] shiftGrad;
+	/**Type for creating new {@linkplain Parameter} objects.*/
+	private static final ListOfTypes outputType = new ListOfTypes(new Class<?>[] {double[].class});
+	
+	/**
+	 * Creates an identity affine layer.
+	 * 
+	 * @param size Input map side length.
+	 * @param channels Number of channels.
+	 * @param learningRate Learning rate.
+	 */
+	public AffineLayer(int size, int channels, double learningRate) {
+		this(size, channels, new double[channels], new double[channels], learningRate);
+		Arrays.fill(scale, 1.0);
+	}
+	
+	/**
+	 * Creates an affine layer with the given transform.
+	 * 
+	 * @param size Input map side length.
+	 * @param channels Number of channels.
+	 * @param scale Scale of each channel.
+	 * @param shift Shift of each channel.
+	 * @param learningRate Learning rate.
+	 */
+	public AffineLayer(int size, int channels, double[] scale, double[] shift, double learningRate) {
+		if(scale.length != channels || shift.length != channels)
+			error("Transform does not match the number of channels.");
+		s = size;
+		c = channels;
+		this.scale = scale;
+		this.shift = shift;
+		lr = learningRate;
+	}
+	
+	/**
+	 * Applies the transform to a batch of input maps.
+	 * 
+	 * @param x Flattened input maps, indexed by image.
+	 * @param n Number of images.
+	 * @param out Buffer for the output maps.
+	 * @return The flattened output maps.
+	 */
+	private double[] transform(double[] x, int n, double[] out) {
+		final int sq = s * s;
+		for(int b = 0; b < n; b++) { //For each image:
+			final int io = b * c * sq; //Offset of the image.
+			if(hwc)
+				for(int p = 0; p < sq; p++) //For each position:
+					for(int ch = 0, i = io + p * c; ch < c; ch++, i++)
+						out[i] = x[i] * scale[ch] + shift[ch];
+			else
+				for(int ch = 0; ch < c; ch++) { //For each channel:
+					final double a = scale[ch], t = shift[ch];
+					for(int i = io + ch * sq, e = i + sq; i < e; i++)
+						out[i] = x[i] * a + t;
+				}
+		}
+		return out;
+	}
+	
+	/**
+	 * Computes the gradient with respect to the input, then updates the
+	 * transform once using its gradient summed across the batch.
+	 * 
+	 * @param loss Flattened gradient with respect to the output maps, indexed by image.
+	 * @param n Number of images.
+	 * @param di Buffer for the gradient with respect to the input maps.
+	 * @return The flattened gradient with respect to the input maps.
+	 */
+	private double[] backTransform(double[] loss, int n, double[] di) {
+		if(in == null)
+			error("Feed-forward function has not been called for the current cycle.");
+		if(loss.length != n * inputLength())
+			error("Invalid gradient size.");
+		final int sq = s * s;
+		if(scaleGrad == null) {
+			scaleGrad = new double[c];
+			shiftGrad = new double[c];
+		}
+		final double[] ds = scaleGrad,
+					   dt = shiftGrad;
+		Arrays.fill(ds, 0.0);
+		Arrays.fill(dt, 0.0);
+		for(int b = 0; b < n; b++) { //For each image:
+			final int io = b * c * sq; //Offset of the image.
+			if(hwc)
+				for(int p = 0; p < sq; p++) //For each position:
+					for(int ch = 0, i = io + p * c; ch < c; ch++, i++) {
+						final double g = loss[i];
+						ds[ch] += g * in[i];
+						dt[ch] += g;
+						di[i] = g * scale[ch];
+					}
+			else
+				for(int ch = 0; ch < c; ch++) { //For each channel:
+					final double a = scale[ch];
+					double gs = 0.0, gt = 0.0;
+					for(int i = io + ch * sq, e = i + sq; i < e; i++) {
+						final double g = loss[i];
+						gs += g * in[i];
+						gt += g;
+						di[i] = g * a;
+					}
+					ds[ch] += gs;
+					dt[ch] += gt;
+				}
+		}
+		for(int ch = 0; ch < c; ch++) { //For each channel:
+			scale[ch] -= ds[ch] * lr;
+			shift[ch] -= dt[ch] * lr;
+		}
+		return di;
+	}
+	
+	/**
+	 * Performs the feed-forward operation.
+	 * 
+	 * @param input Flattened input map (<code>double[]</code>) wrapped in a {@linkplain Parameter}.
+	 * @return Flattened output map (<code>double[]</code>) wrapped in a {@linkplain Parameter}.
+	 */
+	@Override
+	public Parameter<ListOfTypes> forward(Parameter<ListOfTypes> input) {
+		final double[] x = (double[]) input.getValues()[0];
+		if(x.length != inputLength())
+			error("Invalid input size.");
+		batch = 0;
+		return new Parameter<ListOfTypes>(outputType, new Object[] {transform(in = x, 1, new double[x.length])});
+	}
+	
+	/**
+	 * Performs the backpropagation operation.
+	 * 
+	 * @param loss Gradient with respect to the output (<code>double[]</code>) wrapped in a {@linkplain Parameter}.
+	 * @return Gradient with respect to the input (<code>double[]</code>) wrapped in a {@linkplain Parameter}.
+	 */
+	@Override
+	public Parameter<ListOfTypes> backward(Parameter<ListOfTypes> loss) {
+		if(batch != 0)
+			error("The last feed-forward operation was batched.");
+		return new Parameter<ListOfTypes>(outputType, new Object[] {backTransform((double[]) loss.getValues()[0], 1, new double[inputLength()])});
+	}
+	
+	/**
+	 * Performs the feed-forward operation for a batch of input maps. If a plan
+	 * was built for <code>n</code> images, the planned buffers are used and the
+	 * returned array is overwritten by the next call.
+	 * 
+	 * @param input Flattened input maps, indexed by image.
+	 * @param n Number of images.
+	 * @return Flattened output maps, indexed by image.
+	 */
+	@Override
+	public double[] forward(double[] input, int n) {
+		if(input.length != n * inputLength())
+			error("Invalid input size.");
+		batch = n;
+		return transform(in = input, n, (n == planned)? outBuffer:new double[input.length]);
+	}
+	
+	/**
+	 * Performs the backpropagation operation for a batch of gradients. The
+	 * transform is updated once using its gradient summed across the batch.
+	 * If a plan was built for <code>n</code> images, the planned buffers are
+	 * used and the returned array is overwritten by the next call.
+	 * 
+	 * @param loss Flattened gradients with respect to the output maps, indexed by image.
+	 * @param n Number of images.
+	 * @return Flattened gradients with respect to the input maps, indexed by image.
+	 */
+	@Override
+	public double[] backward(double[] loss, int n) {
+		if(batch != n)
+			error("Batch size does not match the last feed-forward operation.");
+		return backTransform(loss, n, (n == planned)? gradBuffer:new double[loss.length]);
+	}
+	
+	/**
+	 * Allocates the buffers used by {@linkplain #forward(double[], int)} and
+	 * {@linkplain #backward(double[], int)} for batches of <code>n</code> images.
+	 * 
+	 * @param n Number of images.
+	 */
+	@Override
+	public void plan(int n) {
+		if(n <= 0)
+			error("Invalid batch size.");
+		outBuffer = new double[n * inputLength()];
+		gradBuffer = new double[n * inputLength()];
+		planned = n;
+	}
+	
+	/**@return Size of one flattened input map.*/
+	@Override
+	public int inputLength() {return c * s * s;}
+	
+	/**@return Size of one flattened output map.*/
+	@Override
+	public int outputLength() {return c * s * s;}
+	
+	/**@return Number of input channels.*/
+	@Override
+	public int inputChannels() {return c;}
+	
+	/**@return Number of output channels.*/
+	@Override
+	public int outputChannels() {return c;}
+	
+	/**@return Scale of each channel.*/
+	public double[] scale() {return scale;}
+	
+	/**@return Shift of each channel.*/
+	public double[] shift() {return shift;}
+	
+	/**
+	 * Sets the memory layout of the input and output maps.
+	 * 
+	 * @param layout Memory layout.
+	 */
+	@Override
+	public void setLayout(Layout layout) {hwc = (layout == Layout.HWC);}
+	
+	/**@return Input map side length, and a 1x1 window with no padding.*/
+	@Override
+	public int[] geometry() {return new int[] {s, 1, 1, 0};}
+	
+	/**
+	 * Creates an affine layer which shares the transform of this layer for
+	 * input maps with another side length.
+	 * 
+	 * @param inputSize Input map side length.
+	 * @param pad Must be zero.
+	 * @return The resized layer.
+	 */
+	@Override
+	public AffineLayer resize(int inputSize, int pad) {
+		if(pad != 0)
+			error("Affine layers do not support padding.");
+		final AffineLayer r = new AffineLayer(inputSize, c, scale, shift, lr);
+		r.hwc = hwc;
+		return r;
+	}
+	
+	/**
+	 * Sets the learning rate.
+	 * 
+	 * @param learningRate Learning rate.
+	 */
+	public void setLR(double learningRate) {lr = learningRate;}
+	
+	/**
+	 * Does nothing, since the layer only stores a reference to its input.
+	 * 
+	 * @param compact Ignored.
+	 */
+	@Override
+	public void setCompact(boolean compact) {}
+	
+	/**@return True, since the layer applies no function before its windows.*/
+	@Override
+	public boolean preservesZero() {return true;}
+	
+	/**Releases the stored input.*/
+	@Override
+	public void release() {in = null;}
+	
+	/**
+	 * A custom exception which indicates an error in the affine layer.
+	 * 
+	 * @author prgmTrouble
+	 */
+	private static class AffineLayerException extends Exception {
+		/***/
+		private static final long serialVersionUID = 1L;
+		private static final String prefix = "Affine Layer Exception: ";
+		
+		public AffineLayerException(String s) {super(prefix + s);}
+	}
+	
+	/**
+	 * Throws a {@linkplain AffineLayerException} and terminates execution.
+	 * 
+	 * @param s Description of error.
+	 */
+	protected static void error(String s) {
+		try {
+			throw new AffineLayerException(s);
+		} catch(AffineLayerException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+}
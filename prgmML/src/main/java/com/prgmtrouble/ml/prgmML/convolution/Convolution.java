@@ -1,6 +1,7 @@
 package com.prgmtrouble.ml.prgmML.convolution;
 
 import java.io.Serializable;
+import java.util.Arrays;
 
 import org.apache.commons.lang3.ArrayUtils;
 
@@ -8,6 +9,9 @@ import com.prgmtrouble.ml.prgmML.convolution.Pool.PoolingTypes;
 import com.prgmtrouble.ml.prgmML.generic.ListOfTypes;
 import com.prgmtrouble.ml.prgmML.generic.Parameter;
 import com.prgmtrouble.ml.prgmML.math.FunctionTypes;
+import com.prgmtrouble.ml.prgmML.math.Miscellaneous;
+import com.prgmtrouble.ml.prgmML.math.Tensor;
+import com.prgmtrouble.ml.prgmML.math.Tensor.Layout;
 
 /**
  * An object for managing convolution networks.
@@ -27,7 +31,15 @@ public class Convolution implements Serializable {
 		/**@see Activation*/
 		Activation,
 		/**@see Pool*/
-		Pool;
+		Pool,
+		/**@see GroupedActivation#depthwise(Filter[], FunctionTypes, int, int, int, int, int, double)*/
+		Depthwise,
+		/**@see GroupedActivation*/
+		Grouped,
+		/**@see TransposedActivation*/
+		Transposed,
+		/**@see AffineLayer*/
+		Affine;
 	}
 	
 	/**An array of {@linkplain ConvolutionLayer} objects.*/
@@ -36,6 +48,42 @@ public class Convolution implements Serializable {
 	private final ConvolutionLayer[] reverseNetwork;
 	/**True if {@linkplain #forward(Parameter)} function has been called.*/
 	private boolean forwardExecuted = false;
+	/**Number of layers per checkpoint segment, or zero if checkpointing is disabled.*/
+	private int interval = 0;
+	/**Inputs to each checkpoint segment.*/
+	private transient Parameter<ListOfTypes>[] checkpoints;
+	/**Number of activation values kept alive by the last feed-forward operation.*/
+	private transient long storedValues;
+	/**Number of activation values produced by the last feed-forward operation.*/
+	private transient long totalValues;
+	/**Memory layout used between layers.*/
+	private Layout layout = Layout.CHW;
+	/**Buffer for the network input, converted at the boundary.*/
+	private transient double[] inBuffer;
+	/**Buffer for the network output, converted at the boundary.*/
+	private transient double[] outBuffer;
+	/**Buffer for the gradient with respect to the network output, converted at the boundary.*/
+	private transient double[] lossBuffer;
+	/**Buffer for the gradient with respect to the network input, converted at the boundary.*/
+	private transient double[] gradBuffer;
+	/**Number of leading layers which are not trained by batched backpropagation.*/
+	private int frozen = 0;
+	/**Cache for the output of the frozen layers, or null if features are not cached.*/
+	private transient FeatureCache cache;
+	/**Buffer for the output of the frozen layers.*/
+	private transient double[] featureBuffer;
+	/**Buffer for the inputs of the samples which are not in the feature cache.*/
+	private transient double[] missBuffer;
+	/**Layers resized by {@linkplain #scan(double[], int, int)}.*/
+	private transient ConvolutionLayer[] scanNetwork;
+	/**Input map side length {@linkplain #scanNetwork} was built for.*/
+	private transient int scanSize;
+	/**Number of images {@linkplain #scanNetwork} was planned for.*/
+	private transient int scanBatch;
+	/**Version of each filter folded into {@linkplain #scanNetwork}, indexed by layer.*/
+	private transient int[][] scanVersions;
+	/**Scale and shift of each affine layer folded into {@linkplain #scanNetwork}, indexed by layer.*/
+	private transient double[][] scanTransforms;
 	
 	/**
 	 * Creates a new convolutional network.
@@ -60,19 +108,49 @@ public class Convolution implements Serializable {
 	 * 							   layer.
 	 * @param poolTypes The type of pooling function for each pooling layer, indexed
 	 * 					in order.
-	 * @param poolingFactors The scaling factor for each pooling layer.
+	 * @param poolingFactors The scaling factor for each pooling layer. For spatial pooling
+	 * 						 this is the window size, and the stride is derived from the
+	 * 						 layer sizes.
 	 * @param inputChannels The number of channels in the input map.
 	 * @param learningRate The initial learning rate for the network.
 	 */
 	public Convolution(int[] layerSizes, LayerTypes[] layerTypes, FunctionTypes[] activationTypes,
 				       int[][] activationDimensions, PoolingTypes[] poolTypes, int[] poolingFactors,
 				       int inputChannels, double learningRate) {
-		final int nl = layerTypes.length, //Number of convolution layers.
-				 rnl = nl - 1;
+		this(layerSizes, layerTypes, activationTypes, activationDimensions, poolTypes, poolingFactors, inputChannels, learningRate, false);
+	}
+	
+	/**
+	 * Same as {@linkplain #Convolution(int[], LayerTypes[], FunctionTypes[], int[][], PoolingTypes[], int[], int, double)},
+	 * except that each activation layer followed directly by a non-overlapping {@linkplain PoolingTypes#Max}
+	 * or {@linkplain PoolingTypes#MaxAbs} pooling layer may be replaced with a single {@linkplain ActivationPool}.
+	 * 
+	 * @param layerSizes Side length of each input map, including the size of the output.
+	 * @param layerTypes The type of each layer, indexed in order.
+	 * @param activationTypes Type of activation function for each activation layer,
+	 * 						  indexed in order.
+	 * @param activationDimensions Filter size, step, and count for each activation
+	 * 							   layer. Depthwise layers use the number of filters
+	 * 							   per input channel as the count, and grouped layers
+	 * 							   append the number of groups. Transposed layers
+	 * 							   use the step as the upsampling factor.
+	 * @param poolTypes The type of pooling function for each pooling layer, indexed
+	 * 					in order.
+	 * @param poolingFactors The scaling factor for each pooling layer. For spatial pooling
+	 * 						 this is the window size, and the stride is derived from the
+	 * 						 layer sizes.
+	 * @param inputChannels The number of channels in the input map.
+	 * @param learningRate The initial learning rate for the network.
+	 * @param fuse True if activation and max pooling layers should be fused.
+	 */
+	public Convolution(int[] layerSizes, LayerTypes[] layerTypes, FunctionTypes[] activationTypes,
+				       int[][] activationDimensions, PoolingTypes[] poolTypes, int[] poolingFactors,
+				       int inputChannels, double learningRate, boolean fuse) {
+		final int nl = layerTypes.length; //Number of convolution layers.
 		int aidx = 0, //Activation layer counter.
-			pidx = 0; //Pooling layer counter.
-		network = new ConvolutionLayer[nl];
-		reverseNetwork = new ConvolutionLayer[nl];
+			pidx = 0, //Pooling layer counter.
+			count = 0; //Number of created layers.
+		final ConvolutionLayer[] layers = new ConvolutionLayer[nl];
 		for(int l = 0; l < nl; l++) { //For each layer:
 			final int si = layerSizes[l], //Size of input.
 					  so = layerSizes[l + 1]; //Size of output.
@@ -87,11 +165,57 @@ public class Convolution implements Serializable {
 					final Filter[] filters = new Filter[ct]; //Filters.
 					for(int f = 0; f < ct; f++) //For each filter:
 						filters[f] = new Filter(fs, inputChannels, st); //Create new.
-					//Create new activation layer.
-					network[l] = reverseNetwork[rnl - l] 
-							= new Activation(filters, activationTypes[aidx++], si, fs, st, inputChannels, ((so - 1) * st + fs - si) / 2, so, learningRate);
+					final int pad = ((so - 1) * st + fs - si) / 2; //Padding.
+					if(fuse && l + 1 < nl && layerTypes[l + 1] == LayerTypes.Pool &&
+					   (poolTypes[pidx] == PoolingTypes.Max || poolTypes[pidx] == PoolingTypes.MaxAbs) &&
+					   layerSizes[l + 2] * poolingFactors[pidx] == so) { //If the next layer is non-overlapping max pooling:
+						//Create new fused layer.
+						layers[count++] = new ActivationPool(filters, activationTypes[aidx++], si, fs, st, inputChannels, pad,
+															 poolingFactors[pidx], poolTypes[pidx++], learningRate);
+						l++; //Skip the pooling layer.
+					} else //Create new activation layer.
+						layers[count++] = new Activation(filters, activationTypes[aidx++], si, fs, st, inputChannels, pad, so, learningRate);
+					inputChannels = ct; //Update number of channels.
+				} break;
+			case Depthwise:
+			case Grouped:
+				{
+					final int[] fDim = activationDimensions[aidx]; //Dimensions of activation function.
+					final int fs = fDim[0], //Filter size.
+							  st = fDim[1], //Step size.
+							  g = (layerTypes[l] == LayerTypes.Depthwise)? inputChannels:fDim[3], //Number of groups.
+							  ct = (layerTypes[l] == LayerTypes.Depthwise)? inputChannels * fDim[2]:fDim[2]; //Filter count.
+					if(inputChannels % g != 0)
+						error("Groups must divide the input channels.");
+					final Filter[] filters = new Filter[ct]; //Filters.
+					for(int f = 0; f < ct; f++) //For each filter:
+						filters[f] = new Filter(fs, inputChannels / g, st); //Create new.
+					final int pad = ((so - 1) * st + fs - si) / 2; //Padding.
+					//Create new grouped layer.
+					layers[count++] = new GroupedActivation(filters, activationTypes[aidx++], si, fs, st, inputChannels, pad, g, learningRate);
 					inputChannels = ct; //Update number of channels.
 				} break;
+			case Transposed:
+				{
+					final int[] fDim = activationDimensions[aidx]; //Dimensions of activation function.
+					final int fs = fDim[0], //Filter size.
+							  st = fDim[1], //Step size.
+							  ct = fDim[2], //Filter count.
+							  crop = (si - 1) * st + fs - so; //Total padding removed from the output.
+					if(crop < 0 || crop % 2 != 0)
+						error("Transposed layer " + l + " cannot produce the output size.");
+					final Filter[] filters = new Filter[ct]; //Filters.
+					for(int f = 0; f < ct; f++) //For each filter:
+						filters[f] = new Filter(fs, inputChannels, st); //Create new.
+					//Create new transposed layer.
+					layers[count++] = new TransposedActivation(filters, activationTypes[aidx++], si, fs, st, inputChannels, crop / 2, learningRate);
+					inputChannels = ct; //Update number of channels.
+				} break;
+			case Affine:
+				if(si != so)
+					error("Affine layer " + l + " cannot change the map size.");
+				layers[count++] = new AffineLayer(si, inputChannels, learningRate); //Create new affine layer.
+				break;
 			case Pool:
 				{
 					final PoolingTypes t = poolTypes[pidx]; //Pooling type.
@@ -99,15 +223,27 @@ public class Convolution implements Serializable {
 					switch (t) {
 					case MaxC	:
 					case MaxAbsC:
+					case AvgC	:
+					case GlobalAvg:layers[count++] = new Pool(si, inputChannels, f, t); break; //Create new pooling layer.
+					default		:
+						if((so > 1)? (si < f || (si - f) % (so - 1) != 0 || si - f < so - 1):(si != f))
+							error("Pooling layer " + l + " cannot produce the output size.");
+						layers[count++] = new Pool(si, inputChannels, f, (so > 1)? (si - f) / (so - 1):f, t); break;
+					}
+					if(layers[count - 1].outputLength() != layers[count - 1].outputChannels() * so * so)
+						error("Pooling layer " + l + " cannot produce the output size.");
+					switch (t) {
+					case MaxC	:
+					case MaxAbsC:
 					case AvgC	:inputChannels /= f; break;
 					default		:break;
 					}
-					network[l] = reverseNetwork[rnl - l] 
-							= new Pool(si, inputChannels, f, t); //Create new pooling layer.
 				} break;
 			default: error("Invalid layer type."); break;
 			}
 		}
+		network = ArrayUtils.subarray(layers, 0, count);
+		ArrayUtils.reverse(reverseNetwork = ArrayUtils.clone(network));
 	}
 	
 	/**
@@ -116,12 +252,30 @@ public class Convolution implements Serializable {
 	 * @param input Flattened input tensor (<code>double[]</code>) wrapped in
 	 * 				a {@linkplain Parameter}.
 	 * @return Flattened output vector (<code>double[]</code>) wrapped in
-	 * 		   the input {@linkplain Parameter}.
+	 * 		   a {@linkplain Parameter}.
 	 */
 	public Parameter<ListOfTypes> forward(Parameter<ListOfTypes> input) {
-		for(ConvolutionLayer layer : network)
-			input = layer.forward(input);
+		final int nl = network.length,
+				  ls = lastSegment(); //First layer of the last segment.
+		storedValues = totalValues = 0L;
+		if(hwc()) //Convert a copy so the caller's parameter keeps its layout.
+			input = wrap(input, convert((double[]) input.getValues()[0], 1, network[0].inputChannels(), true, null));
+		for(int l = 0; l < nl; l++) { //For each layer:
+			if(interval > 0 && l % interval == 0 && l < ls) { //If the layer starts a segment which will be recomputed:
+				checkpoints()[l / interval] = input; //Record segment input.
+				storedValues += length(input);
+			}
+			input = network[l].forward(input);
+			final long n = length(input);
+			totalValues += n;
+			if(interval > 0 && l < ls) //If the layer will be recomputed:
+				network[l].release(); //Release its state.
+			else
+				storedValues += n;
+		}
 		forwardExecuted = true;
+		if(hwc())
+			input = wrap(input, convert((double[]) input.getValues()[0], 1, network[nl - 1].outputChannels(), false, null));
 		return input;
 	}
 	
@@ -132,17 +286,498 @@ public class Convolution implements Serializable {
 	 * 			   respect to the convolution output wrapped in a
 	 * 			   {@linkplain Parameter}.
 	 * @return Gradient with respect to the input tensor (<code>double[]</code>)
-	 * 		   wrapped in the input {@linkplain Parameter}.
+	 * 		   wrapped in a {@linkplain Parameter}.
 	 */
 	public Parameter<ListOfTypes> backward(Parameter<ListOfTypes> loss) {
 		if(!forwardExecuted)
 			error("Feed-forward function has not been called for the current cycle.");
 		forwardExecuted = false;
-		for(ConvolutionLayer layer : reverseNetwork)
-			loss = layer.backward(loss);
+		if(hwc()) //Convert a copy so the caller's parameter keeps its layout.
+			loss = wrap(loss, convert((double[]) loss.getValues()[0], 1, network[network.length - 1].outputChannels(), true, null));
+		if(interval <= 0) { //If checkpointing is disabled:
+			for(ConvolutionLayer layer : reverseNetwork)
+				loss = layer.backward(loss);
+			return toCHW(loss);
+		}
+		final int nl = network.length;
+		for(int seg = (nl - 1) / interval; seg >= 0; seg--) { //For each segment starting from last:
+			final int start = seg * interval, //First layer in segment.
+					  end = Math.min(start + interval, nl); //Last layer in segment, exclusive.
+			if(end < nl) { //If the segment was released:
+				Parameter<ListOfTypes> in = checkpoints[seg];
+				checkpoints[seg] = null;
+				for(int l = start; l < end; l++) //Recompute the segment.
+					in = network[l].forward(in);
+			}
+			for(int l = end - 1; l >= start; l--) { //For each layer in segment starting from last:
+				loss = network[l].backward(loss);
+				network[l].release(); //Release its state.
+			}
+		}
+		return toCHW(loss);
+	}
+	
+	/**
+	 * Converts the gradient with respect to the network input back to the
+	 * {@linkplain Layout#CHW} layout if necessary.
+	 * 
+	 * @param loss Gradient with respect to the first layer's input.
+	 * @return <code>loss</code>, or a converted copy.
+	 */
+	private Parameter<ListOfTypes> toCHW(Parameter<ListOfTypes> loss) {
+		if(hwc())
+			loss = wrap(loss, convert((double[]) loss.getValues()[0], 1, network[0].inputChannels(), false, null));
 		return loss;
 	}
 	
+	/**
+	 * @param p A {@linkplain Parameter} containing a flattened tensor.
+	 * @param tensor Flattened tensor.
+	 * @return A new {@linkplain Parameter} with the types of <code>p</code> containing <code>tensor</code>.
+	 */
+	private static Parameter<ListOfTypes> wrap(Parameter<ListOfTypes> p, double[] tensor) {
+		return new Parameter<ListOfTypes>(p.getTypes(), new Object[] {tensor});
+	}
+	
+	/**
+	 * Builds a static execution plan for batches of <code>n</code> images. The
+	 * shape of each layer is validated once against the layer before it, and
+	 * each layer allocates the buffers its batched operations write into.
+	 * Batched feed-forward and backpropagation operations for <code>n</code>
+	 * images then run without allocating.
+	 * 
+	 * @param n Number of images.
+	 * 
+	 * @see ConvolutionLayer#plan(int)
+	 */
+	public void plan(int n) {
+		if(n <= 0)
+			error("Invalid batch size.");
+		for(int l = 0; l < network.length; l++) { //For each layer:
+			network[l].plan(n);
+			if(l > 0 && network[l - 1].outputLength() != network[l].inputLength())
+				error("Output of layer " + (l - 1) + " does not match the input of layer " + l + ".");
+		}
+	}
+	
+	/**
+	 * Builds a static execution plan for batches of <code>n</code> images and
+	 * picks the fastest algorithm for each {@linkplain Activation} layer. Other
+	 * layer types keep their fixed kernels.
+	 * 
+	 * @param n Number of images.
+	 * @param tuner Tuner which benchmarks the layers or reads their results from its tuning file.
+	 * 
+	 * @see #plan(int)
+	 */
+	public void plan(int n, ConvolutionTuner tuner) {
+		plan(n);
+		for(ConvolutionLayer l : network) //For each layer:
+			if(l instanceof Activation)
+				tuner.tune((Activation) l, n);
+	}
+	
+	/**
+	 * Performs the feed-forward operation across all layers in the network for
+	 * a batch of inputs. Activation checkpointing is not applied to batches.
+	 * 
+	 * @param input Flattened input tensors, indexed by image, then by channel,
+	 * 				row, and column.
+	 * @param n Number of images.
+	 * @return Flattened output tensors, indexed by image, then by channel,
+	 * 		   row, and column.
+	 */
+	public double[] forward(double[] input, int n) {
+		input = forward(network, input, n);
+		forwardExecuted = true;
+		return input;
+	}
+	
+	/**
+	 * Performs the feed-forward operation across the given layers for a batch of inputs.
+	 * 
+	 * @param layers Layers.
+	 * @param input Flattened input tensors, indexed by image.
+	 * @param n Number of images.
+	 * @return Flattened output tensors, indexed by image.
+	 */
+	private double[] forward(ConvolutionLayer[] layers, double[] input, int n) {
+		if(hwc())
+			input = convert(input, n, layers[0].inputChannels(), true, inBuffer = fit(inBuffer, input.length));
+		for(ConvolutionLayer layer : layers)
+			input = layer.forward(input, n);
+		if(hwc())
+			input = convert(input, n, layers[layers.length - 1].outputChannels(), false, outBuffer = fit(outBuffer, input.length));
+		return input;
+	}
+	
+	/**
+	 * Runs the network once over input maps which are larger than the input of the
+	 * network, producing the outputs of every window of the original input size at
+	 * once. Overlapping windows share the work of their common region instead of
+	 * being convolved again for each window. <br>
+	 * Windows are spaced by {@linkplain #scanStride()}. The output of the window at
+	 * row <code>y * scanStride()</code> and column <code>x * scanStride()</code> is the
+	 * block of each output channel starting at row <code>y</code> and column <code>x</code>
+	 * with the side length of the original output. Networks which reduce each window
+	 * to one element per channel produce one element per window. <br>
+	 * Every window gives the same output as {@linkplain #forward(double[], int)} over
+	 * that window alone, so no layer may pad its input. Global pooling slides over
+	 * the larger maps with a window the size of its original input. <br>
+	 * Affine layers are folded into the layers before them where possible. The
+	 * folded layers are rebuilt when the filters or transforms they were folded
+	 * from change, so scans remain current while the network is trained.
+	 * 
+	 * @param input Flattened input tensors, indexed by image, then by channel,
+	 * 				row, and column.
+	 * @param n Number of images.
+	 * @param size Side length of the input maps.
+	 * @return Flattened output maps, indexed by image, then by channel, row, and column.
+	 * 
+	 * @see ConvolutionLayer#resize(int, int)
+	 */
+	public double[] scan(double[] input, int n, int size) {
+		if(n <= 0)
+			error("Invalid batch size.");
+		if(!scanCurrent() || scanNetwork == null || scanSize != size || scanBatch != n) { //If the resized layers cannot be reused:
+			scanNetwork = resize(size);
+			for(ConvolutionLayer l : scanNetwork)
+				l.plan(n);
+			scanSize = size;
+			scanBatch = n;
+		}
+		if(input.length != n * scanNetwork[0].inputLength())
+			error("Invalid input size.");
+		return forward(scanNetwork, input, n);
+	}
+	
+	/**
+	 * Checks whether the layers folded into {@linkplain #scanNetwork} are current,
+	 * and records the current filters and transforms of the layers which fold.
+	 * 
+	 * @return True if no filter or transform folded into the scan layers has
+	 * 		   changed since they were built.
+	 * 
+	 * @see Filter#current(Filter[], int[])
+	 */
+	private boolean scanCurrent() {
+		if(scanVersions == null || scanVersions.length != network.length) {
+			scanVersions = new int[network.length][];
+			scanTransforms = new double[network.length][];
+		}
+		boolean current = true;
+		for(int l = 0; l + 1 < network.length; l++) //For each layer:
+			if(network[l] instanceof Activation && network[l + 1] instanceof AffineLayer) { //If the layers are folded:
+				final Filter[] filters = ((Activation) network[l]).getFilters();
+				if(scanVersions[l] == null || scanVersions[l].length != filters.length) {
+					scanVersions[l] = new int[filters.length];
+					current = false;
+				}
+				if(!Filter.current(filters, scanVersions[l]))
+					current = false;
+				final AffineLayer a = (AffineLayer) network[l + 1];
+				final double[] t = ArrayUtils.addAll(a.scale(), a.shift()); //Transform of the affine layer.
+				if(!Arrays.equals(t, scanTransforms[l])) {
+					scanTransforms[l] = t;
+					current = false;
+				}
+			}
+		return current;
+	}
+	
+	/**
+	 * Folds and resizes each layer for {@linkplain #scan(double[], int, int)}.
+	 * Layers which are not folded share the filters and transforms of the network.
+	 * 
+	 * @param size Side length of the input maps.
+	 * @return The resized layers.
+	 */
+	private ConvolutionLayer[] resize(int size) {
+		final ConvolutionLayer[] folded = fold(network),
+								 layers = new ConvolutionLayer[folded.length];
+		int s = size; //Input size of the current layer.
+		for(int l = 0; l < folded.length; l++) { //For each layer:
+			final int[] g = folded[l].geometry();
+			if(g == null)
+				error("Layer " + l + " does not compute windows of its input.");
+			if(g[3] != 0)
+				error("Layer " + l + " pads its input, so windows would not match separate patches.");
+			if(s < g[0] || (s - g[1]) % g[2] != 0)
+				error("Input size does not align with the windows of layer " + l + ".");
+			layers[l] = folded[l].resize(s, 0);
+			s = (s - g[1]) / g[2] + 1;
+		}
+		if(hwc())
+			for(ConvolutionLayer l : layers)
+				l.setLayout(layout);
+		return layers;
+	}
+	
+	/**
+	 * Creates a network for inference in which every {@linkplain AffineLayer}
+	 * that directly follows an {@linkplain Activation} is folded into the filters
+	 * and biases of that layer. The new network shares every other layer with
+	 * this network.
+	 * 
+	 * @return The folded network.
+	 * 
+	 * @see Activation#fold(AffineLayer)
+	 */
+	public Convolution fold() {
+		final Convolution c = new Convolution(fold(network));
+		c.layout = layout;
+		return c;
+	}
+	
+	/**
+	 * @param layers Layers.
+	 * @return The layers, with every {@linkplain AffineLayer} that directly follows
+	 * 		   an {@linkplain Activation} folded into it.
+	 */
+	static ConvolutionLayer[] fold(ConvolutionLayer[] layers) {
+		final ConvolutionLayer[] folded = new ConvolutionLayer[layers.length];
+		int count = 0; //Number of folded layers.
+		for(int l = 0; l < layers.length; l++) //For each layer:
+			if(layers[l] instanceof Activation && l + 1 < layers.length && layers[l + 1] instanceof AffineLayer)
+				folded[count++] = ((Activation) layers[l]).fold((AffineLayer) layers[++l]);
+			else
+				folded[count++] = layers[l];
+		return ArrayUtils.subarray(folded, 0, count);
+	}
+	
+	/**@return Distance between adjacent windows of {@linkplain #scan(double[], int, int)} on the input maps.*/
+	public int scanStride() {
+		int s = 1;
+		for(ConvolutionLayer l : network) { //For each layer:
+			final int[] g = l.geometry();
+			if(g == null)
+				error("Layer does not compute windows of its input.");
+			s *= g[2];
+		}
+		return s;
+	}
+	
+	/**
+	 * Performs the backpropagation operation across all layers in the network
+	 * for a batch of gradients. Each filter is updated once using its gradient
+	 * summed across the batch.
+	 * 
+	 * @param loss Flattened gradient tensors with respect to the convolution
+	 * 			   outputs, indexed by image.
+	 * @param n Number of images.
+	 * @return Gradients with respect to the input tensors, indexed by image.
+	 */
+	public double[] backward(double[] loss, int n) {
+		if(!forwardExecuted)
+			error("Feed-forward function has not been called for the current cycle.");
+		forwardExecuted = false;
+		final int nl = network.length;
+		if(frozen == nl) //If no layer is trained:
+			return loss;
+		if(hwc())
+			loss = convert(loss, n, network[nl - 1].outputChannels(), true, lossBuffer = fit(lossBuffer, loss.length));
+		for(int l = nl - 1; l >= frozen; l--) //For each trained layer, starting from last:
+			loss = network[l].backward(loss, n);
+		if(hwc())
+			loss = convert(loss, n, network[frozen].inputChannels(), false, gradBuffer = fit(gradBuffer, loss.length));
+		return loss;
+	}
+	
+	/**
+	 * Performs the feed-forward operation for a batch of samples, reading the
+	 * output of the frozen layers from the feature cache. Samples which are not
+	 * in the cache are gathered into one batch, which runs through the frozen
+	 * layers once, and their features are then stored. If
+	 * no layer is frozen or no cache is set, this is the same as
+	 * {@linkplain #forward(double[], int)}.
+	 * 
+	 * @param input Flattened input tensors, indexed by image, then by channel,
+	 * 				row, and column.
+	 * @param n Number of images.
+	 * @param ids ID of each sample. Samples with the same ID must have the same input.
+	 * @return Flattened output tensors, indexed by image, then by channel,
+	 * 		   row, and column.
+	 * 
+	 * @see #setFrozen(int)
+	 * @see #setFeatureCache(FeatureCache)
+	 */
+	public double[] forward(double[] input, int n, long[] ids) {
+		if(frozen == 0 || cache == null)
+			return forward(input, n);
+		if(ids.length != n)
+			error("Number of sample IDs does not match the batch size.");
+		final int nl = network.length,
+				  il = network[0].inputLength(), //Size of one input.
+				  fl = network[frozen - 1].outputLength(); //Size of the features of one input.
+		final double[] features = featureBuffer = fit(featureBuffer, n * fl);
+		final int[] misses = new int[n]; //Index of each sample which is not cached.
+		int m = 0; //Number of samples which are not cached.
+		for(int b = 0; b < n; b++) //For each sample:
+			if(!cache.get(ids[b], features, b * fl, fl)) //If the features are not cached:
+				misses[m++] = b;
+		if(m != 0) { //If any sample is not cached:
+			double[] x = missBuffer = fit(missBuffer, m * il);
+			for(int i = 0; i < m; i++) //For each sample which is not cached:
+				System.arraycopy(input, misses[i] * il, x, i * il, il);
+			if(hwc())
+				x = convert(x, m, network[0].inputChannels(), true, inBuffer = fit(inBuffer, x.length));
+			for(int l = 0; l < frozen; l++) //For each frozen layer:
+				x = network[l].forward(x, m);
+			for(int i = 0; i < m; i++) { //For each sample which is not cached:
+				System.arraycopy(x, i * fl, features, misses[i] * fl, fl);
+				cache.put(ids[misses[i]], features, misses[i] * fl, fl);
+			}
+		}
+		double[] x = features;
+		for(int l = frozen; l < nl; l++) //For each trained layer:
+			x = network[l].forward(x, n);
+		forwardExecuted = true;
+		if(hwc())
+			x = convert(x, n, network[nl - 1].outputChannels(), false, outBuffer = fit(outBuffer, x.length));
+		return x;
+	}
+	
+	/**
+	 * Freezes the leading layers of the network. Batched backpropagation stops
+	 * at the first trained layer and returns the gradient with respect to its
+	 * input, so the frozen layers are never updated. Changing the number of
+	 * frozen layers clears the feature cache.
+	 * 
+	 * @param layers Number of leading layers to freeze.
+	 */
+	public void setFrozen(int layers) {
+		if(layers < 0 || layers > network.length)
+			error("Invalid number of frozen layers.");
+		if(layers != frozen && cache != null)
+			cache.clear();
+		frozen = layers;
+	}
+	
+	/**@return Number of leading layers which are not trained.*/
+	public int frozen() {return frozen;}
+	
+	/**
+	 * Sets the cache used by {@linkplain #forward(double[], int, long[])} for the
+	 * output of the frozen layers. Features are stored in the memory layout used
+	 * between layers.
+	 * 
+	 * @param cache Feature cache, or null to disable caching.
+	 */
+	public void setFeatureCache(FeatureCache cache) {this.cache = cache;}
+	
+	/**
+	 * Sets the memory layout used between layers. Inputs and outputs of the
+	 * network always use the {@linkplain Layout#CHW} layout; with
+	 * {@linkplain Layout#HWC} they are converted once at each end of the
+	 * network, and every layer and filter works in the channels-last layout
+	 * so that the channel loop of each convolution is contiguous.
+	 * 
+	 * @param layout Memory layout.
+	 * 
+	 * @see ConvolutionLayer#setLayout(Layout)
+	 */
+	public void setLayout(Layout layout) {
+		for(ConvolutionLayer l : network)
+			l.setLayout(layout);
+		this.layout = layout;
+		scanNetwork = null;
+	}
+	
+	/**@return True if the layers use the {@linkplain Layout#HWC} layout.*/
+	private boolean hwc() {return layout == Layout.HWC;}
+	
+	/**@return Layers of the network.*/
+	ConvolutionLayer[] layers() {return network;}
+	
+	/**@return Memory layout used between layers.*/
+	Layout layout() {return (layout == null)? Layout.CHW:layout;}
+	
+	/**
+	 * @param buffer A buffer, or null.
+	 * @param length Required length.
+	 * @return <code>buffer</code> if it has the required length, otherwise a new buffer.
+	 */
+	private static double[] fit(double[] buffer, int length) {return (buffer != null && buffer.length == length)? buffer:new double[length];}
+	
+	/**
+	 * Converts a batch of flattened tensors between the {@linkplain Layout#CHW}
+	 * and {@linkplain Layout#HWC} layouts.
+	 * 
+	 * @param in Flattened tensors, indexed by image.
+	 * @param n Number of images.
+	 * @param c Number of channels.
+	 * @param toHWC True to convert to {@linkplain Layout#HWC}, false to convert to {@linkplain Layout#CHW}.
+	 * @param out Buffer for the converted tensors, or null to allocate one.
+	 * @return The converted tensors.
+	 */
+	private static double[] convert(double[] in, int n, int c, boolean toHWC, double[] out) {
+		if(out == null)
+			out = new double[in.length];
+		final int ims = in.length / n, //Size of one image.
+				  sq = ims / c; //Elements per channel.
+		for(int b = 0; b < n; b++) //For each image:
+			if(toHWC)
+				Tensor.toHWC(in, b * ims, sq, c, out, b * ims);
+			else
+				Tensor.toCHW(in, b * ims, sq, c, out, b * ims);
+		return out;
+	}
+	
+	/**
+	 * Enables activation checkpointing. When enabled, the feed-forward operation
+	 * keeps only the input to each segment of <code>interval</code> layers and
+	 * releases the state of every layer outside of the last segment. The
+	 * backpropagation operation then recomputes each segment from its input
+	 * before propagating the gradient through it.
+	 * 
+	 * @param interval Number of layers per segment. Set to zero to disable.
+	 */
+	public void setCheckpointInterval(int interval) {
+		if(interval < 0)
+			error("Invalid checkpoint interval.");
+		this.interval = interval;
+		checkpoints = null;
+	}
+	
+	/**@return Inputs to each checkpoint segment, allocated on first use.*/
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private Parameter<ListOfTypes>[] checkpoints() {
+		if(checkpoints == null)
+			checkpoints = new Parameter[(network.length + interval - 1) / interval];
+		return checkpoints;
+	}
+	
+	/**
+	 * @return A description of the activation memory kept alive by the last
+	 * 		   feed-forward operation and the number of layers recomputed
+	 * 		   during each backpropagation operation.
+	 * 
+	 * @see #setCheckpointInterval(int)
+	 */
+	public String checkpointReport() {return Miscellaneous.checkpointReport(network.length, interval, storedValues, totalValues);}
+	
+	/**@return Index of the first layer in the last checkpoint segment.*/
+	private int lastSegment() {return (interval > 0)? ((network.length - 1) / interval) * interval:0;}
+	
+	/**
+	 * @param p A {@linkplain Parameter} containing a flattened tensor.
+	 * @return Length of the tensor.
+	 */
+	private static long length(Parameter<ListOfTypes> p) {return ((double[]) p.getValues()[0]).length;}
+	
+	/**
+	 * Sets the activation-memory mode for all layers in the network.
+	 * 
+	 * @param compact True if layers should store only the state required
+	 * 				  by their backward pass in a compact form.
+	 * 
+	 * @see ConvolutionLayer#setCompact(boolean)
+	 */
+	public void setCompact(boolean compact) {
+		for(ConvolutionLayer layer : network)
+			layer.setCompact(compact);
+	}
+	
 	/**
 	 * A custom exception which indicates an error in the convolutional network.
 	 * 
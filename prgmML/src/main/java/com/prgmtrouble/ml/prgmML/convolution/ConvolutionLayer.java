@@ -2,6 +2,7 @@ package com.prgmtrouble.ml.prgmML.convolution;
 
 import com.prgmtrouble.ml.prgmML.generic.ListOfTypes;
 import com.prgmtrouble.ml.prgmML.generic.Parameter;
+import com.prgmtrouble.ml.prgmML.math.Tensor.Layout;
 
 /**
  * An interface for types of convolution layers.
@@ -26,4 +27,92 @@ public interface ConvolutionLayer {
 	 */
 	public Parameter<ListOfTypes> backward(Parameter<ListOfTypes> loss);
 	
+	/**
+	 * Performs the feed-forward operation for a batch of inputs.
+	 * @param input Flattened input tensors, indexed by image, then by channel, row, and column.
+	 * @param n Number of images.
+	 * @return Flattened output tensors, indexed by image, then by channel, row, and column.
+	 */
+	public double[] forward(double[] input, int n);
+	
+	/**
+	 * Performs the backpropagation operation for a batch of gradients. Any
+	 * learned parameters are updated once using the gradient summed across
+	 * the batch.
+	 * @param loss Gradients with respect to the layer outputs, indexed by image.
+	 * @param n Number of images.
+	 * @return Gradients with respect to the layer inputs, indexed by image.
+	 */
+	public double[] backward(double[] loss, int n);
+	
+	/**
+	 * Validates the shape of the layer and allocates reusable buffers for
+	 * batches of <code>n</code> images. Batched operations with the planned
+	 * size then run without allocating, and their returned arrays are
+	 * overwritten by the next call.
+	 * @param n Number of images.
+	 */
+	public void plan(int n);
+	
+	/**@return Size of one flattened input tensor.*/
+	public int inputLength();
+	
+	/**@return Size of one flattened output tensor.*/
+	public int outputLength();
+	
+	/**@return Number of channels in the input tensor.*/
+	public int inputChannels();
+	
+	/**@return Number of channels in the output tensor.*/
+	public int outputChannels();
+	
+	/**
+	 * Sets the memory layout of the input and output tensors, along with
+	 * any learned parameters.
+	 * @param layout Memory layout.
+	 */
+	public void setLayout(Layout layout);
+	
+	/**
+	 * Describes the spatial window of the input which produces each output element.
+	 * @return Input map side length, window side length, distance between windows,
+	 * 		   and padding on each side of the input, or null if the output elements
+	 * 		   are not windows of the input.
+	 */
+	public int[] geometry();
+	
+	/**
+	 * @return True if the function this layer applies to each input element before
+	 * 		   its windows maps zero to zero, so that zeroing the input outside the map
+	 * 		   matches padding. Layers which apply no such function return true.
+	 */
+	public boolean preservesZero();
+	
+	/**
+	 * Creates a layer which applies the windows of this layer to input maps with
+	 * another side length. The new layer shares the learned parameters and memory
+	 * layout of this layer, so it is only meant for inference. It runs the activation
+	 * function of this layer with its own state, so it does not disturb the state
+	 * this layer records for backpropagation.
+	 * @param inputSize Input map side length.
+	 * @param pad Padding on each side of the input.
+	 * @return The resized layer.
+	 */
+	public ConvolutionLayer resize(int inputSize, int pad);
+	
+	/**
+	 * Sets the activation-memory mode for the layer. When enabled, the layer
+	 * stores only the state required by its backward pass in a compact form.
+	 * 
+	 * @param compact True if compact storage should be used.
+	 */
+	public void setCompact(boolean compact);
+	
+	/**
+	 * Releases any state stored by the feed-forward operation for use in the
+	 * backpropagation operation. The feed-forward operation must be run again
+	 * before the backpropagation operation may be used.
+	 */
+	public void release();
+	
 }
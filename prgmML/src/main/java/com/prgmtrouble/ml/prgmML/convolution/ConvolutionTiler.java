@@ -0,0 +1,316 @@
+package com.prgmtrouble.ml.prgmML.convolution;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.apache.commons.lang3.SerializationUtils;
+
+import com.prgmtrouble.ml.prgmML.math.Tensor;
+import com.prgmtrouble.ml.prgmML.math.Tensor.Layout;
+
+/**
+ * Runs the feed-forward operation of a {@linkplain Convolution} over a single
+ * large image one output tile at a time. Each tile reads the region of the
+ * input it depends on, including the halo required by the windows of every
+ * layer, so peak memory is set by the tile size rather than the image size.
+ * Tiles run in parallel, and the output of each tile is identical to the
+ * same region of the output over the whole image. <br>
+ * Padded borders are reproduced by zeroing the parts of each intermediate map
+ * which lie outside the image, so the activation function of each layer which
+ * pads its input must map zero to zero.
+ * 
+ * @author prgmTrouble
+ * 
+ * @see ConvolutionLayer#geometry()
+ */
+public class ConvolutionTiler {
+	
+	/**
+	 * Supplies regions of the input image. Regions are read concurrently.
+	 * 
+	 * @author prgmTrouble
+	 */
+	public static interface Source {
+		/**
+		 * Reads a square region of every channel of the input image.
+		 * 
+		 * @param row Row of the first element, which may be negative.
+		 * @param col Column of the first element, which may be negative.
+		 * @param side Side length of the region.
+		 * @param out Buffer for the region, indexed by channel, then by row and column.
+		 * 			  Elements which lie outside the image must be zero.
+		 */
+		public void read(int row, int col, int side, double[] out);
+	}
+	
+	/**
+	 * Receives tiles of the output maps. Disjoint tiles are written concurrently.
+	 * 
+	 * @author prgmTrouble
+	 */
+	public static interface Sink {
+		/**
+		 * Writes a tile of every output channel.
+		 * 
+		 * @param row Row of the first element of the tile.
+		 * @param col Column of the first element of the tile.
+		 * @param rows Number of rows of the tile inside the output maps.
+		 * @param cols Number of columns of the tile inside the output maps.
+		 * @param tile Tile, indexed by channel, then by row and column.
+		 * @param side Side length of the tile buffer.
+		 */
+		public void write(int row, int col, int rows, int cols, double[] tile, int side);
+	}
+	
+	/**Layers of the network.*/
+	private final ConvolutionLayer[] network;
+	/**Memory layout used between layers.*/
+	private final Layout layout;
+	/**Side length of the input map of each layer, and of the output maps.*/
+	private final int[] size;
+	/**Side length of the tile of the input map of each layer, and of the output tile.*/
+	private final int[] side;
+	/**Window side length, distance between windows, and padding of each layer.*/
+	private final int[][] geometry;
+	/**Number of tiles along each side of the output maps.*/
+	private final int tiles;
+	/**Number of input channels.*/
+	private final int c;
+	/**Number of output channels.*/
+	private final int k;
+	
+	/**
+	 * Creates a tiled execution plan. Affine layers are folded into the
+	 * layers before them where possible.
+	 * 
+	 * @param net Network.
+	 * @param size Side length of the input image.
+	 * @param tile Side length of each output tile.
+	 */
+	public ConvolutionTiler(Convolution net, int size, int tile) {
+		network = Convolution.fold(net.layers());
+		layout = net.layout();
+		final int nl = network.length;
+		if(tile <= 0)
+			error("Invalid tile size.");
+		this.size = new int[nl + 1];
+		side = new int[nl + 1];
+		geometry = new int[nl][];
+		this.size[0] = size;
+		for(int l = 0; l < nl; l++) { //For each layer:
+			final int[] g = network[l].geometry();
+			if(g == null)
+				error("Layer " + l + " does not compute windows of its input.");
+			if(g[3] != 0 && !network[l].preservesZero())
+				error("Layer " + l + " pads its input, but its activation function does not map zero to zero.");
+			final int span = this.size[l] + 2 * g[3] - g[1]; //Distance covered by the windows.
+			if(span < 0 || span % g[2] != 0)
+				error("Input size does not fit the windows of layer " + l + ".");
+			this.size[l + 1] = span / g[2] + 1;
+			geometry[l] = new int[] {g[1], g[2], g[3]};
+		}
+		side[nl] = Math.min(tile, this.size[nl]);
+		for(int l = nl - 1; l >= 0; l--) //For each layer, in reverse:
+			side[l] = (side[l + 1] - 1) * geometry[l][1] + geometry[l][0];
+		tiles = (this.size[nl] + side[nl] - 1) / side[nl];
+		c = network[0].inputChannels();
+		k = network[nl - 1].outputChannels();
+	}
+	
+	/**@return Side length of the output maps.*/
+	public int outputSize() {return size[size.length - 1];}
+	
+	/**@return Number of output channels.*/
+	public int outputChannels() {return k;}
+	
+	/**@return Number of values held by one tile across all layers, which bounds the memory used by each thread.*/
+	public long tileValues() {
+		long v = 0L;
+		for(int l = 0; l < network.length; l++) //For each layer:
+			v += (long) network[l].inputChannels() * side[l] * side[l];
+		return v + (long) k * side[side.length - 1] * side[side.length - 1];
+	}
+	
+	/**
+	 * Runs the network over the image.
+	 * 
+	 * @param in Source of the input image.
+	 * @param out Sink for the output maps.
+	 */
+	public void run(Source in, Sink out) {
+		final int workers = Math.min(tiles * tiles, ForkJoinPool.commonPool().getParallelism());
+		final Task task = new Task(in, out, 0, Math.max(workers, 1), Math.max(workers, 1));
+		if(workers > 1)
+			ForkJoinPool.commonPool().invoke(task);
+		else
+			task.compute();
+	}
+	
+	/**
+	 * Runs the network over an image which is held in memory. Only the
+	 * intermediate maps are tiled.
+	 * 
+	 * @param input Flattened input image, indexed by channel, then by row and column.
+	 * @return Flattened output maps, indexed by channel, then by row and column.
+	 */
+	public double[] run(final double[] input) {
+		final int is = size[0],
+				  os = outputSize();
+		if(input.length != c * is * is)
+			error("Invalid input size.");
+		final double[] output = new double[k * os * os];
+		run(new Source() {
+			@Override
+			public void read(int row, int col, int side, double[] out) {
+				Arrays.fill(out, 0.0);
+				final int r0 = Math.max(row, 0), r1 = Math.min(row + side, is), //Rows inside the image.
+						  c0 = Math.max(col, 0), c1 = Math.min(col + side, is); //Columns inside the image.
+				if(r0 >= r1 || c0 >= c1)
+					return;
+				for(int ch = 0; ch < c; ch++) //For each channel:
+					for(int r = r0; r < r1; r++) //For each row:
+						System.arraycopy(input, (ch * is + r) * is + c0, out, (ch * side + r - row) * side + c0 - col, c1 - c0);
+			}
+		}, new Sink() {
+			@Override
+			public void write(int row, int col, int rows, int cols, double[] tile, int side) {
+				for(int ch = 0; ch < k; ch++) //For each channel:
+					for(int r = 0; r < rows; r++) //For each row:
+						System.arraycopy(tile, (ch * side + r) * side, output, (ch * os + row + r) * os + col, cols);
+			}
+		});
+		return output;
+	}
+	
+	/**
+	 * Zeroes the elements of a tile which lie outside its map.
+	 * 
+	 * @param map Flattened tile.
+	 * @param ch Number of channels.
+	 * @param s Side length of the tile.
+	 * @param row Row of the first element of the tile in the map.
+	 * @param col Column of the first element of the tile in the map.
+	 * @param limit Side length of the map.
+	 * @param hwc True if the tile uses the {@linkplain Layout#HWC} layout.
+	 */
+	private static void clip(double[] map, int ch, int s, int row, int col, int limit, boolean hwc) {
+		if(row >= 0 && col >= 0 && row + s <= limit && col + s <= limit)
+			return;
+		for(int r = 0; r < s; r++) { //For each row:
+			final boolean outside = row + r < 0 || row + r >= limit; //True if the whole row is outside.
+			for(int x = 0; x < s; x++) //For each column:
+				if(outside || col + x < 0 || col + x >= limit) {
+					if(hwc)
+						Arrays.fill(map, (r * s + x) * ch, (r * s + x + 1) * ch, 0.0);
+					else
+						for(int z = 0; z < ch; z++) //For each channel:
+							map[(z * s + r) * s + x] = 0.0;
+				}
+		}
+	}
+	
+	/**
+	 * A task which runs every <code>stride</code>-th tile on a private copy of
+	 * the network, starting from each worker in its range.
+	 * 
+	 * @author prgmTrouble
+	 */
+	private final class Task extends RecursiveAction {
+		/***/
+		private static final long serialVersionUID = 1L;
+		
+		/**Source of the input image.*/
+		private final Source in;
+		/**Sink for the output maps.*/
+		private final Sink out;
+		/**First worker.*/
+		private final int lo;
+		/**End of the worker range.*/
+		private final int hi;
+		/**Number of workers.*/
+		private final int stride;
+		
+		public Task(Source in, Sink out, int lo, int hi, int stride) {
+			this.in = in;
+			this.out = out;
+			this.lo = lo;
+			this.hi = hi;
+			this.stride = stride;
+		}
+		
+		@Override
+		protected void compute() {
+			if(hi - lo > 1) { //If the range should be split:
+				final int mid = (lo + hi) >>> 1;
+				invokeAll(new Task(in, out, lo, mid, stride), new Task(in, out, mid, hi, stride));
+				return;
+			}
+			final int nl = network.length;
+			final boolean hwc = (layout == Layout.HWC);
+			final ConvolutionLayer[] copy = SerializationUtils.clone(network), //Activation functions keep state.
+									 layers = new ConvolutionLayer[nl];
+			for(int l = 0; l < nl; l++) { //For each layer:
+				layers[l] = copy[l].resize(side[l], 0);
+				layers[l].plan(1);
+			}
+			final double[] src = new double[c * side[0] * side[0]],
+						   tile = new double[k * side[nl] * side[nl]];
+			final double[] hwcIn = hwc? new double[src.length]:null;
+			final int[] rows = new int[nl + 1], //Row of the tile in the map of each layer.
+						cols = new int[nl + 1]; //Column of the tile in the map of each layer.
+			for(int t = lo; t < tiles * tiles; t += stride) { //For each tile of this worker:
+				rows[nl] = (t / tiles) * side[nl];
+				cols[nl] = (t % tiles) * side[nl];
+				for(int l = nl - 1; l >= 0; l--) { //For each layer, in reverse:
+					rows[l] = rows[l + 1] * geometry[l][1] - geometry[l][2];
+					cols[l] = cols[l + 1] * geometry[l][1] - geometry[l][2];
+				}
+				in.read(rows[0], cols[0], side[0], src);
+				double[] x = src;
+				if(hwc) {
+					Tensor.toHWC(src, 0, side[0] * side[0], c, hwcIn, 0);
+					x = hwcIn;
+				}
+				for(int l = 0; l < nl; l++) { //For each layer:
+					x = layers[l].forward(x, 1);
+					if(l + 1 < nl)
+						clip(x, layers[l].outputChannels(), side[l + 1], rows[l + 1], cols[l + 1], size[l + 1], hwc);
+				}
+				if(hwc)
+					Tensor.toCHW(x, 0, side[nl] * side[nl], k, tile, 0);
+				else
+					System.arraycopy(x, 0, tile, 0, tile.length);
+				out.write(rows[nl], cols[nl], Math.min(side[nl], size[nl] - rows[nl]),
+						  Math.min(side[nl], size[nl] - cols[nl]), tile, side[nl]);
+			}
+		}
+	}
+	
+	/**
+	 * A custom exception which indicates an error in the convolution tiler.
+	 * 
+	 * @author prgmTrouble
+	 */
+	private static class ConvolutionTilerException extends Exception {
+		/***/
+		private static final long serialVersionUID = 1L;
+		private static final String prefix = "Convolution Tiler Exception: ";
+		
+		public ConvolutionTilerException(String s) {super(prefix + s);}
+	}
+	
+	/**
+	 * Throws a {@linkplain ConvolutionTilerException} and terminates execution.
+	 * 
+	 * @param s Description of error.
+	 */
+	protected static void error(String s) {
+		try {
+			throw new ConvolutionTilerException(s);
+		} catch(ConvolutionTilerException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,197 @@
+package com.prgmtrouble.ml.prgmML.convolution;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.prgmtrouble.ml.prgmML.convolution.Activation.Algorithm;
+
+/**
+ * Picks the fastest {@linkplain Algorithm} for each {@linkplain Activation}
+ * layer by timing every algorithm on random data. Results are stored in a
+ * tuning file, keyed by the layer signature and the CPU, so that each shape
+ * is only tuned once per machine.
+ * 
+ * @author prgmTrouble
+ * 
+ * @see Convolution#plan(int, ConvolutionTuner)
+ */
+public class ConvolutionTuner {
+	/**Untimed runs before measuring.*/
+	private static final int WARMUP = 2;
+	/**Timed runs. The fastest one is kept.*/
+	private static final int TRIALS = 5;
+	
+	/**Tuning file.*/
+	private final File file;
+	/**Chosen algorithms, keyed by {@linkplain #key(Activation, int)}.*/
+	private final Properties cache = new Properties();
+	/**Identifies the CPU the results were measured on.*/
+	private final String cpu = cpu();
+	/**Number of shapes benchmarked since the tuner was created.*/
+	private int tuned = 0;
+	
+	/**
+	 * Creates a tuner which reads and writes the given tuning file.
+	 * 
+	 * @param file Tuning file. It is created when the first result is stored.
+	 */
+	public ConvolutionTuner(File file) {
+		this.file = file;
+		if(file.isFile())
+			try(InputStream in = new FileInputStream(file)) {
+				cache.load(in);
+			} catch(IOException e) {
+				error("Could not read tuning file " + file + ".");
+			}
+	}
+	
+	/**
+	 * Sets the algorithm of a planned layer, benchmarking it if its
+	 * signature is not in the tuning file. The learned parameters of the
+	 * layer are restored after benchmarking.
+	 * 
+	 * @param layer Layer which has been planned for <code>n</code> images.
+	 * @param n Number of images.
+	 * @return The chosen algorithm.
+	 */
+	public Algorithm tune(Activation layer, int n) {
+		final String key = key(layer, n);
+		final String stored = cache.getProperty(key);
+		if(stored != null)
+			for(Algorithm a : Algorithm.values()) //For each algorithm:
+				if(a.name().equals(stored)) {
+					layer.setAlgorithm(a);
+					return a;
+				}
+		
+		final Filter[] filters = layer.getFilters();
+		final double[][] saved = new double[filters.length][];
+		final double[] bias = new double[filters.length];
+		for(int k = 0; k < filters.length; k++) { //For each filter:
+			saved[k] = filters[k].get().clone();
+			bias[k] = filters[k].bias();
+		}
+		final ThreadLocalRandom r = ThreadLocalRandom.current();
+		final double[] in = new double[n * layer.inputLength()],
+					   loss = new double[n * layer.outputLength()];
+		for(int i = 0; i < in.length; i++)
+			in[i] = r.nextGaussian();
+		for(int i = 0; i < loss.length; i++)
+			loss[i] = r.nextGaussian() * 1e-3;
+		
+		Algorithm best = Algorithm.Direct;
+		long bestTime = Long.MAX_VALUE;
+		for(Algorithm a : Algorithm.values()) { //For each algorithm:
+			layer.setAlgorithm(a);
+			final long t = time(layer, in, loss, n);
+			if(t < bestTime) {
+				bestTime = t;
+				best = a;
+			}
+		}
+		for(int k = 0; k < filters.length; k++) { //For each filter:
+			System.arraycopy(saved[k], 0, filters[k].get(), 0, saved[k].length);
+			filters[k].setBias(bias[k]);
+			filters[k].invalidate();
+		}
+		layer.setAlgorithm(best);
+		cache.setProperty(key, best.name());
+		tuned++;
+		store();
+		return best;
+	}
+	
+	/**
+	 * @param layer Layer.
+	 * @param in Input batch.
+	 * @param loss Loss batch.
+	 * @param n Number of images.
+	 * @return The fastest time of one feed-forward and backpropagation pass, in nanoseconds.
+	 */
+	private static long time(Activation layer, double[] in, double[] loss, int n) {
+		long best = Long.MAX_VALUE;
+		for(int t = 0; t < WARMUP + TRIALS; t++) { //For each run:
+			final long start = System.nanoTime();
+			layer.forward(in, n);
+			layer.backward(loss, n);
+			final long elapsed = System.nanoTime() - start;
+			if(t >= WARMUP && elapsed < best)
+				best = elapsed;
+		}
+		return best;
+	}
+	
+	/**
+	 * @param layer Layer.
+	 * @param n Number of images.
+	 * @return The tuning file key of the layer.
+	 */
+	public String key(Activation layer, int n) {return cpu + "|" + layer.signature(n);}
+	
+	/**@return Number of shapes benchmarked since the tuner was created.*/
+	public int tuned() {return tuned;}
+	
+	/**Writes the tuning file.*/
+	private void store() {
+		final File dir = file.getAbsoluteFile().getParentFile();
+		if(dir != null && !dir.isDirectory() && !dir.mkdirs())
+			error("Could not create directory " + dir + ".");
+		try(OutputStream out = new FileOutputStream(file)) {
+			cache.store(out, "Convolution algorithms");
+		} catch(IOException e) {
+			error("Could not write tuning file " + file + ".");
+		}
+	}
+	
+	/**@return The architecture, processor count, and model name of the CPU.*/
+	private static String cpu() {
+		String model = "";
+		final File info = new File("/proc/cpuinfo");
+		if(info.isFile())
+			try(BufferedReader r = new BufferedReader(new FileReader(info))) {
+				String line;
+				while((line = r.readLine()) != null)
+					if(line.startsWith("model name")) {
+						model = line.substring(line.indexOf(':') + 1).trim();
+						break;
+					}
+			} catch(IOException e) {} //The model name is optional.
+		return System.getProperty("os.arch") + "x" + Runtime.getRuntime().availableProcessors() +
+			   (model.isEmpty()? "":"/" + model);
+	}
+	
+	/**
+	 * A custom exception which indicates an error in the convolution tuner.
+	 * 
+	 * @author prgmTrouble
+	 */
+	private static class ConvolutionTunerException extends Exception {
+		/***/
+		private static final long serialVersionUID = 1L;
+		private static final String prefix = "Convolution Tuner Exception: ";
+		
+		public ConvolutionTunerException(String s) {super(prefix + s);}
+	}
+	
+	/**
+	 * Throws a {@linkplain ConvolutionTunerException} and terminates execution.
+	 * 
+	 * @param s Description of error.
+	 */
+	protected static void error(String s) {
+		try {
+			throw new ConvolutionTunerException(s);
+		} catch(ConvolutionTunerException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,263 @@
+package com.prgmtrouble.ml.prgmML.convolution;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache of the features computed by the frozen layers of a
+ * {@linkplain Convolution}, keyed by sample ID. Features are kept in memory
+ * up to a size budget, and the least recently used entries are evicted first.
+ * If a directory is given, evicted entries are spilled to disk under a second
+ * budget and read back on their next use.
+ * 
+ * @author prgmTrouble
+ * 
+ * @see Convolution#setFeatureCache(FeatureCache)
+ */
+public class FeatureCache {
+	/**Bytes used by each feature value.*/
+	private static final int VALUE_BYTES = 8;
+	
+	/**Entries held in memory, in access order.*/
+	private final LinkedHashMap<Long, double[]> memory = new LinkedHashMap<Long, double[]>(16, 0.75f, true);
+	/**Length of each entry held on disk, in access order.*/
+	private final LinkedHashMap<Long, Integer> disk = new LinkedHashMap<Long, Integer>(16, 0.75f, true);
+	/**Maximum number of bytes held in memory.*/
+	private final long memoryBudget;
+	/**Maximum number of bytes held on disk.*/
+	private final long diskBudget;
+	/**Directory for spilled entries, or null if entries are only held in memory.*/
+	private final File directory;
+	/**Number of bytes held in memory.*/
+	private long memoryBytes = 0L;
+	/**Number of bytes held on disk.*/
+	private long diskBytes = 0L;
+	/**Number of lookups which found their entry.*/
+	private long hits = 0L;
+	/**Number of lookups which did not find their entry.*/
+	private long misses = 0L;
+	
+	/**
+	 * Creates a cache which holds entries in memory only.
+	 * 
+	 * @param memoryBudget Maximum number of bytes held in memory.
+	 */
+	public FeatureCache(long memoryBudget) {this(memoryBudget, null, 0L);}
+	
+	/**
+	 * Creates a cache which spills entries evicted from memory to disk.
+	 * 
+	 * @param memoryBudget Maximum number of bytes held in memory.
+	 * @param directory Directory for spilled entries. It is created if it does not exist.
+	 * @param diskBudget Maximum number of bytes held on disk.
+	 */
+	public FeatureCache(long memoryBudget, File directory, long diskBudget) {
+		if(memoryBudget < 0L || diskBudget < 0L)
+			error("Invalid budget.");
+		if(directory != null && !directory.isDirectory() && !directory.mkdirs())
+			error("Could not create directory " + directory + ".");
+		this.memoryBudget = memoryBudget;
+		this.diskBudget = diskBudget;
+		this.directory = directory;
+	}
+	
+	/**
+	 * Copies the features of a sample into a buffer.
+	 * 
+	 * @param id Sample ID.
+	 * @param out Buffer for the features.
+	 * @param off Offset of the features in the buffer.
+	 * @param len Number of features.
+	 * @return True if the features were found.
+	 */
+	public synchronized boolean get(long id, double[] out, int off, int len) {
+		final Long key = id;
+		double[] f = memory.get(key);
+		if(f == null && disk.containsKey(key)) { //If the entry was spilled:
+			disk.get(key); //Mark as used.
+			f = read(key);
+			admit(key, f);
+		}
+		if(f == null) {
+			misses++;
+			return false;
+		}
+		if(f.length != len)
+			error("Cached features for sample " + id + " have a different size.");
+		System.arraycopy(f, 0, out, off, len);
+		hits++;
+		return true;
+	}
+	
+	/**
+	 * Stores the features of a sample.
+	 * 
+	 * @param id Sample ID.
+	 * @param in Buffer which holds the features.
+	 * @param off Offset of the features in the buffer.
+	 * @param len Number of features.
+	 */
+	public synchronized void put(long id, double[] in, int off, int len) {
+		final Long key = id;
+		final double[] f = new double[len];
+		System.arraycopy(in, off, f, 0, len);
+		final double[] old = memory.remove(key);
+		if(old != null)
+			memoryBytes -= bytes(old.length);
+		if(disk.containsKey(key))
+			drop(key);
+		admit(key, f);
+	}
+	
+	/**
+	 * Adds an entry to memory, evicting the least recently used entries to
+	 * stay within the memory budget.
+	 * 
+	 * @param key Sample ID.
+	 * @param f Features.
+	 */
+	private void admit(Long key, double[] f) {
+		memory.put(key, f);
+		memoryBytes += bytes(f.length);
+		final Iterator<Map.Entry<Long, double[]>> it = memory.entrySet().iterator();
+		while(memoryBytes > memoryBudget && it.hasNext()) { //While over budget:
+			final Map.Entry<Long, double[]> e = it.next(); //Least recently used entry.
+			it.remove();
+			memoryBytes -= bytes(e.getValue().length);
+			spill(e.getKey(), e.getValue());
+		}
+	}
+	
+	/**
+	 * Writes an entry evicted from memory to disk, evicting the least recently
+	 * used entries on disk to stay within the disk budget.
+	 * 
+	 * @param key Sample ID.
+	 * @param f Features.
+	 */
+	private void spill(Long key, double[] f) {
+		if(directory == null || bytes(f.length) > diskBudget || disk.containsKey(key))
+			return;
+		final Iterator<Map.Entry<Long, Integer>> it = disk.entrySet().iterator();
+		while(diskBytes + bytes(f.length) > diskBudget && it.hasNext()) { //While over budget:
+			final Map.Entry<Long, Integer> e = it.next(); //Least recently used entry.
+			it.remove();
+			diskBytes -= bytes(e.getValue());
+			delete(e.getKey());
+		}
+		try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file(key))))) {
+			for(double v : f)
+				out.writeDouble(v);
+		} catch(IOException e) {
+			error("Could not write features for sample " + key + ".");
+		}
+		disk.put(key, f.length);
+		diskBytes += bytes(f.length);
+	}
+	
+	/**
+	 * @param key Sample ID of an entry on disk.
+	 * @return The features of the entry.
+	 */
+	private double[] read(Long key) {
+		final double[] f = new double[disk.get(key)];
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file(key))))) {
+			for(int i = 0; i < f.length; i++)
+				f[i] = in.readDouble();
+		} catch(IOException e) {
+			error("Could not read features for sample " + key + ".");
+		}
+		return f;
+	}
+	
+	/**
+	 * Removes an entry from disk.
+	 * 
+	 * @param key Sample ID.
+	 */
+	private void drop(Long key) {
+		diskBytes -= bytes(disk.remove(key));
+		delete(key);
+	}
+	
+	/**
+	 * Deletes the file of an entry.
+	 * 
+	 * @param key Sample ID.
+	 */
+	private void delete(Long key) {
+		final File f = file(key);
+		if(f.exists() && !f.delete())
+			error("Could not delete " + f + ".");
+	}
+	
+	/**
+	 * @param key Sample ID.
+	 * @return The file which holds the entry on disk.
+	 */
+	private File file(Long key) {return new File(directory, Long.toHexString(key) + ".features");}
+	
+	/**
+	 * @param values Number of feature values.
+	 * @return Number of bytes used by the values.
+	 */
+	private static long bytes(int values) {return (long) values * VALUE_BYTES;}
+	
+	/**Removes every entry from memory and disk.*/
+	public synchronized void clear() {
+		memory.clear();
+		memoryBytes = 0L;
+		for(Long key : disk.keySet())
+			delete(key);
+		disk.clear();
+		diskBytes = 0L;
+	}
+	
+	/**@return Number of bytes held in memory.*/
+	public synchronized long memoryBytes() {return memoryBytes;}
+	
+	/**@return Number of bytes held on disk.*/
+	public synchronized long diskBytes() {return diskBytes;}
+	
+	/**@return Number of lookups which found their entry.*/
+	public synchronized long hits() {return hits;}
+	
+	/**@return Number of lookups which did not find their entry.*/
+	public synchronized long misses() {return misses;}
+	
+	/**
+	 * A custom exception which indicates an error in the feature cache.
+	 * 
+	 * @author prgmTrouble
+	 */
+	private static class FeatureCacheException extends Exception {
+		/***/
+		private static final long serialVersionUID = 1L;
+		private static final String prefix = "Feature Cache Exception: ";
+		
+		public FeatureCacheException(String s) {super(prefix + s);}
+	}
+	
+	/**
+	 * Throws a {@linkplain FeatureCacheException} and terminates execution.
+	 * 
+	 * @param s Description of error.
+	 */
+	protected static void error(String s) {
+		try {
+			throw new FeatureCacheException(s);
+		} catch(FeatureCacheException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+}
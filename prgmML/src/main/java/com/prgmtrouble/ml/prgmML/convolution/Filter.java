@@ -3,9 +3,13 @@ package com.prgmtrouble.ml.prgmML.convolution;
 import java.io.Serializable;
 import java.util.concurrent.ThreadLocalRandom;
 
+import com.prgmtrouble.ml.prgmML.math.Tensor;
+import com.prgmtrouble.ml.prgmML.math.Tensor.Layout;
+
 /**
  * An object which holds the data for a flattened
- * convolutional filter.
+ * convolutional filter. Forms derived from the data
+ * are cached until the data is updated.
  * 
  * @author prgmTrouble
  */
@@ -21,6 +25,12 @@ public class Filter implements Serializable {
 	private final int c;
 	/**Step size.*/
 	private final int step;
+	/**Memory layout of the data.*/
+	private Layout layout = Layout.CHW;
+	/**Value added to each output of the filter.*/
+	private double bias = 0.0;
+	/**Number of times the data or bias has changed.*/
+	private transient int version = 0;
 	
 	/**
 	 * Creates a new filter.
@@ -41,6 +51,23 @@ public class Filter implements Serializable {
 			data[i] = r.nextGaussian() * x;
 	}
 	
+	/**
+	 * Creates a copy of a filter.
+	 * 
+	 * @param f Filter to copy.
+	 */
+	private Filter(Filter f) {
+		data = f.data.clone();
+		s = f.s;
+		c = f.c;
+		step = f.step;
+		layout = f.layout;
+		bias = f.bias;
+	}
+	
+	/**@return A copy of this filter which does not share its data.*/
+	public Filter copy() {return new Filter(this);}
+	
 	/**
 	 * Gets a specific value from the filter.
 	 * 
@@ -49,17 +76,91 @@ public class Filter implements Serializable {
 	 * @param channel Channel index.
 	 * @return Value at <code>[row][col][channel]</code>.
 	 */
-	public double get(int row, int col, int channel) {return data[(channel * s * s) + (row * s) + col];}
+	public double get(int row, int col, int channel) {
+		return (layout == Layout.HWC)? data[((row * s) + col) * c + channel] : data[(channel * s * s) + (row * s) + col];
+	}
+	
+	/**
+	 * Rearranges the data into the given memory layout.
+	 * 
+	 * @param layout Memory layout.
+	 */
+	public void setLayout(Layout layout) {
+		if(layout == layout())
+			return;
+		final double[] t = data.clone();
+		if(layout == Layout.HWC)
+			Tensor.toHWC(t, 0, s * s, c, data, 0);
+		else
+			Tensor.toCHW(t, 0, s * s, c, data, 0);
+		this.layout = layout;
+		invalidate();
+	}
 	
-	/** @return The array for this filter.*/
+	/**@return Memory layout of the data.*/
+	public Layout layout() {return (layout == null)? Layout.CHW:layout;}
+	
+	/**
+	 * Gets the array for this filter. Callers which write to the array
+	 * directly must call {@linkplain #invalidate()} afterwards.
+	 * 
+	 * @return The array for this filter.
+	 */
 	public double[] get() {return data;}
 	
+	/**Marks every cached form of the data as stale.*/
+	public void invalidate() {version++;}
+	
+	/**@return Number of times the data or bias has changed.*/
+	public int version() {return version;}
+	
+	/**
+	 * Checks whether a form derived from several filters is current, and
+	 * records the current version of each filter.
+	 * 
+	 * @param filters Filters the form is derived from.
+	 * @param versions Version of each filter when the form was last built.
+	 * @return True if no filter has changed since the form was last built.
+	 */
+	static boolean current(Filter[] filters, int[] versions) {
+		boolean current = true;
+		for(int k = 0; k < filters.length; k++) //For each filter:
+			if(versions[k] != filters[k].version) {
+				versions[k] = filters[k].version;
+				current = false;
+			}
+		return current;
+	}
+	
 	/**@return Side length of filter.*/
 	public int size() {return s;}
 	/**@return Number of channels in filter.*/
 	public int channels() {return c;}
 	/**@return Step size.*/
 	public int step() {return step;}
+	/**@return Value added to each output of the filter.*/
+	public double bias() {return bias;}
+	
+	/**
+	 * Sets the value added to each output of the filter.
+	 * 
+	 * @param bias Bias.
+	 */
+	public void setBias(double bias) {
+		this.bias = bias;
+		invalidate();
+	}
+	
+	/**
+	 * Updates the bias using an unscaled gradient.
+	 * 
+	 * @param gradient Gradient with respect to the bias.
+	 * @param learningRate Learning rate.
+	 */
+	public void updateBias(double gradient, double learningRate) {
+		bias -= gradient * learningRate;
+		invalidate();
+	}
 	
 	/**
 	 * Updates the filter.
@@ -67,8 +168,21 @@ public class Filter implements Serializable {
 	 * @param gradient Gradient with respect to this filter, scaled by learning rate.
 	 */
 	public void update(double[] gradient) {
-		for(int i = 0; i < Math.min(s,gradient.length); i++)
+		for(int i = 0; i < Math.min(data.length,gradient.length); i++)
 			data[i] -= gradient[i];
+		invalidate();
+	}
+	
+	/**
+	 * Updates the filter using an unscaled gradient.
+	 * 
+	 * @param gradient Gradient with respect to this filter.
+	 * @param learningRate Learning rate.
+	 */
+	public void update(double[] gradient, double learningRate) {
+		for(int i = 0; i < Math.min(data.length,gradient.length); i++)
+			data[i] -= gradient[i] * learningRate;
+		invalidate();
 	}
 }
 
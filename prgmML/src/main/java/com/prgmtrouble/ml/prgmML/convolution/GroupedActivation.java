@@ -0,0 +1,544 @@
+package com.prgmtrouble.ml.prgmML.convolution;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+import com.prgmtrouble.ml.prgmML.generic.ListOfTypes;
+import com.prgmtrouble.ml.prgmML.generic.Parameter;
+import com.prgmtrouble.ml.prgmML.math.FunctionTypes;
+import com.prgmtrouble.ml.prgmML.math.Tensor;
+import com.prgmtrouble.ml.prgmML.math.Tensor.Layout;
+import com.prgmtrouble.ml.prgmML.math.Vector;
+
+/**
+ * An {@linkplain Activation} whose convolution is split into groups. The input
+ * channels and the filters are divided into the same number of contiguous groups,
+ * and each filter only covers the input channels of its own group. When there is
+ * one group per input channel, the layer is a depthwise convolution and each
+ * filter covers a single channel.
+ * 
+ * @author prgmTrouble
+ */
+public class GroupedActivation implements Serializable, ConvolutionLayer {
+	/***/
+	private static final long serialVersionUID = 1L;
+	
+	/**Vector which holds the activation function.*/
+	private final Vector act;
+	/**Convolutional filters, indexed by group.*/
+	private final Filter[] filters;
+	/**Input map side length.*/
+	private final int is;
+	/**Filter side length.*/
+	private final int fs;
+	/**Step size.*/
+	private final int step;
+	/**Number of input channels.*/
+	private final int c;
+	/**Padding.*/
+	private final int pad;
+	/**Side length of the output maps.*/
+	private final int os;
+	/**Number of input channels in each group.*/
+	private final int cg;
+	/**Number of filters in each group.*/
+	private final int kg;
+	/**Learning rate.*/
+	private double lr;
+	/**True if the maps and filters use the {@linkplain Layout#HWC} layout.*/
+	private boolean hwc;
+	/**Input to the convolution, which is the output of the activation function.*/
+	private transient double[] in;
+	/**Number of images in the last batch, or zero if the last input was a single image.*/
+	private transient int batch;
+	/**Number of images the buffers were planned for, or zero if no plan was built.*/
+	private transient int planned;
+	/**Planned buffer for the output of the activation function.*/
+	private transient double[] actBuffer;
+	/**Planned buffer for the output of the convolution.*/
+	private transient double[] outBuffer;
+	/**Planned buffer for the gradient with respect to the input.*/
+	private transient double[] gradBuffer;
+	/**Planned buffer for the gradient with respect to one filter.*/
+	private transient double[] filterBuffer;
+	/**Depthwise filters packed by filter element, then by filter.*/
+	private transient double[] taps;
+	/**Version of each filter when {@linkplain #taps} was packed.*/
+	private transient int[] tapVersions;
+	/**Gradient with respect to {@linkplain #taps}.*/
+	private transient double[] tapGrad;
+	/**Type for creating new {@linkplain Parameter} objects.*/
+	private static final ListOfTypes outputType = new ListOfTypes(new Class<?>[] {double[].class});
+	
+	/**
+	 * Creates a grouped convolutional activation.
+	 * 
+	 * @param filters Convolutional filters, indexed by group. Each filter must have
+	 * 				  <code>channels / groups</code> channels.
+	 * @param function Type of activation function.
+	 * @param inputSize Input map side length.
+	 * @param filterSize Filter side length.
+	 * @param step Step size.
+	 * @param channels Number of input channels.
+	 * @param pad Padding.
+	 * @param groups Number of groups. Must divide both the input channels and the
+	 * 				 number of filters.
+	 * @param learningRate Learning rate.
+	 */
+	public GroupedActivation(Filter[] filters, FunctionTypes function,
+							 int inputSize, int filterSize, int step, int channels, int pad,
+							 int groups, double learningRate) {
+		this(filters, new Vector(function), inputSize, filterSize, step, channels, pad, groups, learningRate);
+	}
+	
+	/**
+	 * Creates a grouped convolutional activation with the given activation function vector.
+	 * 
+	 * @param filters Convolutional filters, indexed by group.
+	 * @param act Vector which holds the activation function.
+	 * @param inputSize Input map side length.
+	 * @param filterSize Filter side length.
+	 * @param step Step size.
+	 * @param channels Number of input channels.
+	 * @param pad Padding.
+	 * @param groups Number of groups.
+	 * @param learningRate Learning rate.
+	 */
+	private GroupedActivation(Filter[] filters, Vector act,
+							  int inputSize, int filterSize, int step, int channels, int pad,
+							  int groups, double learningRate) {
+		if(groups <= 0 || channels % groups != 0 || filters.length % groups != 0)
+			error("Groups must divide the input channels and the number of filters.");
+		this.act = act;
+		this.filters = filters;
+		is = inputSize;
+		fs = filterSize;
+		this.step = step;
+		c = channels;
+		this.pad = pad;
+		os = Tensor.outputSize(is, fs, step, pad);
+		cg = c / groups;
+		kg = filters.length / groups;
+		for(Filter f : filters)
+			if(f.size() != fs || f.channels() != cg)
+				error("Filter dimensions do not match the group.");
+		lr = learningRate;
+	}
+	
+	/**
+	 * Creates a depthwise convolutional activation, which has one group per
+	 * input channel.
+	 * 
+	 * @param filters Single-channel filters, <code>multiplier</code> for each input channel.
+	 * @param function Type of activation function.
+	 * @param inputSize Input map side length.
+	 * @param filterSize Filter side length.
+	 * @param step Step size.
+	 * @param channels Number of input channels.
+	 * @param pad Padding.
+	 * @param learningRate Learning rate.
+	 * @return The new layer.
+	 */
+	public static GroupedActivation depthwise(Filter[] filters, FunctionTypes function,
+											  int inputSize, int filterSize, int step, int channels, int pad,
+											  double learningRate) {
+		return new GroupedActivation(filters, function, inputSize, filterSize, step, channels, pad, channels, learningRate);
+	}
+	
+	/**@return True if each filter covers a single input channel.*/
+	public boolean isDepthwise() {return cg == 1;}
+	
+	/**
+	 * Convolves a batch of input maps.
+	 * 
+	 * @param in Flattened input maps, indexed by image.
+	 * @param n Number of images.
+	 * @param out Buffer for the flattened output maps.
+	 * @return The flattened output maps, indexed by image.
+	 */
+	private double[] convolve(double[] in, int n, double[] out) {
+		final int fl  = filters.length,
+				  osq = os * os,
+				  isq = is * is,
+				  ims = c * isq; //Size of one input image.
+		if(hwc && cg == 1) { //If the convolution is depthwise:
+			final double[] w = pack();
+			for(int b = 0; b < n; b++) //For each image:
+				depthwise(in, b * ims, w, out, b * fl * osq);
+			return out;
+		}
+		for(int k = 0; k < fl; k++) { //For each filter:
+			final double[] f = filters[k].get();
+			final int g = k / kg; //Group index.
+			for(int b = 0; b < n; b++) //For each image:
+				if(hwc)
+					Tensor.convolveHWC(in, b * ims + g * cg, is, c, f, 0, fs, cg, step, pad, out, b * fl * osq + k, fl);
+				else
+					Tensor.convolve(in, b * ims + g * cg * isq, is, f, 0, fs, cg, step, pad, out, (b * fl + k) * osq);
+		}
+		return out;
+	}
+	
+	/**
+	 * Performs the backpropagation operation for {@linkplain #convolve(double[], int, double[])}.
+	 * The gradient for each filter is accumulated across the batch before the
+	 * filter is updated.
+	 * 
+	 * @param loss Flattened gradient with respect to the output maps, indexed by image.
+	 * @param n Number of images.
+	 * @param di Buffer for the gradient with respect to the input maps.
+	 * @param df Buffer for the gradient with respect to one filter.
+	 * @return Flattened gradient with respect to the input maps, indexed by image.
+	 */
+	private double[] backConvolve(double[] loss, int n, double[] di, double[] df) {
+		final int fl  = filters.length,
+				  osq = os * os,
+				  isq = is * is,
+				  fsq = fs * fs,
+				  ims = c * isq; //Size of one input image.
+		if(in == null)
+			error("Feed-forward function has not been called for the current cycle.");
+		if(loss.length != n * fl * osq)
+			error("Invalid gradient size.");
+		Arrays.fill(di, 0.0);
+		if(hwc && cg == 1) { //If the convolution is depthwise:
+			final double[] w = pack();
+			if(tapGrad == null || tapGrad.length != w.length)
+				tapGrad = new double[w.length];
+			Arrays.fill(tapGrad, 0.0);
+			for(int b = 0; b < n; b++) //For each image:
+				backDepthwise(loss, b * fl * osq, in, b * ims, w, di, tapGrad);
+			for(int k = 0; k < fl; k++) { //For each filter:
+				for(int t = 0; t < fsq; t++) //For each filter element:
+					df[t] = tapGrad[t * fl + k];
+				filters[k].update(df, lr); //Update once per batch.
+			}
+			return di;
+		}
+		for(int k = 0; k < fl; k++) { //For each filter:
+			final double[] f = filters[k].get();
+			final int g = k / kg; //Group index.
+			Arrays.fill(df, 0.0);
+			for(int b = 0; b < n; b++) { //For each image:
+				if(hwc) {
+					final int io = b * ims + g * cg;
+					Tensor.backConvolveHWC(loss, b * fl * osq + k, fl, in, io, is, c, f, fs, cg, step, pad, di, io, df);
+				} else {
+					final int io = b * ims + g * cg * isq;
+					Tensor.backConvolve(loss, (b * fl + k) * osq, in, io, is, f, fs, cg, step, pad, di, io, df);
+				}
+			}
+			filters[k].update(df, lr); //Update once per batch.
+		}
+		return di;
+	}
+	
+	/**
+	 * Packs the depthwise filters into {@linkplain #taps} so that the filters
+	 * for every channel are contiguous for each filter element. The filters
+	 * are only repacked after one of them changes.
+	 * 
+	 * @return The packed filters, indexed by filter element, then by filter.
+	 */
+	private double[] pack() {
+		final int fl = filters.length,
+				  fsq = fs * fs;
+		if(tapVersions == null || tapVersions.length != fl)
+			tapVersions = new int[fl];
+		final boolean current = Filter.current(filters, tapVersions);
+		if(taps != null && taps.length == fl * fsq && current)
+			return taps;
+		if(taps == null || taps.length != fl * fsq)
+			taps = new double[fl * fsq];
+		for(int k = 0; k < fl; k++) { //For each filter:
+			final double[] f = filters[k].get();
+			for(int t = 0; t < fsq; t++) //For each filter element:
+				taps[t * fl + k] = f[t];
+		}
+		return taps;
+	}
+	
+	/**
+	 * Depthwise convolution of one {@linkplain Layout#HWC} image. Each input element
+	 * is read once per filter element and applied to all of its filters, so both the
+	 * input and the output are walked sequentially.
+	 * 
+	 * @param in Flattened input maps.
+	 * @param io Offset of the input image.
+	 * @param w Packed filters.
+	 * @param out Flattened output maps.
+	 * @param oo Offset of the output image.
+	 */
+	private void depthwise(double[] in, int io, double[] w, double[] out, int oo) {
+		final int fl = filters.length;
+		for(int or = 0; or < os; or++) //For each output row:
+			for(int oc = 0; oc < os; oc++) { //For each output column:
+				final int y = oo + (or * os + oc) * fl; //Output index.
+				Arrays.fill(out, y, y + fl, 0.0);
+				for(int fr = 0; fr < fs; fr++) { //For each filter row:
+					final int ir = or * step - pad + fr;
+					if(ir < 0 || ir >= is)
+						continue;
+					for(int fc = 0; fc < fs; fc++) { //For each filter column:
+						final int ic = oc * step - pad + fc;
+						if(ic < 0 || ic >= is)
+							continue;
+						final int x = io + (ir * is + ic) * c, //Input index.
+								  t = (fr * fs + fc) * fl; //Packed filter index.
+						for(int ch = 0; ch < c; ch++) { //For each channel:
+							final double v = in[x + ch];
+							for(int j = 0; j < kg; j++) //For each filter of the channel:
+								out[y + ch * kg + j] += v * w[t + ch * kg + j];
+						}
+					}
+				}
+			}
+	}
+	
+	/**
+	 * Performs the backpropagation operation for {@linkplain #depthwise(double[], int, double[], double[], int)}.
+	 * Both gradients are added to the given arrays.
+	 * 
+	 * @param loss Flattened gradient with respect to the output maps.
+	 * @param lo Offset of the output gradient.
+	 * @param in Flattened input maps.
+	 * @param io Offset of the input image.
+	 * @param w Packed filters.
+	 * @param di Flattened gradient with respect to the input maps.
+	 * @param dw Gradient with respect to the packed filters.
+	 */
+	private void backDepthwise(double[] loss, int lo, double[] in, int io, double[] w, double[] di, double[] dw) {
+		final int fl = filters.length;
+		for(int or = 0; or < os; or++) //For each output row:
+			for(int oc = 0; oc < os; oc++) { //For each output column:
+				final int y = lo + (or * os + oc) * fl; //Output gradient index.
+				for(int fr = 0; fr < fs; fr++) { //For each filter row:
+					final int ir = or * step - pad + fr;
+					if(ir < 0 || ir >= is)
+						continue;
+					for(int fc = 0; fc < fs; fc++) { //For each filter column:
+						final int ic = oc * step - pad + fc;
+						if(ic < 0 || ic >= is)
+							continue;
+						final int x = io + (ir * is + ic) * c, //Input index.
+								  t = (fr * fs + fc) * fl; //Packed filter index.
+						for(int ch = 0; ch < c; ch++) { //For each channel:
+							final double v = in[x + ch];
+							double d = 0.0;
+							for(int j = 0; j < kg; j++) { //For each filter of the channel:
+								final int k = ch * kg + j;
+								final double g = loss[y + k];
+								dw[t + k] += g * v;
+								d += g * w[t + k];
+							}
+							di[x + ch] += d;
+						}
+					}
+				}
+			}
+	}
+	
+	/**
+	 * Performs the feed-forward operation.
+	 * 
+	 * @param input A {@linkplain Parameter} object containing the input
+	 * 				(<code>double[]</code>) followed by any other parameters as
+	 * 			    required by the activation function.
+	 * @return The flattened output maps (<code>double[]</code>) wrapped in a
+	 * 		   {@linkplain Parameter}.
+	 */
+	@Override
+	public Parameter<ListOfTypes> forward(Parameter<ListOfTypes> input) {
+		in = (double[]) act.forward(input).getValues()[0];
+		batch = 0;
+		return new Parameter<ListOfTypes>(outputType, new Object[] {convolve(in, 1, new double[outputLength()])});
+	}
+	
+	/**
+	 * Performs the backpropagation operation.
+	 * 
+	 * @param loss A {@linkplain Parameter} object containing the gradient with respect to
+	 * 			   the output (<code>double[]</code>) followed by any other parameters as
+	 * 			   required by the activation function.
+	 * @return Gradient with respect to the input map.
+	 */
+	@Override
+	public Parameter<ListOfTypes> backward(Parameter<ListOfTypes> loss) {
+		if(batch != 0)
+			error("The last feed-forward operation was batched.");
+		loss.setValue(backConvolve((double[]) loss.getValues()[0], 1, new double[inputLength()], new double[cg * fs * fs]), 0);
+		return act.backward(loss);
+	}
+	
+	/**
+	 * Performs the feed-forward operation for a batch of input maps. The
+	 * activation function must not require any parameters other than its input.
+	 * If a plan was built for <code>n</code> images, the planned buffers are used
+	 * and the returned array is overwritten by the next call.
+	 * 
+	 * @param input Flattened input maps, indexed by image.
+	 * @param n Number of images.
+	 * @return Flattened output maps, indexed by image.
+	 */
+	@Override
+	public double[] forward(double[] input, int n) {
+		final boolean pl = (n == planned); //True if the planned buffers can be used.
+		if(!pl)
+			check();
+		if(input.length != n * inputLength())
+			error("Invalid input size.");
+		act.forward(input, in = pl? actBuffer:new double[input.length]);
+		batch = n;
+		return convolve(in, n, pl? outBuffer:new double[n * outputLength()]);
+	}
+	
+	/**
+	 * Performs the backpropagation operation for a batch of gradients. Filter
+	 * gradients are summed across the batch and each filter is updated once.
+	 * If a plan was built for <code>n</code> images, the planned buffers are
+	 * used and the returned array is overwritten by the next call.
+	 * 
+	 * @param loss Flattened gradients with respect to the output maps, indexed by image.
+	 * @param n Number of images.
+	 * @return Flattened gradients with respect to the input maps, indexed by image.
+	 */
+	@Override
+	public double[] backward(double[] loss, int n) {
+		if(batch != n)
+			error("Batch size does not match the last feed-forward operation.");
+		final double[] di = (n == planned)?
+				backConvolve(loss, n, gradBuffer, filterBuffer) :
+				backConvolve(loss, n, new double[n * inputLength()], new double[cg * fs * fs]);
+		act.backward(di, in, di);
+		return di;
+	}
+	
+	/**
+	 * Validates the activation function for batched execution.
+	 */
+	private void check() {
+		if(act.getFunctionTypes()[0].getTypes().length != 1)
+			error("Batched execution requires an activation function without additional parameters.");
+	}
+	
+	/**
+	 * Allocates the buffers used by {@linkplain #forward(double[], int)} and
+	 * {@linkplain #backward(double[], int)} for batches of <code>n</code> images.
+	 * 
+	 * @param n Number of images.
+	 */
+	@Override
+	public void plan(int n) {
+		check();
+		if(n <= 0)
+			error("Invalid batch size.");
+		actBuffer = new double[n * inputLength()];
+		gradBuffer = new double[n * inputLength()];
+		outBuffer = new double[n * outputLength()];
+		filterBuffer = new double[cg * fs * fs];
+		planned = n;
+	}
+	
+	/**@return Size of one flattened input map.*/
+	@Override
+	public int inputLength() {return c * is * is;}
+	
+	/**@return Size of the flattened output maps for one input.*/
+	@Override
+	public int outputLength() {return filters.length * os * os;}
+	
+	/**@return Number of input channels.*/
+	@Override
+	public int inputChannels() {return c;}
+	
+	/**@return Number of filters.*/
+	@Override
+	public int outputChannels() {return filters.length;}
+	
+	/**@return Input map side length, filter side length, step size, and padding.*/
+	@Override
+	public int[] geometry() {return new int[] {is, fs, step, pad};}
+	
+	/**
+	 * Creates a grouped layer with the filters, activation function, and settings
+	 * of this layer for input maps with another side length.
+	 * 
+	 * @param inputSize Input map side length.
+	 * @param pad Padding.
+	 * @return The resized layer.
+	 */
+	@Override
+	public GroupedActivation resize(int inputSize, int pad) {
+		final GroupedActivation r = new GroupedActivation(filters, act.copy(), inputSize, fs, step, c, pad, c / cg, lr);
+		r.hwc = hwc;
+		return r;
+	}
+	
+	/**
+	 * Sets the memory layout of the input and output maps and rearranges
+	 * the filters to match.
+	 * 
+	 * @param layout Memory layout.
+	 */
+	@Override
+	public void setLayout(Layout layout) {
+		for(Filter f : filters)
+			f.setLayout(layout);
+		hwc = (layout == Layout.HWC);
+	}
+	
+	/**
+	 * Sets the learning rate.
+	 * 
+	 * @param learningRate Learning rate.
+	 */
+	public void setLR(double learningRate) {lr = learningRate;}
+	
+	/**
+	 * Sets the activation-memory mode of the activation function.
+	 * 
+	 * @param compact True if compact storage should be used.
+	 * 
+	 * @see Vector#setCompact(boolean)
+	 */
+	@Override
+	public void setCompact(boolean compact) {act.setCompact(compact);}
+	
+	/**@return True if the activation function maps zero to zero.*/
+	@Override
+	public boolean preservesZero() {return act.preservesZero();}
+	
+	/**Releases the stored output of the activation function.*/
+	@Override
+	public void release() {
+		in = null;
+		act.release();
+	}
+	
+	/**
+	 * A custom exception which indicates an error in the grouped layer.
+	 * 
+	 * @author prgmTrouble
+	 */
+	private static class GroupedActivationException extends Exception {
+		/***/
+		private static final long serialVersionUID = 1L;
+		private static final String prefix = "Grouped Activation Exception: ";
+		
+		public GroupedActivationException(String s) {super(prefix + s);}
+	}
+	
+	/**
+	 * Throws a {@linkplain GroupedActivationException} and terminates execution.
+	 * 
+	 * @param s Description of error.
+	 */
+	protected static void error(String s) {
+		try {
+			throw new GroupedActivationException(s);
+		} catch(GroupedActivationException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+}
@@ -1,9 +1,13 @@
 package com.prgmtrouble.ml.prgmML.convolution;
 
 import java.io.Serializable;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import com.prgmtrouble.ml.prgmML.generic.ListOfTypes;
 import com.prgmtrouble.ml.prgmML.generic.Parameter;
+import com.prgmtrouble.ml.prgmML.math.Tensor.Layout;
 
 /**
  * An object that pools a flattened tensor and distributes
@@ -32,9 +36,14 @@ public class Pool implements Serializable, ConvolutionLayer {
 		/**Absolute maximum of channel.*/
 		MaxAbsC,
 		/**Average of channel*/
-		AvgC;
+		AvgC,
+		/**Average of each entire channel map.*/
+		GlobalAvg;
 	}
 	
+	/**Minimum number of input elements for which work is split across threads.*/
+	private static final int GRAIN = 1 << 15;
+	
 	/**Side length of input map.*/
 	private final int s;
 	/**Side length of input map, squared.*/
@@ -45,24 +54,36 @@ public class Pool implements Serializable, ConvolutionLayer {
 	private final int pq;
 	/**Number of channels.*/
 	private final int c;
-	/**Pooling constant.*/
+	/**Pooling constant, which is the window side length for spatial pooling.*/
 	private final int f;
 	/**Pooling constant, squared.*/
 	private final int fq;
+	/**Distance between spatial windows.*/
+	private final int st;
 	/**Size of flattened input map.*/
 	private final int is;
 	/**Size of flattened output.*/
 	private final int os;
 	/**Pooled indices.*/
-	private final int[] i;
+	private int[] i;
+	/**Pooled offsets within each window, used instead of {@linkplain #i} in compact mode.*/
+	private byte[] w;
+	/**True if pooled indices are stored as offsets within each window.*/
+	private boolean compact = false;
 	/**Pooled tensor.*/
-	private final double[] o;
+	private double[] o;
+	/**Number of images in the last batch.*/
+	private transient int batch = 1;
+	/**Gradient with respect to the input, reused between batches of the same size.*/
+	private transient double[] g;
 	/**Type of pooling operation.*/
 	private final PoolingTypes t;
 	/**True if the function pools across channels.*/
 	private final boolean channelPooling;
 	/**True if the function pools using averages.*/
 	private final boolean avgType;
+	/**True if the maps use the {@linkplain Layout#HWC} layout.*/
+	private boolean hwc = false;
 	/**Type for creating new {@linkplain Parameter} objects.*/
 	private static final ListOfTypes outputType = new ListOfTypes(new Class<?>[] {double[].class});
 	
@@ -71,28 +92,51 @@ public class Pool implements Serializable, ConvolutionLayer {
 	 * 
 	 * @param size Size of input map.
 	 * @param channels Number of channels.
-	 * @param factor Pooling constant.
+	 * @param factor Pooling constant. Ignored by {@linkplain PoolingTypes#GlobalAvg}.
+	 * @param type Pooling operation type.
+	 */
+	public Pool(int size, int channels, int factor, PoolingTypes type) {this(size, channels, factor, factor, type);}
+	
+	/**
+	 * Creates a new pooling layer with overlapping or spaced spatial windows.
+	 * 
+	 * @param size Size of input map.
+	 * @param channels Number of channels.
+	 * @param window Window side length, or the pooling constant for channel pooling.
+	 * 				 Ignored by {@linkplain PoolingTypes#GlobalAvg}.
+	 * @param stride Distance between windows. Must equal the window for channel pooling.
+	 * 				 Ignored by {@linkplain PoolingTypes#GlobalAvg}.
 	 * @param type Pooling operation type.
 	 */
-	public Pool(int size, int channels, int factor, PoolingTypes type) {
+	public Pool(int size, int channels, int window, int stride, PoolingTypes type) {
 		s = size;
 		sq = s * s;
-		f = factor;
 		c = channels;
 		switch(t = type) {
 		case MaxC	:
 		case MaxAbsC:
 		case AvgC	: channelPooling = true;
+					  f = st = window;
+					  if(stride != window)
+						  error("Channel pooling does not support strides.");
 					  if(c % f != 0)
 						  error("Pooling constant is not a factor of the input channels.");
 					  p = c / f;
 					  os = p * sq;
 					  pq = fq = 0;
 					  break;
+		case GlobalAvg: channelPooling = false;
+					  f = st = s;
+					  p = pq = 1;
+					  fq = sq;
+					  os = c;
+					  break;
 		default		: channelPooling = false;
-					  if(s % f != 0)
-						  error("Pooling constant is not a factor of the input size.");
-					  p = s / f;
+					  f = window;
+					  st = stride;
+					  if(f > s || st <= 0 || (s - f) % st != 0)
+						  error("Window and stride do not fit the input size.");
+					  p = (s - f) / st + 1;
 					  pq = p * p;
 					  fq = f * f;
 					  os = c * pq;
@@ -100,7 +144,7 @@ public class Pool implements Serializable, ConvolutionLayer {
 		}
 		is = c * sq;
 		o = new double[os];
-		i = (avgType = (t == PoolingTypes.Avg || t == PoolingTypes.AvgC))? null:new int[os];
+		i = (avgType = (t == PoolingTypes.Avg || t == PoolingTypes.AvgC || t == PoolingTypes.GlobalAvg))? null:new int[os];
 	}
 	
 	/**
@@ -109,66 +153,431 @@ public class Pool implements Serializable, ConvolutionLayer {
 	 * @param in Flattened input map.
 	 * @return Flattened output map.
 	 */
-	public double[] forward(double[] in) {
-		if(!channelPooling) { //If not pooling channels:
-			for(int ch = 0; ch < c; ch++) { //For each channel:
-				final int chsq = ch * sq, //Input channel index.
-						  chpq = ch * pq; //Pooled channel index.
-				for(int pr = 0; pr < p; pr++) { //For each pooled row:
-					final int prf = pr * f, //Pool factored row index.
-							  prp = chpq + (pr * p); //Pooled row index.
-					for(int pc = 0; pc < p; pc++) { //For each pooled column:
-						final int pcf = pc * f; //Pool factored column index.
-						double a = (t == PoolingTypes.Max)? -Double.MAX_VALUE:0.0; //Compare value.
-						int x = 0; //Input index.
-						for(int ir = 0; ir < f; ir++) { //For each grid row:
-							final int xr = chsq + (prf + ir) * s; //Input row index.
-							for(int ic = 0; ic < f; ic++) { //For each grid column:
-								final int xc = xr + pcf + ic; //Input column index.
-								final double b = in[xc]; //Input value.
-								switch(t) {
-								case Max   : if(b > a) {a = b; x = xc;} 		   break;
-								case MaxAbs: if(Math.abs(b) > a) {a = b; x = xc;}  break;
-								case Avg   : a += b / (double) fq;				   break;
-								default    : error("Invalid pooling type."); 	   break;
-								}
+	public double[] forward(double[] in) {return forward(in, 1);}
+	
+	/**
+	 * Performs the pooling operation on a batch of flattened input maps.
+	 * 
+	 * @param in Flattened input maps, indexed by image.
+	 * @param n Number of images.
+	 * @return Flattened output maps, indexed by image.
+	 */
+	@Override
+	public double[] forward(double[] in, int n) {
+		if(in.length != n * is)
+			error("Invalid input size.");
+		if(o == null || o.length != n * os) { //If the buffers were released or the batch size changed:
+			o = new double[n * os];
+			setCompact(compact);
+		}
+		batch = n;
+		run(new Task(in, null, 0, n * units(), true));
+		return o; //Return pooled maps.
+	}
+	
+	/**@return Number of independent units of work in one image.*/
+	private int units() {return hwc? 1:(channelPooling? p:c);}
+	
+	/**@return Number of input elements in one unit of work.*/
+	private int unitSize() {return hwc? is:(channelPooling? f * sq:sq);}
+	
+	/**
+	 * Runs a task on the common {@linkplain ForkJoinPool} if it is large enough to
+	 * be split, otherwise runs it on the calling thread.
+	 * 
+	 * @param task Task to run.
+	 */
+	private void run(Task task) {
+		if((long) (task.hi - task.lo) * unitSize() > GRAIN)
+			ForkJoinPool.commonPool().invoke(task);
+		else
+			task.compute();
+	}
+	
+	/**
+	 * Records the selected element of a window.
+	 * 
+	 * @param oidx Output index.
+	 * @param x Input index.
+	 * @param d Offset within the window.
+	 */
+	private void select(int oidx, int x, int d) {
+		if(w != null)
+			w[oidx] = (byte) d; //Record window offset.
+		else
+			i[oidx] = x; //Record index.
+	}
+	
+	/**
+	 * Pools one unit of work.
+	 * 
+	 * @param in Flattened input maps.
+	 * @param u Unit index, which is a channel for spatial pooling or a
+	 * 			pooled channel for channel pooling, offset by image. In the
+	 * 			{@linkplain Layout#HWC} layout, each unit is an entire image.
+	 */
+	private void pool(double[] in, int u) {
+		final int b = u / units(), //Image index.
+				  x = u % units(); //Channel index.
+		if(hwc) {
+			switch(t) {
+			case Max	: maxHWC(in, b * is, b * os); break;
+			case MaxAbs	: maxAbsHWC(in, b * is, b * os); break;
+			case Avg	:
+			case GlobalAvg: avgHWC(in, b * is, b * os); break;
+			case MaxC	: maxCHWC(in, b * is, b * os); break;
+			case MaxAbsC: maxAbsCHWC(in, b * is, b * os); break;
+			case AvgC	: avgCHWC(in, b * is, b * os); break;
+			default		: error("Invalid pooling type."); break;
+			}
+			return;
+		}
+		switch(t) {
+		case Max	: if(f == 2 && st == 2) max2(in, b * is + x * sq, b * os + x * pq);
+					  else max(in, b * is + x * sq, b * os + x * pq);
+					  break;
+		case MaxAbs	: maxAbs(in, b * is + x * sq, b * os + x * pq); break;
+		case Avg	:
+		case GlobalAvg: if(f == 2 && st == 2) avg2(in, b * is + x * sq, b * os + x * pq);
+					  else avg(in, b * is + x * sq, b * os + x * pq);
+					  break;
+		case MaxC	: maxC(in, b * is + x * f * sq, b * os + x * sq); break;
+		case MaxAbsC: maxAbsC(in, b * is + x * f * sq, b * os + x * sq); break;
+		case AvgC	: avgC(in, b * is + x * f * sq, b * os + x * sq); break;
+		default		: error("Invalid pooling type."); break;
+		}
+	}
+	
+	/**
+	 * Max pooling over one channel.
+	 * 
+	 * @param in Flattened input maps.
+	 * @param ci Offset of the input channel.
+	 * @param co Offset of the pooled channel.
+	 */
+	private void max(double[] in, int ci, int co) {
+		for(int pr = 0; pr < p; pr++) { //For each pooled row:
+			final int prx = ci + pr * st * s, //Input row index.
+					  pro = co + pr * p; //Pooled row index.
+			for(int pc = 0; pc < p; pc++) { //For each pooled column:
+				final int origin = prx + pc * st; //Window origin.
+				double a = in[origin]; //Selected value.
+				int x = origin, //Selected index.
+					d = 0; //Selected offset.
+				for(int ir = 0; ir < f; ir++) { //For each grid row:
+					final int xr = origin + ir * s; //Input row index.
+					for(int ic = 0; ic < f; ic++) { //For each grid column:
+						final double v = in[xr + ic];
+						if(v > a) {a = v; x = xr + ic; d = ir * f + ic;}
+					}
+				}
+				o[pro + pc] = a; //Record value.
+				select(pro + pc, x, d);
+			}
+		}
+	}
+	
+	/**
+	 * Max pooling over one channel with 2x2 windows.
+	 * 
+	 * @param in Flattened input maps.
+	 * @param ci Offset of the input channel.
+	 * @param co Offset of the pooled channel.
+	 */
+	private void max2(double[] in, int ci, int co) {
+		for(int pr = 0; pr < p; pr++) { //For each pooled row:
+			final int prx = ci + 2 * pr * s, //Input row index.
+					  pro = co + pr * p; //Pooled row index.
+			for(int pc = 0; pc < p; pc++) { //For each pooled column:
+				final int x0 = prx + 2 * pc, //Window origin.
+						  x2 = x0 + s; //Second window row.
+				double a = in[x0];
+				int d = 0;
+				if(in[x0 + 1] > a) {a = in[x0 + 1]; d = 1;}
+				if(in[x2] > a) {a = in[x2]; d = 2;}
+				if(in[x2 + 1] > a) {a = in[x2 + 1]; d = 3;}
+				o[pro + pc] = a; //Record value.
+				select(pro + pc, x0 + (d >> 1) * s + (d & 1), d);
+			}
+		}
+	}
+	
+	/**
+	 * Absolute max pooling over one channel.
+	 * 
+	 * @param in Flattened input maps.
+	 * @param ci Offset of the input channel.
+	 * @param co Offset of the pooled channel.
+	 */
+	private void maxAbs(double[] in, int ci, int co) {
+		for(int pr = 0; pr < p; pr++) { //For each pooled row:
+			final int prx = ci + pr * st * s, //Input row index.
+					  pro = co + pr * p; //Pooled row index.
+			for(int pc = 0; pc < p; pc++) { //For each pooled column:
+				final int origin = prx + pc * st; //Window origin.
+				double m = Math.abs(in[origin]); //Selected magnitude.
+				int x = origin, //Selected index.
+					d = 0; //Selected offset.
+				for(int ir = 0; ir < f; ir++) { //For each grid row:
+					final int xr = origin + ir * s; //Input row index.
+					for(int ic = 0; ic < f; ic++) { //For each grid column:
+						final double v = Math.abs(in[xr + ic]);
+						if(v > m) {m = v; x = xr + ic; d = ir * f + ic;}
+					}
+				}
+				o[pro + pc] = in[x]; //Record value.
+				select(pro + pc, x, d);
+			}
+		}
+	}
+	
+	/**
+	 * Average pooling over one channel.
+	 * 
+	 * @param in Flattened input maps.
+	 * @param ci Offset of the input channel.
+	 * @param co Offset of the pooled channel.
+	 */
+	private void avg(double[] in, int ci, int co) {
+		final double k = 1.0 / (double) fq; //Window scale.
+		for(int pr = 0; pr < p; pr++) { //For each pooled row:
+			final int prx = ci + pr * st * s, //Input row index.
+					  pro = co + pr * p; //Pooled row index.
+			for(int pc = 0; pc < p; pc++) { //For each pooled column:
+				final int origin = prx + pc * st; //Window origin.
+				double a = 0.0; //Window sum.
+				for(int ir = 0; ir < f; ir++) { //For each grid row:
+					final int xr = origin + ir * s; //Input row index.
+					for(int ic = 0; ic < f; ic++) //For each grid column:
+						a += in[xr + ic];
+				}
+				o[pro + pc] = a * k; //Record value.
+			}
+		}
+	}
+	
+	/**
+	 * Average pooling over one channel with 2x2 windows.
+	 * 
+	 * @param in Flattened input maps.
+	 * @param ci Offset of the input channel.
+	 * @param co Offset of the pooled channel.
+	 */
+	private void avg2(double[] in, int ci, int co) {
+		for(int pr = 0; pr < p; pr++) { //For each pooled row:
+			final int prx = ci + 2 * pr * s, //Input row index.
+					  pro = co + pr * p; //Pooled row index.
+			for(int pc = 0; pc < p; pc++) { //For each pooled column:
+				final int x0 = prx + 2 * pc, //Window origin.
+						  x2 = x0 + s; //Second window row.
+				o[pro + pc] = (in[x0] + in[x0 + 1] + in[x2] + in[x2 + 1]) * 0.25; //Record value.
+			}
+		}
+	}
+	
+	/**
+	 * Max pooling over one group of channels.
+	 * 
+	 * @param in Flattened input maps.
+	 * @param ci Offset of the first input channel in the group.
+	 * @param co Offset of the pooled channel.
+	 */
+	private void maxC(double[] in, int ci, int co) {
+		for(int icx = 0; icx < sq; icx++) { //For each input element:
+			double a = in[ci + icx]; //Selected value.
+			int d = 0; //Selected channel offset.
+			for(int ich = 1; ich < f; ich++) { //For each grid channel:
+				final double v = in[ci + ich * sq + icx];
+				if(v > a) {a = v; d = ich;}
+			}
+			o[co + icx] = a; //Record value.
+			select(co + icx, ci + d * sq + icx, d);
+		}
+	}
+	
+	/**
+	 * Absolute max pooling over one group of channels.
+	 * 
+	 * @param in Flattened input maps.
+	 * @param ci Offset of the first input channel in the group.
+	 * @param co Offset of the pooled channel.
+	 */
+	private void maxAbsC(double[] in, int ci, int co) {
+		for(int icx = 0; icx < sq; icx++) { //For each input element:
+			double m = Math.abs(in[ci + icx]); //Selected magnitude.
+			int d = 0; //Selected channel offset.
+			for(int ich = 1; ich < f; ich++) { //For each grid channel:
+				final double v = Math.abs(in[ci + ich * sq + icx]);
+				if(v > m) {m = v; d = ich;}
+			}
+			final int x = ci + d * sq + icx; //Selected index.
+			o[co + icx] = in[x]; //Record value.
+			select(co + icx, x, d);
+		}
+	}
+	
+	/**
+	 * Average pooling over one group of channels.
+	 * 
+	 * @param in Flattened input maps.
+	 * @param ci Offset of the first input channel in the group.
+	 * @param co Offset of the pooled channel.
+	 */
+	private void avgC(double[] in, int ci, int co) {
+		final double k = 1.0 / (double) f; //Group scale.
+		for(int icx = 0; icx < sq; icx++) { //For each input element:
+			double a = 0.0; //Group sum.
+			for(int ich = 0; ich < f; ich++) //For each grid channel:
+				a += in[ci + ich * sq + icx];
+			o[co + icx] = a * k; //Record value.
+		}
+	}
+	
+	/**
+	 * Max pooling over one image in the {@linkplain Layout#HWC} layout. Each
+	 * window is scanned once with the channels innermost.
+	 * 
+	 * @param in Flattened input maps.
+	 * @param ci Offset of the input image.
+	 * @param co Offset of the pooled image.
+	 */
+	private void maxHWC(double[] in, int ci, int co) {
+		for(int pr = 0; pr < p; pr++) //For each pooled row:
+			for(int pc = 0; pc < p; pc++) { //For each pooled column:
+				final int origin = ci + (pr * st * s + pc * st) * c, //Window origin.
+						  oidx = co + (pr * p + pc) * c; //Output index.
+				for(int ch = 0; ch < c; ch++) { //For each channel:
+					o[oidx + ch] = in[origin + ch]; //Record first value.
+					select(oidx + ch, origin + ch, 0);
+				}
+				for(int ir = 0; ir < f; ir++) //For each grid row:
+					for(int ic = (ir == 0)? 1:0; ic < f; ic++) { //For each remaining grid column:
+						final int xr = origin + (ir * s + ic) * c; //Input element index.
+						for(int ch = 0; ch < c; ch++) { //For each channel:
+							final double v = in[xr + ch];
+							if(v > o[oidx + ch]) {
+								o[oidx + ch] = v; //Record value.
+								select(oidx + ch, xr + ch, ir * f + ic);
 							}
 						}
-						final int oidx = prp + pc; //Output index.
-						o[oidx] = a; //Record value.
-						if(!avgType)
-							i[oidx] = x; //Record index.
 					}
-				}
 			}
-		} else { //Pooling channels: TODO chk indices
-			for(int ir = 0; ir < s; ir++) { //For each input row:
-				final int irs = ir * s; //Input row index.
-				for(int ic = 0; ic < s; ic++) { //For each input column:
-					final int icx = irs + ic; //Input column index.
-					for(int pch = 0; pch < p; pch++) { //For each pooled channel index.
-						final int pchf = pch * f; //Pool factored channel index.
-						double a = (t == PoolingTypes.MaxC)? -Double.MAX_VALUE:0.0; //Compare value.
-						int x = pchf; //Input index.
-						for(int ich = 0; ich < f; ich++) { //For each grid channel:
-							final int chx = (pchf + ich) * sq + icx; //Channel grid index.
-							final double b = in[chx]; //Input value.
-							switch(t) {
-							case MaxC: if(a < b) {a = b; x = chx;}			   			   break;
-							case MaxAbsC: if(Math.abs(a) < Math.abs(b)) {a = b; x = chx;}  break;
-							case AvgC: a += b / (double) f; 				  			   break;
-							default: error("Invalid pooling type."); 					   break;
+	}
+	
+	/**
+	 * Absolute max pooling over one image in the {@linkplain Layout#HWC} layout.
+	 * 
+	 * @param in Flattened input maps.
+	 * @param ci Offset of the input image.
+	 * @param co Offset of the pooled image.
+	 */
+	private void maxAbsHWC(double[] in, int ci, int co) {
+		for(int pr = 0; pr < p; pr++) //For each pooled row:
+			for(int pc = 0; pc < p; pc++) { //For each pooled column:
+				final int origin = ci + (pr * st * s + pc * st) * c, //Window origin.
+						  oidx = co + (pr * p + pc) * c; //Output index.
+				for(int ch = 0; ch < c; ch++) { //For each channel:
+					o[oidx + ch] = in[origin + ch]; //Record first value.
+					select(oidx + ch, origin + ch, 0);
+				}
+				for(int ir = 0; ir < f; ir++) //For each grid row:
+					for(int ic = (ir == 0)? 1:0; ic < f; ic++) { //For each remaining grid column:
+						final int xr = origin + (ir * s + ic) * c; //Input element index.
+						for(int ch = 0; ch < c; ch++) { //For each channel:
+							final double v = in[xr + ch];
+							if(Math.abs(v) > Math.abs(o[oidx + ch])) {
+								o[oidx + ch] = v; //Record value.
+								select(oidx + ch, xr + ch, ir * f + ic);
 							}
 						}
-						final int oidx = (pch * sq) + icx; //Output index.
-						o[oidx] = a; //Record value.
-						if(!avgType)
-							i[oidx] = x; //Record index.
 					}
+			}
+	}
+	
+	/**
+	 * Average pooling over one image in the {@linkplain Layout#HWC} layout.
+	 * 
+	 * @param in Flattened input maps.
+	 * @param ci Offset of the input image.
+	 * @param co Offset of the pooled image.
+	 */
+	private void avgHWC(double[] in, int ci, int co) {
+		final double k = 1.0 / (double) fq; //Window scale.
+		for(int pr = 0; pr < p; pr++) //For each pooled row:
+			for(int pc = 0; pc < p; pc++) { //For each pooled column:
+				final int origin = ci + (pr * st * s + pc * st) * c, //Window origin.
+						  oidx = co + (pr * p + pc) * c; //Output index.
+				Arrays.fill(o, oidx, oidx + c, 0.0);
+				for(int ir = 0; ir < f; ir++) //For each grid row:
+					for(int ic = 0; ic < f; ic++) { //For each grid column:
+						final int xr = origin + (ir * s + ic) * c; //Input element index.
+						for(int ch = 0; ch < c; ch++) //For each channel:
+							o[oidx + ch] += in[xr + ch];
+					}
+				for(int ch = 0; ch < c; ch++) //For each channel:
+					o[oidx + ch] *= k; //Scale sum.
+			}
+	}
+	
+	/**
+	 * Max pooling over the channel groups of one image in the {@linkplain Layout#HWC} layout.
+	 * 
+	 * @param in Flattened input maps.
+	 * @param ci Offset of the input image.
+	 * @param co Offset of the pooled image.
+	 */
+	private void maxCHWC(double[] in, int ci, int co) {
+		for(int pos = 0; pos < sq; pos++) //For each element position:
+			for(int pch = 0; pch < p; pch++) { //For each pooled channel:
+				final int x0 = ci + pos * c + pch * f; //First input channel in the group.
+				double a = in[x0]; //Selected value.
+				int d = 0; //Selected channel offset.
+				for(int ich = 1; ich < f; ich++) //For each grid channel:
+					if(in[x0 + ich] > a) {a = in[x0 + ich]; d = ich;}
+				o[co + pos * p + pch] = a; //Record value.
+				select(co + pos * p + pch, x0 + d, d);
+			}
+	}
+	
+	/**
+	 * Absolute max pooling over the channel groups of one image in the {@linkplain Layout#HWC} layout.
+	 * 
+	 * @param in Flattened input maps.
+	 * @param ci Offset of the input image.
+	 * @param co Offset of the pooled image.
+	 */
+	private void maxAbsCHWC(double[] in, int ci, int co) {
+		for(int pos = 0; pos < sq; pos++) //For each element position:
+			for(int pch = 0; pch < p; pch++) { //For each pooled channel:
+				final int x0 = ci + pos * c + pch * f; //First input channel in the group.
+				double m = Math.abs(in[x0]); //Selected magnitude.
+				int d = 0; //Selected channel offset.
+				for(int ich = 1; ich < f; ich++) { //For each grid channel:
+					final double v = Math.abs(in[x0 + ich]);
+					if(v > m) {m = v; d = ich;}
 				}
+				o[co + pos * p + pch] = in[x0 + d]; //Record value.
+				select(co + pos * p + pch, x0 + d, d);
+			}
+	}
+	
+	/**
+	 * Average pooling over the channel groups of one image in the {@linkplain Layout#HWC} layout.
+	 * 
+	 * @param in Flattened input maps.
+	 * @param ci Offset of the input image.
+	 * @param co Offset of the pooled image.
+	 */
+	private void avgCHWC(double[] in, int ci, int co) {
+		final double k = 1.0 / (double) f; //Group scale.
+		for(int pos = 0; pos < sq; pos++) //For each element position:
+			for(int pch = 0; pch < p; pch++) { //For each pooled channel:
+				final int x0 = ci + pos * c + pch * f; //First input channel in the group.
+				double a = 0.0; //Group sum.
+				for(int ich = 0; ich < f; ich++) //For each grid channel:
+					a += in[x0 + ich];
+				o[co + pos * p + pch] = a * k; //Record value.
 			}
-		}
-		return o; //Return pooled map.
 	}
 	
 	/**
@@ -187,51 +596,304 @@ public class Pool implements Serializable, ConvolutionLayer {
 	 * @param loss Flattened gradient with respect to the pooled output.
 	 * @return Flattened gradient with respect to the input.
 	 */
-	public double[] backward(double[] loss) {
-		final double[] out = new double[is];
+	public double[] backward(double[] loss) {return backward(loss, 1);}
+	
+	/**
+	 * Feeds a batch of gradients to the correct locations on the input maps.
+	 * 
+	 * @param loss Flattened gradients with respect to the pooled outputs, indexed by image.
+	 * @param n Number of images.
+	 * @return Flattened gradients with respect to the inputs, indexed by image.
+	 */
+	@Override
+	public double[] backward(double[] loss, int n) {
+		if(n != batch || loss.length != n * os)
+			error("Batch size does not match the last feed-forward operation.");
+		if(g == null || g.length != n * is) //If the batch size changed:
+			g = new double[n * is];
+		run(new Task(loss, g, 0, n * units(), false));
+		return g; //Return expanded gradients.
+	}
+	
+	/**
+	 * Expands the gradient of one unit of work.
+	 * 
+	 * @param loss Flattened gradients with respect to the pooled outputs.
+	 * @param out Flattened gradients with respect to the inputs.
+	 * @param u Unit index, which is a channel for spatial pooling or a
+	 * 			pooled channel for channel pooling, offset by image.
+	 */
+	private void unpool(double[] loss, double[] out, int u) {
+		final int b = u / units(), //Image index.
+				  x = u % units(); //Channel index.
+		if(hwc) {
+			unpoolHWC(loss, out, b);
+			return;
+		}
+		final int
+				  lo = b * os + x * (channelPooling? sq:pq), //Offset of the pooled gradient.
+				  oo = b * is + x * (channelPooling? f * sq:sq), //Offset of the input gradient.
+				  ol = channelPooling? sq:pq, //Size of the pooled gradient.
+				  il = channelPooling? f * sq:sq; //Size of the input gradient.
 		switch(t) {
 		case Avg:
+		case GlobalAvg:
 			{
-				for(int ch = 0; ch < c; ch++) { //For each channel:
-					final int cpq = ch * pq, //Pooled channel index.
-					  	  	  csq = ch * sq; //Input channel index.
-					for(int pr = 0; pr < p; pr++) { //For each pooled row:
-						final int prc = cpq + (pr * p), //Pooled column index.
-								  prf = pr * f; //Pool factored row index.
-						for(int pc = 0; pc < p; pc++) { //For each pooled column:
-							final int pcf = csq + (pc * f); //Pool factored column index.
-							final double g = loss[prc + pc]; //Pooled gradient.
-							for(int ir = 0; ir < f; ir++) { //For each grid row:
-								final int csr = pcf + (prf + ir) * s; //Input grid row.
+				final double k = 1.0 / (double) fq; //Window scale.
+				if(st != f) //If windows may overlap or leave gaps:
+					Arrays.fill(out, oo, oo + il, 0.0);
+				for(int pr = 0; pr < p; pr++) { //For each pooled row:
+					final int prc = lo + pr * p, //Pooled row index.
+							  prx = oo + pr * st * s; //Input row index.
+					for(int pc = 0; pc < p; pc++) { //For each pooled column:
+						final int origin = prx + pc * st; //Window origin.
+						final double v = loss[prc + pc] * k; //Window gradient.
+						for(int ir = 0; ir < f; ir++) { //For each grid row:
+							final int xr = origin + ir * s; //Input row index.
+							if(st == f)
+								Arrays.fill(out, xr, xr + f, v); //Record gradient.
+							else
 								for(int ic = 0; ic < f; ic++) //For each grid column:
-									out[csr + ic] = g; //Record gradient.
-							}
+									out[xr + ic] += v; //Accumulate gradient.
 						}
 					}
 				}
 			} break;
 		case AvgC:
 			{
-				for(int pch = 0; pch < p; pch++) { //For each pooled channel:
-					final int pchidx  = pch * sq, //Pooled channel index.
-							  pfchidx = pch * f; //Pool factored channel index.
-					for(int ich = 0; ich < f; ich++) { //For each grid channel:
-						final int ichidx = (pfchidx + ich) * sq; //Input channel index.
-						for(int ir = 0; ir < s; ir++) { //For each row:
-							final int irs   = ir * s, //Row index.
-									  iridx = ichidx + irs, //Input row index. 
-									  pridx = pchidx + irs; //Pooled row index.
-							for(int ic = 0; ic < s; ic++) //For each column:
-								out[iridx + ic] = loss[pridx + ic]; //Expand gradient.
-						}
+				final double k = 1.0 / (double) f; //Group scale.
+				for(int ich = 0; ich < f; ich++) //For each grid channel:
+					for(int icx = 0; icx < sq; icx++) //For each input element:
+						out[oo + ich * sq + icx] = loss[lo + icx] * k; //Expand gradient.
+			} break;
+		default:
+			Arrays.fill(out, oo, oo + il, 0.0);
+			if(compact)
+				for(int y = lo; y < lo + ol; y++) out[index(y)] += loss[y]; //Accumulate gradient.
+			else
+				for(int y = lo; y < lo + ol; y++) out[i[y]] += loss[y]; //Accumulate gradient.
+			break;
+		}
+	}
+	
+	/**
+	 * Expands the gradient of one image in the {@linkplain Layout#HWC} layout.
+	 * 
+	 * @param loss Flattened gradients with respect to the pooled outputs.
+	 * @param out Flattened gradients with respect to the inputs.
+	 * @param b Image index.
+	 */
+	private void unpoolHWC(double[] loss, double[] out, int b) {
+		final int lo = b * os, //Offset of the pooled gradient.
+				  oo = b * is; //Offset of the input gradient.
+		Arrays.fill(out, oo, oo + is, 0.0);
+		switch(t) {
+		case Avg:
+		case GlobalAvg:
+			{
+				final double k = 1.0 / (double) fq; //Window scale.
+				for(int pr = 0; pr < p; pr++) //For each pooled row:
+					for(int pc = 0; pc < p; pc++) { //For each pooled column:
+						final int origin = oo + (pr * st * s + pc * st) * c, //Window origin.
+								  lidx = lo + (pr * p + pc) * c; //Pooled gradient index.
+						for(int ir = 0; ir < f; ir++) //For each grid row:
+							for(int ic = 0; ic < f; ic++) { //For each grid column:
+								final int xr = origin + (ir * s + ic) * c; //Input element index.
+								for(int ch = 0; ch < c; ch++) //For each channel:
+									out[xr + ch] += loss[lidx + ch] * k; //Accumulate gradient.
+							}
 					}
-				}
 			} break;
-		default: for(int x = 0; x < os; x++) out[i[x]] = loss[x]; break; //Record gradient.
+		case AvgC:
+			{
+				final double k = 1.0 / (double) f; //Group scale.
+				for(int pos = 0; pos < sq; pos++) //For each element position:
+					for(int pch = 0; pch < p; pch++) { //For each pooled channel:
+						final int x0 = oo + pos * c + pch * f; //First input channel in the group.
+						final double v = loss[lo + pos * p + pch] * k; //Group gradient.
+						for(int ich = 0; ich < f; ich++) //For each grid channel:
+							out[x0 + ich] = v; //Expand gradient.
+					}
+			} break;
+		default:
+			if(compact)
+				for(int y = lo; y < lo + os; y++) out[index(y)] += loss[y]; //Accumulate gradient.
+			else
+				for(int y = lo; y < lo + os; y++) out[i[y]] += loss[y]; //Accumulate gradient.
+			break;
 		}
-		return out; //Return expanded gradient.
 	}
 	
+	/**
+	 * A task which pools or expands the gradient of a range of units, splitting
+	 * the range in half until it is small enough to run on one thread.
+	 * 
+	 * @author prgmTrouble
+	 */
+	private final class Task extends RecursiveAction {
+		/***/
+		private static final long serialVersionUID = 1L;
+		
+		/**Input maps or pooled gradients.*/
+		private final double[] src;
+		/**Input gradients, or null when pooling.*/
+		private final double[] dst;
+		/**First unit.*/
+		private final int lo;
+		/**Last unit, exclusive.*/
+		private final int hi;
+		/**True if pooling, false if expanding the gradient.*/
+		private final boolean fwd;
+		
+		public Task(double[] src, double[] dst, int lo, int hi, boolean fwd) {
+			this.src = src;
+			this.dst = dst;
+			this.lo = lo;
+			this.hi = hi;
+			this.fwd = fwd;
+		}
+		
+		@Override
+		protected void compute() {
+			if(hi - lo > 1 && (long) (hi - lo) * unitSize() > GRAIN) { //If the range should be split:
+				final int mid = (lo + hi) >>> 1;
+				invokeAll(new Task(src, dst, lo, mid, fwd), new Task(src, dst, mid, hi, fwd));
+			} else
+				for(int u = lo; u < hi; u++) //For each unit:
+					if(fwd)
+						pool(src, u);
+					else
+						unpool(src, dst, u);
+		}
+	}
+	
+	/**
+	 * Expands a window offset recorded in compact mode to an input index.
+	 * 
+	 * @param x Output index.
+	 * @return Input index of the pooled element.
+	 */
+	private int index(int x) {
+		final int off = w[x] & 0xFF, //Offset within window.
+				  io  = (x / os) * is; //Offset of the input map.
+		x %= os; //Index within the output map.
+		if(hwc) {
+			if(channelPooling)
+				return io + (x / p) * c + (x % p) * f + off;
+			final int pos = x / c; //Pooled element position.
+			return io + (((pos / p) * st + off / f) * s + (pos % p) * st + off % f) * c + x % c;
+		}
+		if(channelPooling) {
+			final int icx = x % sq; //Input column index.
+			return io + ((x / sq) * f + off) * sq + icx;
+		}
+		final int r = x % pq; //Index within pooled channel.
+		return io + (x / pq) * sq + ((r / p) * st + off / f) * s + (r % p) * st + off % f;
+	}
+	
+	/**
+	 * Sets the activation-memory mode. When enabled, max and absolute max
+	 * pooling record the offset of the selected element within its window
+	 * as a single byte instead of its full index. Windows with more than
+	 * 256 elements always use full indices.
+	 * 
+	 * @param compact True if compact storage should be used.
+	 */
+	@Override
+	public void setCompact(boolean compact) {
+		if(avgType)
+			return;
+		final int n = (o == null)? os:o.length; //Size of the pooled buffer.
+		if(this.compact = compact && (channelPooling? f:fq) <= 256) {
+			w = new byte[n];
+			i = null;
+		} else {
+			i = new int[n];
+			w = null;
+		}
+	}
+	
+	/**
+	 * Allocates the pooled tensor, indices, and gradient for batches of <code>n</code> images.
+	 * 
+	 * @param n Number of images.
+	 */
+	@Override
+	public void plan(int n) {
+		if(n <= 0)
+			error("Invalid batch size.");
+		o = new double[n * os];
+		g = new double[n * is];
+		setCompact(compact);
+	}
+	
+	/**@return Size of the flattened input map.*/
+	@Override
+	public int inputLength() {return is;}
+	
+	/**@return Size of the flattened output map.*/
+	@Override
+	public int outputLength() {return os;}
+	
+	/**@return Number of input channels.*/
+	@Override
+	public int inputChannels() {return c;}
+	
+	/**@return Number of output channels.*/
+	@Override
+	public int outputChannels() {return channelPooling? p:c;}
+	
+	/**
+	 * @return Input map side length, window side length, distance between windows,
+	 * 		   and padding. Channel pooling has 1x1 windows, and global pooling has a
+	 * 		   single window which covers the whole input map.
+	 */
+	@Override
+	public int[] geometry() {
+		if(channelPooling)
+			return new int[] {s, 1, 1, 0};
+		return new int[] {s, f, (t == PoolingTypes.GlobalAvg)? 1:st, 0};
+	}
+	
+	/**
+	 * Creates a pooling layer which applies the windows of this layer to input maps
+	 * with another side length. Global pooling becomes {@linkplain PoolingTypes#Avg}
+	 * pooling with a window the size of the original input map.
+	 * 
+	 * @param inputSize Input map side length.
+	 * @param pad Must be zero.
+	 * @return The resized layer.
+	 */
+	@Override
+	public Pool resize(int inputSize, int pad) {
+		if(pad != 0)
+			error("Pooling layers do not support padding.");
+		final Pool r;
+		if(channelPooling)
+			r = new Pool(inputSize, c, f, t);
+		else
+			r = new Pool(inputSize, c, f, (t == PoolingTypes.GlobalAvg)? 1:st, (t == PoolingTypes.GlobalAvg)? PoolingTypes.Avg:t);
+		r.hwc = hwc;
+		r.setCompact(compact);
+		return r;
+	}
+	
+	/**
+	 * Sets the memory layout of the input and output maps.
+	 * 
+	 * @param layout Memory layout.
+	 */
+	@Override
+	public void setLayout(Layout layout) {hwc = (layout == Layout.HWC);}
+	
+	/**@return True, since the layer applies no function before its windows.*/
+	@Override
+	public boolean preservesZero() {return true;}
+	
+	/**Releases the pooled tensor and indices. They are reallocated by the next call to {@linkplain #forward(double[])}.*/
+	@Override
+	public void release() {o = null; i = null; w = null;}
+	
 	/**
 	 * Wraps the output of {@linkplain #backward(double[])} in a {@linkplain Parameter}.
 	 * 
@@ -0,0 +1,585 @@
+package com.prgmtrouble.ml.prgmML.convolution;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import com.prgmtrouble.ml.prgmML.generic.ListOfTypes;
+import com.prgmtrouble.ml.prgmML.generic.Parameter;
+import com.prgmtrouble.ml.prgmML.math.FunctionTypes;
+import com.prgmtrouble.ml.prgmML.math.Tensor.Layout;
+import com.prgmtrouble.ml.prgmML.math.Vector;
+
+/**
+ * An {@linkplain Activation} followed by a transposed convolution, which upsamples
+ * its input. Each input element is scattered directly into the output positions it
+ * contributes to, so no zeros are inserted between the input elements and no
+ * multiplications are spent on them. The output side length is
+ * <code>(inputSize - 1) * step + filterSize - 2 * pad</code>.
+ * 
+ * Work is split across threads by output channel for the feed-forward operation
+ * and the filter gradients, and by input channel for the input gradient.
+ * 
+ * @author prgmTrouble
+ */
+public class TransposedActivation implements Serializable, ConvolutionLayer {
+	/***/
+	private static final long serialVersionUID = 1L;
+	
+	/**Minimum number of multiplications for which work is split across threads.*/
+	private static final int GRAIN = 1 << 15;
+	/**Task mode which scatters the input into the output.*/
+	private static final int FORWARD = 0;
+	/**Task mode which gathers the gradient with respect to the input.*/
+	private static final int INPUT = 1;
+	/**Task mode which accumulates the filter gradients and updates the filters.*/
+	private static final int FILTER = 2;
+	
+	/**Vector which holds the activation function.*/
+	private final Vector act;
+	/**Convolutional filters, one for each output channel.*/
+	private final Filter[] filters;
+	/**Input map side length.*/
+	private final int is;
+	/**Filter side length.*/
+	private final int fs;
+	/**Step size, which is the upsampling factor.*/
+	private final int step;
+	/**Number of input channels.*/
+	private final int c;
+	/**Padding removed from each side of the output.*/
+	private final int pad;
+	/**Side length of the output maps.*/
+	private final int os;
+	/**Learning rate.*/
+	private double lr;
+	/**True if the maps and filters use the {@linkplain Layout#HWC} layout.*/
+	private boolean hwc;
+	/**Input to the transposed convolution, which is the output of the activation function.*/
+	private transient double[] in;
+	/**Number of images in the last batch, or zero if the last input was a single image.*/
+	private transient int batch;
+	/**Number of images the buffers were planned for, or zero if no plan was built.*/
+	private transient int planned;
+	/**Planned buffer for the output of the activation function.*/
+	private transient double[] actBuffer;
+	/**Planned buffer for the output of the transposed convolution.*/
+	private transient double[] outBuffer;
+	/**Planned buffer for the gradient with respect to the input.*/
+	private transient double[] gradBuffer;
+	/**Buffers for the gradient with respect to each filter.*/
+	private transient double[][] filterBuffers;
+	/**Type for creating new {@linkplain Parameter} objects.*/
+	private static final ListOfTypes outputType = new ListOfTypes(new Class<?>[] {double[].class});
+	
+	/**
+	 * Creates a transposed convolutional activation.
+	 * 
+	 * @param filters Convolutional filters, one for each output channel. Each filter
+	 * 				  must have <code>channels</code> channels.
+	 * @param function Type of activation function.
+	 * @param inputSize Input map side length.
+	 * @param filterSize Filter side length.
+	 * @param step Step size, which is the upsampling factor.
+	 * @param channels Number of input channels.
+	 * @param pad Padding removed from each side of the output.
+	 * @param learningRate Learning rate.
+	 */
+	public TransposedActivation(Filter[] filters, FunctionTypes function,
+								int inputSize, int filterSize, int step, int channels, int pad,
+								double learningRate) {
+		this(filters, new Vector(function), inputSize, filterSize, step, channels, pad, learningRate);
+	}
+	
+	/**
+	 * Creates a transposed convolutional activation with the given activation function vector.
+	 * 
+	 * @param filters Convolutional filters, one for each output channel.
+	 * @param act Vector which holds the activation function.
+	 * @param inputSize Input map side length.
+	 * @param filterSize Filter side length.
+	 * @param step Step size, which is the upsampling factor.
+	 * @param channels Number of input channels.
+	 * @param pad Padding removed from each side of the output.
+	 * @param learningRate Learning rate.
+	 */
+	private TransposedActivation(Filter[] filters, Vector act,
+								 int inputSize, int filterSize, int step, int channels, int pad,
+								 double learningRate) {
+		if(step <= 0 || pad < 0)
+			error("Invalid step size or padding.");
+		this.act = act;
+		this.filters = filters;
+		is = inputSize;
+		fs = filterSize;
+		this.step = step;
+		c = channels;
+		this.pad = pad;
+		os = outputSize(is, fs, step, pad);
+		for(Filter f : filters)
+			if(f.size() != fs || f.channels() != c)
+				error("Filter dimensions do not match the input.");
+		lr = learningRate;
+	}
+	
+	/**
+	 * Computes the side length of a transposed convolution output.
+	 * 
+	 * @param is Input map side length.
+	 * @param fs Filter side length.
+	 * @param step Step size.
+	 * @param pad Padding removed from each side of the output.
+	 * @return The side length of the output map.
+	 */
+	public static int outputSize(int is, int fs, int step, int pad) {
+		final int os = (is - 1) * step + fs - 2 * pad;
+		if(os <= 0)
+			error("Padding is larger than the output.");
+		return os;
+	}
+	
+	/**
+	 * Scatters each input map into the output channel of one filter.
+	 * 
+	 * @param in Flattened input maps, indexed by image.
+	 * @param out Flattened output maps, indexed by image.
+	 * @param n Number of images.
+	 * @param k Filter index.
+	 */
+	private void scatter(double[] in, double[] out, int n, int k) {
+		final int fl = filters.length,
+				  isq = is * is,
+				  osq = os * os,
+				  fsq = fs * fs,
+				  ich = hwc? 1:isq, //Input channel stride.
+				  ipx = hwc? c:1,   //Input position stride.
+				  och = hwc? 1:osq, //Output channel stride.
+				  opx = hwc? fl:1,  //Output position stride.
+				  fch = hwc? 1:fsq, //Filter channel stride.
+				  fpx = hwc? c:1;   //Filter position stride.
+		final double[] f = filters[k].get();
+		for(int b = 0; b < n; b++) { //For each image:
+			final int io = b * c * isq,
+					  oo = b * fl * osq + k * och;
+			if(hwc)
+				for(int x = 0; x < osq; x++) out[oo + x * opx] = 0.0;
+			else
+				Arrays.fill(out, oo, oo + osq, 0.0);
+			for(int ch = 0; ch < c; ch++) //For each input channel:
+				for(int ir = 0; ir < is; ir++) //For each input row:
+					for(int ic = 0; ic < is; ic++) { //For each input column:
+						final double v = in[io + ch * ich + (ir * is + ic) * ipx];
+						if(v == 0.0)
+							continue;
+						for(int fr = 0; fr < fs; fr++) { //For each filter row:
+							final int or = ir * step - pad + fr;
+							if(or < 0 || or >= os)
+								continue;
+							final int orx = oo + or * os * opx,
+									  frx = ch * fch + fr * fs * fpx;
+							for(int fc = 0; fc < fs; fc++) { //For each filter column:
+								final int oc = ic * step - pad + fc;
+								if(oc >= 0 && oc < os)
+									out[orx + oc * opx] += v * f[frx + fc * fpx]; //Scatter.
+							}
+						}
+					}
+		}
+	}
+	
+	/**
+	 * Gathers the gradient with respect to one input channel.
+	 * 
+	 * @param loss Flattened gradients with respect to the output maps, indexed by image.
+	 * @param di Flattened gradients with respect to the input maps, indexed by image.
+	 * @param n Number of images.
+	 * @param ch Input channel index.
+	 */
+	private void gather(double[] loss, double[] di, int n, int ch) {
+		final int fl = filters.length,
+				  isq = is * is,
+				  osq = os * os,
+				  fsq = fs * fs,
+				  ich = hwc? 1:isq, //Input channel stride.
+				  ipx = hwc? c:1,   //Input position stride.
+				  och = hwc? 1:osq, //Output channel stride.
+				  opx = hwc? fl:1,  //Output position stride.
+				  fch = hwc? 1:fsq, //Filter channel stride.
+				  fpx = hwc? c:1;   //Filter position stride.
+		for(int b = 0; b < n; b++) { //For each image:
+			final int io = b * c * isq + ch * ich,
+					  lo = b * fl * osq;
+			for(int ir = 0; ir < is; ir++) //For each input row:
+				for(int ic = 0; ic < is; ic++) { //For each input column:
+					double s = 0.0;
+					for(int k = 0; k < fl; k++) { //For each filter:
+						final double[] f = filters[k].get();
+						final int lk = lo + k * och;
+						for(int fr = 0; fr < fs; fr++) { //For each filter row:
+							final int or = ir * step - pad + fr;
+							if(or < 0 || or >= os)
+								continue;
+							final int orx = lk + or * os * opx,
+									  frx = ch * fch + fr * fs * fpx;
+							for(int fc = 0; fc < fs; fc++) { //For each filter column:
+								final int oc = ic * step - pad + fc;
+								if(oc >= 0 && oc < os)
+									s += loss[orx + oc * opx] * f[frx + fc * fpx];
+							}
+						}
+					}
+					di[io + (ir * is + ic) * ipx] = s;
+				}
+		}
+	}
+	
+	/**
+	 * Accumulates the gradient of one filter across the batch and updates the filter.
+	 * 
+	 * @param loss Flattened gradients with respect to the output maps, indexed by image.
+	 * @param n Number of images.
+	 * @param k Filter index.
+	 */
+	private void learn(double[] loss, int n, int k) {
+		final int fl = filters.length,
+				  isq = is * is,
+				  osq = os * os,
+				  fsq = fs * fs,
+				  ich = hwc? 1:isq, //Input channel stride.
+				  ipx = hwc? c:1,   //Input position stride.
+				  och = hwc? 1:osq, //Output channel stride.
+				  opx = hwc? fl:1,  //Output position stride.
+				  fch = hwc? 1:fsq, //Filter channel stride.
+				  fpx = hwc? c:1;   //Filter position stride.
+		final double[] df = filterBuffers[k];
+		Arrays.fill(df, 0.0);
+		for(int b = 0; b < n; b++) { //For each image:
+			final int io = b * c * isq,
+					  lo = b * fl * osq + k * och;
+			for(int ch = 0; ch < c; ch++) //For each input channel:
+				for(int ir = 0; ir < is; ir++) //For each input row:
+					for(int ic = 0; ic < is; ic++) { //For each input column:
+						final double v = in[io + ch * ich + (ir * is + ic) * ipx];
+						if(v == 0.0)
+							continue;
+						for(int fr = 0; fr < fs; fr++) { //For each filter row:
+							final int or = ir * step - pad + fr;
+							if(or < 0 || or >= os)
+								continue;
+							final int orx = lo + or * os * opx,
+									  frx = ch * fch + fr * fs * fpx;
+							for(int fc = 0; fc < fs; fc++) { //For each filter column:
+								final int oc = ic * step - pad + fc;
+								if(oc >= 0 && oc < os)
+									df[frx + fc * fpx] += v * loss[orx + oc * opx];
+							}
+						}
+					}
+		}
+		filters[k].update(df, lr); //Update once per batch.
+	}
+	
+	/**
+	 * Runs a task on the common {@linkplain ForkJoinPool} if it is large enough to
+	 * be split, otherwise runs it on the calling thread.
+	 * 
+	 * @param task Task to run.
+	 */
+	private void run(Task task) {
+		if(task.cost(task.hi - task.lo) > GRAIN)
+			ForkJoinPool.commonPool().invoke(task);
+		else
+			task.compute();
+	}
+	
+	/**
+	 * A task which runs one of the kernels over a range of channels, splitting
+	 * the range in half until it is small enough to run on one thread.
+	 * 
+	 * @author prgmTrouble
+	 */
+	private final class Task extends RecursiveAction {
+		/***/
+		private static final long serialVersionUID = 1L;
+		
+		/**Input maps or output gradients.*/
+		private final double[] src;
+		/**Output maps or input gradients, or null when learning.*/
+		private final double[] dst;
+		/**Number of images.*/
+		private final int n;
+		/**First channel.*/
+		private final int lo;
+		/**Last channel, exclusive.*/
+		private final int hi;
+		/**One of {@linkplain #FORWARD}, {@linkplain #INPUT}, or {@linkplain #FILTER}.*/
+		private final int mode;
+		
+		public Task(double[] src, double[] dst, int n, int lo, int hi, int mode) {
+			this.src = src;
+			this.dst = dst;
+			this.n = n;
+			this.lo = lo;
+			this.hi = hi;
+			this.mode = mode;
+		}
+		
+		/**
+		 * @param units Number of channels.
+		 * @return Approximate number of multiplications for the given number of channels.
+		 */
+		private long cost(int units) {
+			final long unit = (long) n * is * is * fs * fs; //Multiplications per channel pair.
+			return units * unit * ((mode == INPUT)? filters.length:c);
+		}
+		
+		@Override
+		protected void compute() {
+			if(hi - lo > 1 && cost(hi - lo) > GRAIN) { //If the range should be split:
+				final int mid = (lo + hi) >>> 1;
+				invokeAll(new Task(src, dst, n, lo, mid, mode), new Task(src, dst, n, mid, hi, mode));
+			} else
+				for(int u = lo; u < hi; u++) //For each channel:
+					switch(mode) {
+					case FORWARD: scatter(src, dst, n, u); break;
+					case INPUT	: gather(src, dst, n, u); break;
+					default		: learn(src, n, u); break;
+					}
+		}
+	}
+	
+	/**
+	 * Upsamples a batch of input maps.
+	 * 
+	 * @param in Flattened input maps, indexed by image.
+	 * @param n Number of images.
+	 * @param out Buffer for the flattened output maps.
+	 * @return The flattened output maps, indexed by image.
+	 */
+	private double[] transpose(double[] in, int n, double[] out) {
+		run(new Task(in, out, n, 0, filters.length, FORWARD));
+		return out;
+	}
+	
+	/**
+	 * Performs the backpropagation operation for {@linkplain #transpose(double[], int, double[])}.
+	 * The input gradient is computed first, then the gradient for each filter is
+	 * accumulated across the batch and the filter is updated.
+	 * 
+	 * @param loss Flattened gradient with respect to the output maps, indexed by image.
+	 * @param n Number of images.
+	 * @param di Buffer for the gradient with respect to the input maps.
+	 * @return Flattened gradient with respect to the input maps, indexed by image.
+	 */
+	private double[] backTranspose(double[] loss, int n, double[] di) {
+		if(in == null)
+			error("Feed-forward function has not been called for the current cycle.");
+		if(loss.length != n * outputLength())
+			error("Invalid gradient size.");
+		if(filterBuffers == null)
+			filterBuffers = new double[filters.length][c * fs * fs];
+		run(new Task(loss, di, n, 0, c, INPUT));
+		run(new Task(loss, null, n, 0, filters.length, FILTER));
+		return di;
+	}
+	
+	/**
+	 * Performs the feed-forward operation.
+	 * 
+	 * @param input A {@linkplain Parameter} object containing the input
+	 * 				(<code>double[]</code>) followed by any other parameters as
+	 * 			    required by the activation function.
+	 * @return The flattened output maps (<code>double[]</code>) wrapped in a
+	 * 		   {@linkplain Parameter}.
+	 */
+	@Override
+	public Parameter<ListOfTypes> forward(Parameter<ListOfTypes> input) {
+		in = (double[]) act.forward(input).getValues()[0];
+		batch = 0;
+		return new Parameter<ListOfTypes>(outputType, new Object[] {transpose(in, 1, new double[outputLength()])});
+	}
+	
+	/**
+	 * Performs the backpropagation operation.
+	 * 
+	 * @param loss A {@linkplain Parameter} object containing the gradient with respect to
+	 * 			   the output (<code>double[]</code>) followed by any other parameters as
+	 * 			   required by the activation function.
+	 * @return Gradient with respect to the input map.
+	 */
+	@Override
+	public Parameter<ListOfTypes> backward(Parameter<ListOfTypes> loss) {
+		if(batch != 0)
+			error("The last feed-forward operation was batched.");
+		loss.setValue(backTranspose((double[]) loss.getValues()[0], 1, new double[inputLength()]), 0);
+		return act.backward(loss);
+	}
+	
+	/**
+	 * Performs the feed-forward operation for a batch of input maps. The
+	 * activation function must not require any parameters other than its input.
+	 * If a plan was built for <code>n</code> images, the planned buffers are used
+	 * and the returned array is overwritten by the next call.
+	 * 
+	 * @param input Flattened input maps, indexed by image.
+	 * @param n Number of images.
+	 * @return Flattened output maps, indexed by image.
+	 */
+	@Override
+	public double[] forward(double[] input, int n) {
+		final boolean pl = (n == planned); //True if the planned buffers can be used.
+		if(!pl)
+			check();
+		if(input.length != n * inputLength())
+			error("Invalid input size.");
+		act.forward(input, in = pl? actBuffer:new double[input.length]);
+		batch = n;
+		return transpose(in, n, pl? outBuffer:new double[n * outputLength()]);
+	}
+	
+	/**
+	 * Performs the backpropagation operation for a batch of gradients. Filter
+	 * gradients are summed across the batch and each filter is updated once.
+	 * If a plan was built for <code>n</code> images, the planned buffers are
+	 * used and the returned array is overwritten by the next call.
+	 * 
+	 * @param loss Flattened gradients with respect to the output maps, indexed by image.
+	 * @param n Number of images.
+	 * @return Flattened gradients with respect to the input maps, indexed by image.
+	 */
+	@Override
+	public double[] backward(double[] loss, int n) {
+		if(batch != n)
+			error("Batch size does not match the last feed-forward operation.");
+		final double[] di = backTranspose(loss, n, (n == planned)? gradBuffer:new double[n * inputLength()]);
+		act.backward(di, in, di);
+		return di;
+	}
+	
+	/**
+	 * Validates the activation function for batched execution.
+	 */
+	private void check() {
+		if(act.getFunctionTypes()[0].getTypes().length != 1)
+			error("Batched execution requires an activation function without additional parameters.");
+	}
+	
+	/**
+	 * Allocates the buffers used by {@linkplain #forward(double[], int)} and
+	 * {@linkplain #backward(double[], int)} for batches of <code>n</code> images.
+	 * 
+	 * @param n Number of images.
+	 */
+	@Override
+	public void plan(int n) {
+		check();
+		if(n <= 0)
+			error("Invalid batch size.");
+		actBuffer = new double[n * inputLength()];
+		gradBuffer = new double[n * inputLength()];
+		outBuffer = new double[n * outputLength()];
+		filterBuffers = new double[filters.length][c * fs * fs];
+		planned = n;
+	}
+	
+	/**@return Size of one flattened input map.*/
+	@Override
+	public int inputLength() {return c * is * is;}
+	
+	/**@return Size of the flattened output maps for one input.*/
+	@Override
+	public int outputLength() {return filters.length * os * os;}
+	
+	/**@return Number of input channels.*/
+	@Override
+	public int inputChannels() {return c;}
+	
+	/**@return Number of filters.*/
+	@Override
+	public int outputChannels() {return filters.length;}
+	
+	/**@return Null, since each input element is spread over a window of the output.*/
+	@Override
+	public int[] geometry() {return null;}
+	
+	/**
+	 * @param inputSize Input map side length.
+	 * @param pad Padding removed from each side of the output.
+	 * @return The resized layer.
+	 */
+	@Override
+	public TransposedActivation resize(int inputSize, int pad) {
+		final TransposedActivation r = new TransposedActivation(filters, act.copy(), inputSize, fs, step, c, pad, lr);
+		r.hwc = hwc;
+		return r;
+	}
+	
+	/**
+	 * Sets the memory layout of the input and output maps and rearranges
+	 * the filters to match.
+	 * 
+	 * @param layout Memory layout.
+	 */
+	@Override
+	public void setLayout(Layout layout) {
+		for(Filter f : filters)
+			f.setLayout(layout);
+		hwc = (layout == Layout.HWC);
+	}
+	
+	/**
+	 * Sets the learning rate.
+	 * 
+	 * @param learningRate Learning rate.
+	 */
+	public void setLR(double learningRate) {lr = learningRate;}
+	
+	/**
+	 * Sets the activation-memory mode of the activation function.
+	 * 
+	 * @param compact True if compact storage should be used.
+	 * 
+	 * @see Vector#setCompact(boolean)
+	 */
+	@Override
+	public void setCompact(boolean compact) {act.setCompact(compact);}
+	
+	/**@return True if the activation function maps zero to zero.*/
+	@Override
+	public boolean preservesZero() {return act.preservesZero();}
+	
+	/**Releases the stored output of the activation function.*/
+	@Override
+	public void release() {
+		in = null;
+		act.release();
+	}
+	
+	/**
+	 * A custom exception which indicates an error in the transposed layer.
+	 * 
+	 * @author prgmTrouble
+	 */
+	private static class TransposedActivationException extends Exception {
+		/***/
+		private static final long serialVersionUID = 1L;
+		private static final String prefix = "Transposed Activation Exception: ";
+		
+		public TransposedActivationException(String s) {super(prefix + s);}
+	}
+	
+	/**
+	 * Throws a {@linkplain TransposedActivationException} and terminates execution.
+	 * 
+	 * @param s Description of error.
+	 */
+	protected static void error(String s) {
+		try {
+			throw new TransposedActivationException(s);
+		} catch(TransposedActivationException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+}
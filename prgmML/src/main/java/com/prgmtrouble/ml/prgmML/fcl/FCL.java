@@ -6,6 +6,7 @@ import java.util.TreeSet;
 import com.prgmtrouble.ml.prgmML.generic.ListOfTypes;
 import com.prgmtrouble.ml.prgmML.generic.Parameter;
 import com.prgmtrouble.ml.prgmML.math.FunctionTypes;
+import com.prgmtrouble.ml.prgmML.math.Miscellaneous;
 
 /**
  * A Fully Connected Layer network consisting of 0 or more {@linkplain Layer}s and one
@@ -24,6 +25,18 @@ public class FCL implements Serializable {
 	private final Layer[] hidden;
 	/**Output layer for this FCL.*/
 	private final OutputLayer last;
+	/**Number of layers per checkpoint segment, or zero if checkpointing is disabled.*/
+	private int interval = 0;
+	/**Inputs to each checkpoint segment.*/
+	private transient double[][] checkpoints;
+	/**Indices of the sparse input received during feed-forward, or null if the input was dense.*/
+	private transient int[] sparseIndices;
+	/**Values of the sparse input received during feed-forward.*/
+	private transient double[] sparseValues;
+	/**Number of activation values kept alive by the last feed-forward operation.*/
+	private transient long storedValues;
+	/**Number of activation values produced by the last feed-forward operation.*/
+	private transient long totalValues;
 	
 	/**
 	 * Creates a new FCL.
@@ -123,12 +136,140 @@ public class FCL implements Serializable {
 	 * @return The output of the FCL.
 	 */
 	public double[] forward(double[] in) {
+		sparseIndices = null;
+		sparseValues = null;
+		storedValues = totalValues = 0L;
+		return forward(in, 0);
+	}
+	
+	/**
+	 * Performs the feed-forward operation on a sparse input vector. The first
+	 * layer only visits the weights attached to the given indices, so its cost
+	 * depends on the number of non-zero inputs rather than the input size.
+	 * 
+	 * @param indices Indices of the non-zero inputs.
+	 * @param values Values of the non-zero inputs.
+	 * @return The output of the FCL.
+	 */
+	public double[] forward(int[] indices, double[] values) {
+		if(indices == null || values == null || indices.length != values.length)
+			error("Invalid sparse input.");
+		storedValues = totalValues = 0L;
+		if(!deep) { //If there are no hidden layers:
+			sparseIndices = null;
+			sparseValues = null;
+			return (double[]) last.forward(indices, values).getValues()[0]; //Perform feed-forward on output layer.
+		}
+		sparseIndices = indices;
+		sparseValues = values;
+		final double[] in = (double[]) hidden[0].forward(indices, values).getValues()[0]; //Perform feed-forward on first layer.
+		if(interval > 0) { //If checkpointing is enabled:
+			totalValues += in.length;
+			if(lastSegment() > 0) { //If the first layer will be recomputed:
+				hidden[0].release(); //Release its state.
+				storedValues += values.length;
+			} else
+				storedValues += in.length;
+		}
+		return forward(in, 1);
+	}
+	
+	/**
+	 * Performs the feed-forward operation starting from a hidden layer.
+	 * 
+	 * @param in Input to the starting layer.
+	 * @param start Index of the starting layer.
+	 * @return The output of the FCL.
+	 */
+	private double[] forward(double[] in, int start) {
+		if(interval > 0) //If checkpointing is enabled:
+			return checkpointForward(in, start);
 		if(deep) //If there are hidden layers:
-			for(Layer l : hidden) //For each hidden layer:
-				in = (double[]) l.forward(in).getValues()[0]; //Perform feed-forward.
+			for(int l = start; l < hidden.length; l++) //For each hidden layer:
+				in = (double[]) hidden[l].forward(in).getValues()[0]; //Perform feed-forward.
 		return (double[]) last.forward(in).getValues()[0]; //Perform feed-forward on output layer.
 	}
 	
+	/**
+	 * Performs the feed-forward operation, recording the input to each checkpoint
+	 * segment and releasing the state of every hidden layer outside of the last
+	 * segment.
+	 * 
+	 * @param in Input to the starting layer.
+	 * @param start Index of the starting layer.
+	 * @return The output of the FCL.
+	 */
+	private double[] checkpointForward(double[] in, int start) {
+		final int hl = (hidden != null)? hidden.length:0,
+				  ls = lastSegment(); //First layer of the last segment.
+		if(checkpoints == null) //If the network was deserialized:
+			checkpoints = new double[(depth() + interval - 1) / interval][];
+		for(int l = start; l < hl; l++) { //For each hidden layer:
+			if(l % interval == 0 && l < ls) { //If the layer starts a segment which will be recomputed:
+				checkpoints[l / interval] = in; //Record segment input.
+				storedValues += in.length;
+			}
+			final Layer L = hidden[l];
+			in = (double[]) L.forward(in).getValues()[0]; //Perform feed-forward.
+			totalValues += in.length;
+			if(l < ls) //If the layer will be recomputed:
+				L.release(); //Release its state.
+			else
+				storedValues += in.length;
+		}
+		in = (double[]) last.forward(in).getValues()[0]; //Perform feed-forward on output layer.
+		totalValues += in.length;
+		storedValues += in.length;
+		return in;
+	}
+	
+	/**
+	 * Recomputes the hidden layers of a checkpoint segment from its recorded input.
+	 * 
+	 * @param seg Segment index.
+	 */
+	private void recompute(int seg) {
+		int l = seg * interval; //First layer in segment.
+		double[] in = checkpoints[seg];
+		checkpoints[seg] = null;
+		if(l == 0 && sparseValues != null) //If the input was sparse:
+			in = (double[]) hidden[l++].forward(sparseIndices, sparseValues).getValues()[0]; //Recompute first layer.
+		for(; l < (seg + 1) * interval; l++) //For each layer in segment:
+			in = (double[]) hidden[l].forward(in).getValues()[0]; //Perform feed-forward.
+	}
+	
+	/**
+	 * Enables activation checkpointing. When enabled, the feed-forward operation
+	 * keeps only the input to each segment of <code>interval</code> layers and
+	 * releases the state of every layer outside of the last segment. The
+	 * backpropagation operation then recomputes each segment from its input
+	 * before propagating the gradient through it.
+	 * 
+	 * @param interval Number of layers per segment, counting the output layer.
+	 * 				   Set to zero to disable.
+	 */
+	public void setCheckpointInterval(int interval) {
+		if(interval < 0)
+			error("Invalid checkpoint interval.");
+		this.interval = interval;
+		checkpoints = (interval > 0)? new double[(depth() + interval - 1) / interval][]:null;
+	}
+	
+	/**
+	 * @return A description of the activation memory kept alive by the last
+	 * 		   feed-forward operation and the number of layers recomputed
+	 * 		   during each backpropagation operation.
+	 * 
+	 * @see #setCheckpointInterval(int)
+	 */
+	public String checkpointReport() {return Miscellaneous.checkpointReport(depth(), interval, storedValues, totalValues);}
+	
+	/**@return Index of the first layer in the last checkpoint segment.*/
+	private int lastSegment() {return (((hidden != null)? hidden.length:0) / interval) * interval;}
+	
+	/**@return Number of layers, including the output layer.*/
+	private int depth() {return ((hidden != null)? hidden.length:0) + 1;}
+	
 	/**
 	 * Computes the gradient of the FCL with respect to the input vector as well as
 	 * remove any layer elements which should be pruned.
@@ -137,7 +278,8 @@ public class FCL implements Serializable {
 	 * @param prune Pruning threshold indexed by layer. Set to a negative value to disable.
 	 * @param learnParameters Flags for each layer which indicate if the backpropagation
 	 * 						  algorithm should edit their hyperparameters.
-	 * @return The gradient with respect to the input vector.
+	 * @return The gradient with respect to the input vector. If the last feed-forward
+	 * 		   operation used a sparse input, the gradient is indexed like its values.
 	 */
 	@SuppressWarnings("unchecked")
 	public double[] backward(double[] learningRate, double[] prune, boolean[] learnParameters) {
@@ -148,17 +290,37 @@ public class FCL implements Serializable {
 		if(!b && learnParameters.length > hl && learnParameters[hl]) //If output layer should update hyperparameters:
 			last.learnParameters(learningRate[hl]); //Update.
 		
+		final boolean c = interval > 0; //True if checkpointing is enabled.
 		for(int l = hl-1; l >= 0; l--) { //For each hidden layer starting from last:
+			if(c && (l + 1) % interval == 0 && l / interval < hl / interval) //If the layer ends a released segment:
+				recompute(l / interval); //Recompute the segment.
 			final Layer L = hidden[l];
 			final double lr = learningRate[l];
 			bkwd = L.backward((double[]) bkwd[0], lr, prune[l], (TreeSet<Integer>) bkwd[1]); //Perform backpropagation.
 			if(!b && learnParameters.length > l && learnParameters[l]) //If output layer should update hyperparameters:
 				L.learnParameters(lr); //Update.
+			if(c)
+				L.release(); //Release its state.
 		}
 		
 		return (double[]) bkwd[0]; //Return gradient with respect to input vector.
 	}
 	
+	/**
+	 * Sets the activation-memory mode for all layers.
+	 * 
+	 * @param compact True if layers should store only the state required
+	 * 				  by their backward pass in a compact form.
+	 * 
+	 * @see Layer#setCompact(boolean)
+	 */
+	public void setCompact(boolean compact) {
+		if(deep)
+			for(Layer l : hidden)
+				l.setCompact(compact);
+		last.setCompact(compact);
+	}
+	
 	/**
 	 * A custom exception which indicates an error in the FCL.
 	 * 
@@ -73,7 +73,38 @@ public class Layer implements Serializable {
 	public Parameter<ListOfTypes> forward(double[] in) {
 		in = weights.forward(in); //Convert previous output to input.
 		inParams[0].setValue(in,0); //Set input.
-		return outParams[0] = data.forward(inParams[0]); //Get output.
+		outParams[0] = data.forward(inParams[0]); //Get output.
+		if(data.isCompact())
+			releaseInput(); //Only the signs of the input are needed.
+		return outParams[0];
+	}
+	
+	/**
+	 * Performs the feed-forward operation on a sparse input.
+	 * 
+	 * @param indices Indices of the non-zero outputs of the previous layer.
+	 * @param values Values of the non-zero outputs of the previous layer.
+	 * @return The output of the activation function.
+	 * 
+	 * @see WeightVector#forward(int[], double[])
+	 */
+	public Parameter<ListOfTypes> forward(int[] indices, double[] values) {
+		final double[] in = weights.forward(indices, values); //Convert previous output to input.
+		inParams[0].setValue(in,0); //Set input.
+		outParams[0] = data.forward(inParams[0]); //Get output.
+		if(data.isCompact())
+			releaseInput(); //Only the signs of the input are needed.
+		return outParams[0];
+	}
+	
+	/**
+	 * Drops the reference to the input of the activation function. The
+	 * parameter is shared with the function, so the array is cleared in-place.
+	 */
+	private void releaseInput() {
+		final Object[] v = inParams[0].getValues();
+		if(v != null)
+			v[0] = null;
 	}
 	
 	/**
@@ -123,6 +154,27 @@ public class Layer implements Serializable {
 	 */
 	public void learnParameters(double learningRate) {data.learnParameters(learningRate);}
 	
+	/**
+	 * Sets the activation-memory mode of the activation function.
+	 * 
+	 * @param compact True if compact storage should be used.
+	 * 
+	 * @see Vector#setCompact(boolean)
+	 */
+	public void setCompact(boolean compact) {data.setCompact(compact);}
+	
+	/**
+	 * Releases the state stored by {@linkplain #forward(double[])}. The
+	 * feed-forward operation must be run again before the backpropagation
+	 * operation may be used.
+	 */
+	public void release() {
+		weights.release();
+		data.release();
+		releaseInput();
+		outParams[0] = outParams[1] = null;
+	}
+	
 	/**
 	 * A custom exception which indicates an error in the layer.
 	 * 
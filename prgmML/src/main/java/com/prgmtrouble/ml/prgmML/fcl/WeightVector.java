@@ -3,6 +3,7 @@ package com.prgmtrouble.ml.prgmML.fcl;
 import java.io.Serializable;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.TreeSet;
 import java.util.concurrent.ThreadLocalRandom;
 
@@ -15,11 +16,26 @@ public class WeightVector implements Serializable {
 	/***/
 	private static final long serialVersionUID = 1L;
 	
+	/**Default input density below which the sparse path is used.*/
+	public static final double SPARSE_THRESHOLD = 0.5;
+	
 	/**Weights indexed <code>[destination][source]</code>.*/
 	private final HashMap<Integer,HashMap<Integer,Double>> weights;
 	
 	/**Input received during feed-forward.*/
 	private transient double[] in;
+	/**Indices of the sparse input received during feed-forward.*/
+	private transient int[] indices;
+	/**Values of the sparse input received during feed-forward, or null if the input was dense.*/
+	private transient double[] values;
+	/**Indices of the non-zero inputs received during feed-forward.*/
+	private transient int[] active;
+	/**Number of non-zero inputs received during feed-forward.*/
+	private transient int nActive;
+	/**True if the last feed-forward operation used the sparse path.*/
+	private transient boolean sparse;
+	/**Input density below which the sparse path is used.*/
+	private double threshold = SPARSE_THRESHOLD;
 	
 	/**
 	 * Creates a new weight vector.
@@ -56,6 +72,9 @@ public class WeightVector implements Serializable {
 		}
 	}
 	
+	/**Releases the input stored during feed-forward.*/
+	public void release() {in = null; indices = null; values = null;}
+	
 	/**@return Size of destination.*/
 	private int dstSize() {return weights.size();}
 	
@@ -67,10 +86,26 @@ public class WeightVector implements Serializable {
 	 */
 	public double[] forward(double[] in) {
 		this.in = in;
+		values = null;
 		final int ds = dstSize(), //Destination size.
 				  ss = in.length; //Source size.
 		final double[] out = new double[ds]; //Output vector.
 		
+		if(sparse = gather(in) < threshold * ss) { //If the input is sparse enough:
+			final int[] a = active;
+			final int na = nActive;
+			for(int dst = 0; dst < ds; dst++) { //For each destination:
+				double t = 0.0; //Temporary value.
+				final HashMap<Integer,Double> w = weights.get(dst); //Get destination weights.
+				for(int k = 0; k < na; k++) { //For each non-zero source:
+					final int src = a[k];
+					t += in[src] * w.getOrDefault(src,0.0); //Sum the product of the input and corresponding weight.
+				}
+				out[dst] = t; //Set output.
+			}
+			return out; //Return output.
+		}
+		
 		for(int dst = 0; dst < ds; dst++) { //For each destination:
 			double t = 0.0; //Temporary value.
 			final HashMap<Integer,Double> w = weights.get(dst); //Get destination weights.
@@ -82,6 +117,59 @@ public class WeightVector implements Serializable {
 		return out; //Return output.
 	}
 	
+	/**
+	 * Performs the feed-forward operation on a sparse input given as index/value
+	 * pairs. Only the weights attached to the given sources are visited.
+	 * 
+	 * @param indices Indices of the non-zero outputs of the previous layer.
+	 * @param values Values of the non-zero outputs of the previous layer.
+	 * @return Input for next layer.
+	 */
+	public double[] forward(int[] indices, double[] values) {
+		in = null;
+		this.indices = indices;
+		this.values = values;
+		final int ds = dstSize(), //Destination size.
+				  na = indices.length;
+		final double[] out = new double[ds]; //Output vector.
+		
+		for(int dst = 0; dst < ds; dst++) { //For each destination:
+			double t = 0.0; //Temporary value.
+			final HashMap<Integer,Double> w = weights.get(dst); //Get destination weights.
+			for(int k = 0; k < na; k++) //For each non-zero source:
+				t += values[k] * w.getOrDefault(indices[k],0.0); //Sum the product of the input and corresponding weight.
+			out[dst] = t; //Set output.
+		}
+		
+		return out; //Return output.
+	}
+	
+	/**
+	 * Records the indices of the non-zero elements of the input.
+	 * 
+	 * @param in Input vector.
+	 * @return Number of non-zero elements.
+	 */
+	private int gather(double[] in) {
+		final int ss = in.length;
+		if(active == null || active.length < ss)
+			active = new int[ss];
+		int n = 0;
+		for(int src = 0; src < ss; src++) //For each source:
+			if(in[src] != 0.0) //If the input is non-zero:
+				active[n++] = src; //Record index.
+		return nActive = n;
+	}
+	
+	/**
+	 * Sets the input density below which the feed-forward and backpropagation
+	 * operations only visit the weights attached to non-zero inputs.
+	 * 
+	 * @param density Fraction of non-zero inputs. Set to zero to disable the
+	 * 				  sparse path.
+	 */
+	public void setSparseThreshold(double density) {threshold = density;}
+	
 	/**
 	 * Performs the backpropagation procedure with pruning. All weights
 	 * whose absolute values are below the threshold will be removed and
@@ -96,7 +184,8 @@ public class WeightVector implements Serializable {
 	 * @param prune Pruning threshold. Set to a negative value to disable.
 	 * @return The total gradient with respect to the source's outputs (<code>&#120539L[s]/&#120539O[s]</code>)
 	 * 		   as a <code>double[]</code> and a <code>TreeSet</code> containing the indices of any sources (positive)
-	 * 		   and destinations (negative) which should be pruned.
+	 * 		   and destinations (negative) which should be pruned. If the input was given as index/value pairs,
+	 * 		   the gradient is indexed like the values and sources are never pruned.
 	 */
 	public Object[] backward(double[] loss, double learningRate, double prune) {
 		final int ds = dstSize();
@@ -104,9 +193,13 @@ public class WeightVector implements Serializable {
 			error("Null Loss.");
 		if(loss.length != ds)
 			error("Invalid Loss.");
+		if(values != null) //If the input was given as index/value pairs:
+			return sparseInputBackward(loss, learningRate, prune);
 		
 		final int ss = in.length; //Source size.
 		final boolean p = (prune >= 0.0); //Pruning toggle.
+		if(sparse && !p) //If the input was sparse and every weight does not need to be checked:
+			return new Object[] {sparseBackward(loss, learningRate),null};
 		
 		final boolean[] chkSrc = (p)? new boolean[ss] : null; //Should source be removed?
 		final double[] di = new double[ss]; // dL/dI[src]
@@ -142,6 +235,86 @@ public class WeightVector implements Serializable {
 		return new Object[] {di,toRemove}; //Return gradient and pruning index set.
 	}
 	
+	/**
+	 * Performs the backpropagation procedure without pruning for a sparse input.
+	 * The gradient of each weight is proportional to its input, so only weights
+	 * attached to non-zero inputs are updated.
+	 * 
+	 * @param loss The total gradient with respect to the destination' inputs.
+	 * @param learningRate Learning rate.
+	 * @return The total gradient with respect to the source's outputs.
+	 */
+	private double[] sparseBackward(double[] loss, double learningRate) {
+		final int ds = dstSize(),
+				  ss = in.length, //Source size.
+				  na = nActive;
+		final int[] a = active;
+		final double[] di = new double[ss]; // dL/dI[src]
+		
+		for(int dst = 0; dst < ds; dst++) { //For each destination:
+			final double l = loss[dst] * learningRate; // dL[dst]/dI'[dst]
+			final HashMap<Integer,Double> w = weights.get(dst); // weight[dst]
+			
+			for(Map.Entry<Integer,Double> e : w.entrySet()) { //For each source in this destination:
+				final int src = e.getKey();
+				if(src < ss)
+					di[src] -= e.getValue() * l; // dL[dst]/dI[src] = loss[dst] * weight[dst][src]
+			}
+			for(int k = 0; k < na; k++) { //For each non-zero source:
+				final int src = a[k];
+				final Double t = w.get(src); // weight[dst][src]
+				if(t != null)
+					w.put(src, t - l * in[src]); // dL[dst]/dW[dst][src] = loss[dst] * in[src]
+			}
+		}
+		
+		return di; //Return gradient.
+	}
+	
+	/**
+	 * Performs the backpropagation procedure for an input given as index/value
+	 * pairs. Only the weights attached to the given sources are visited, and
+	 * only those weights are checked against the pruning threshold.
+	 * 
+	 * @param loss The total gradient with respect to the destination' inputs.
+	 * @param learningRate Learning rate.
+	 * @param prune Pruning threshold. Set to a negative value to disable.
+	 * @return The total gradient with respect to the given values as a <code>double[]</code>
+	 * 		   and a <code>TreeSet</code> containing the indices of any destinations (negative)
+	 * 		   which should be pruned.
+	 */
+	private Object[] sparseInputBackward(double[] loss, double learningRate, double prune) {
+		final int ds = dstSize(),
+				  na = indices.length;
+		final int[] a = indices;
+		final double[] v = values,
+					  di = new double[na]; // dL/dI[k]
+		final boolean p = (prune >= 0.0); //Pruning toggle.
+		final TreeSet<Integer> toRemove = (p)? new TreeSet<Integer>() : null; //Set of indices to remove.
+		
+		for(int dst = 0; dst < ds; dst++) { //For each destination:
+			final double l = loss[dst] * learningRate; // dL[dst]/dI'[dst]
+			final HashMap<Integer,Double> w = weights.get(dst); // weight[dst]
+			
+			for(int k = 0; k < na; k++) { //For each non-zero source:
+				final int src = a[k];
+				final Double t = w.get(src); // weight[dst][src]
+				if(t != null) { //If the destination contains this source:
+					di[k] -= t * l; 					 // dL[dst]/dI[src] 	 = loss[dst] * weight[dst][src]
+					final double nw = t - l * v[k]; //  dL[dst]/dW[dst][src] = loss[dst] * in[src]
+					if(!p || Math.abs(nw) > prune) //If pruning disabled or weight is above threshold:
+						w.put(src,nw); //Put new value.
+					else //Otherwise (pruning is enabled & weight is below threshold):
+						w.remove(src); //Remove value.
+				}
+			}
+			if(p && w.size() == 0) //If this destination does not contain a source:
+				toRemove.add(-dst); //Add destination.
+		}
+		
+		return new Object[] {di,toRemove}; //Return gradient and pruning index set.
+	}
+	
 	/**
 	 * Changes the source and/or destinations for weights, usually
 	 * after a pruning operation.
@@ -40,6 +40,8 @@ public abstract class Function<T extends ListOfTypes> implements Serializable {
 	private final Parameter<T> oParam;
 	/**Gradient Parameters.*/
 	private final Parameter<T> gParam;
+	/**True if the function should store only the state required by its derivative.*/
+	private boolean compact = false;
 	
 	/**
 	 * Creates a new Function.
@@ -130,6 +132,28 @@ public abstract class Function<T extends ListOfTypes> implements Serializable {
 	 */
 	public void setGradientParameter(Object[] gradientParams) {gParam.setValues(gradientParams);}
 	
+	/**
+	 * Sets the activation-memory mode. When enabled, a function may replace
+	 * the state it keeps for the backward operation with a smaller
+	 * representation. Functions which do not support compact storage
+	 * ignore this setting.
+	 * 
+	 * @param compact True if compact storage should be used.
+	 */
+	public void setCompact(boolean compact) {this.compact = compact;}
+	/**@return True if compact storage has been requested.*/
+	public boolean isCompact() {return compact;}
+	
+	/**
+	 * Releases the values held by the input parameters. The output and gradient
+	 * parameters are returned to callers, so they are left intact. The forward
+	 * operation must be run again before the backward operation may be used.
+	 */
+	public void release() {
+		fParam.clear();
+		bParam.clear();
+	}
+	
 	/**@return The input parameter for the feed-forward operation.*/
 	public Parameter<T> getForwardParameter() {return fParam;}
 	/**@return The input parameter for the backpropagation operation.*/
@@ -71,6 +71,12 @@ public class Parameter<T extends ListOfTypes> implements Serializable {
 		val[idx] = value;
 	}
 	
+	/**
+	 * Clears the values of this parameter, releasing any references
+	 * it holds.
+	 */
+	public void clear() {val = null;}
+	
 	/**
 	 * A custom exception which indicates an error in a parameter.
 	 * 
@@ -18,6 +18,31 @@ public final class Miscellaneous {
 				factors.add(j);
 		return factors.last(); //Get largest square factor.
 	}
+	
+	/**
+	 * Summarizes the memory and compute trade-off of activation checkpointing.
+	 * 
+	 * @param layers Number of layers.
+	 * @param interval Number of layers per checkpoint segment.
+	 * @param stored Number of activation values kept alive between the
+	 * 				 forward and backward passes.
+	 * @param total Number of activation values which would be kept alive
+	 * 				without checkpointing.
+	 * @return A description of the stored activations and the number of layers
+	 * 		   recomputed during each backward pass.
+	 */
+	public static String checkpointReport(int layers, int interval, long stored, long total) {
+		if(interval <= 0) //If checkpointing is disabled:
+			return "Checkpointing disabled: all " + layers + " layers keep their activations.";
+		final int segments = (layers + interval - 1) / interval, //Number of segments.
+				  recomputed = (segments - 1) * interval; //Layers recomputed outside of the last segment.
+		return String.format("Checkpoint interval %d: %d layers in %d segments | " +
+							 "Stored activations: %d of %d values (%.1f%%) | " +
+							 "Recomputed layers per backward pass: %d of %d (%.1f%% extra forward work)",
+							 interval, layers, segments,
+							 stored, total, (total > 0)? 100.0 * stored / total:0.0,
+							 recomputed, layers, (layers > 0)? 100.0 * recomputed / layers:0.0);
+	}
 }
 
 
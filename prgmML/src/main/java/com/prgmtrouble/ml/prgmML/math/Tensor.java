@@ -1,6 +1,56 @@
 package com.prgmtrouble.ml.prgmML.math;
 
+import java.util.Arrays;
+
 public final class Tensor {
+	/**
+	 * Memory layouts for flattened rank-3 tensors.
+	 * 
+	 * @author prgmTrouble
+	 */
+	public static enum Layout {
+		/**Channel-major, indexed <code>[channel][row][column]</code>.*/
+		CHW,
+		/**Channels-last, indexed <code>[row][column][channel]</code>.*/
+		HWC;
+	}
+	
+	/**
+	 * Converts a flattened rank-3 tensor from {@linkplain Layout#CHW} to {@linkplain Layout#HWC}.
+	 * 
+	 * @param in Input.
+	 * @param io Offset of the input.
+	 * @param sq Number of elements in each channel.
+	 * @param c Channels.
+	 * @param out Output buffer, which must be a different array than the input.
+	 * @param oo Offset of the output.
+	 */
+	public static void toHWC(double[] in, int io, int sq, int c, double[] out, int oo) {
+		for(int ch = 0; ch < c; ch++) {
+			final int chsq = io + ch * sq;
+			for(int x = 0; x < sq; x++)
+				out[oo + x * c + ch] = in[chsq + x];
+		}
+	}
+	
+	/**
+	 * Converts a flattened rank-3 tensor from {@linkplain Layout#HWC} to {@linkplain Layout#CHW}.
+	 * 
+	 * @param in Input.
+	 * @param io Offset of the input.
+	 * @param sq Number of elements in each channel.
+	 * @param c Channels.
+	 * @param out Output buffer, which must be a different array than the input.
+	 * @param oo Offset of the output.
+	 */
+	public static void toCHW(double[] in, int io, int sq, int c, double[] out, int oo) {
+		for(int ch = 0; ch < c; ch++) {
+			final int chsq = oo + ch * sq;
+			for(int x = 0; x < sq; x++)
+				out[chsq + x] = in[io + x * c + ch];
+		}
+	}
+	
 	/**
 	 * Dilates a flattened rank-3 tensor.
 	 * 
@@ -11,13 +61,31 @@ public final class Tensor {
 	 * @return Flattened and dilated matrix.
 	 */
 	public static double[] dilate(double[] in, int is, int c, int factor) {
-		final int ns  = is * (++factor) - 1, //Dilated side length.
+		final int ns = (is - 1) * (factor + 1) + 1; //Dilated side length.
+		final double[] out = new double[c * ns * ns]; //Output tensor.
+		dilate(in, 0, is, c, factor, out, 0);
+		return out; //Return dilated tensor.
+	}
+	
+	/**
+	 * Dilates a flattened rank-3 tensor into the given buffer.
+	 * 
+	 * @param in Input.
+	 * @param io Offset of the input.
+	 * @param is Input side length.
+	 * @param c Channels.
+	 * @param factor Number of empty rows and columns to add between elements.
+	 * @param out Output buffer.
+	 * @param oo Offset of the output.
+	 */
+	public static void dilate(double[] in, int io, int is, int c, int factor, double[] out, int oo) {
+		final int ns  = (is - 1) * (++factor) + 1, //Dilated side length.
 				  nsq = ns * ns, //Dilated side length squared.
 				  isq = is * is; //Input side length squared.
-		final double[] out = new double[c * nsq]; //Output tensor.
+		Arrays.fill(out, oo, oo + c * nsq, 0.0); //Clear output.
 		for(int ch = 0; ch < c; ch++) { //For each channel:
-			final int chisq = ch * isq, //Input channel index.
-					  chnsq = ch * nsq; //Dilated channel index.
+			final int chisq = io + ch * isq, //Input channel index.
+					  chnsq = oo + ch * nsq; //Dilated channel index.
 			for(int ir = 0; ir < is; ir++) { //For each input row:
 				final int xr = chisq + (ir * is), //Input row index.
 						  nr = chnsq + (ir * factor * ns); //Dilated row index.
@@ -25,7 +93,6 @@ public final class Tensor {
 					out[nr + (ic * factor)] = in[xr + ic]; //Record input.
 			}
 		}
-		return out; //Return dilated tensor.
 	}
 	
 	public static double[] transpose(double[] in, int is, int c) {
@@ -33,7 +100,7 @@ public final class Tensor {
 		for(int ch = 0; ch < c; ch++) {
 			final int chq = ch * isq;
 			for(int ir = 0; ir < is; ir++)
-				for(int ic = 0; ic < is; ic++) {
+				for(int ic = ir + 1; ic < is; ic++) {
 					final int aidx = chq + (ir * is) + ic,
 							  bidx = chq + (ic * is) + ir;
 					final double t = in[aidx];
@@ -49,7 +116,7 @@ public final class Tensor {
 		for(int ch = 0; ch < c; ch++) {
 			final int chq = ch * isq;
 			for(int ir = 0; ir < is; ir++)
-				for(int ic = 0; ic < is; ic++) {
+				for(int ic = 0; ic < is / 2; ic++) {
 					final int aidx = chq + (ir * is) + ic,
 							  bidx = chq + (ir * is) + (is - ic - 1);
 					final double t = in[aidx];
@@ -61,10 +128,29 @@ public final class Tensor {
 	}
 	
 	public static double[] rot180(double[] in, int is, int c) {
-		final int il = in.length;
-		final double[] out = new double[il];
-		System.arraycopy(in, 0, out, 0, il);
-		return reverseColumns(transpose(reverseColumns(transpose(out,is,c),is,c),is,c),is,c);
+		final double[] out = new double[in.length];
+		rot180(in, 0, is, c, out, 0);
+		return out;
+	}
+	
+	/**
+	 * Rotates each channel of a flattened rank-3 tensor by 180 degrees into the given buffer.
+	 * 
+	 * @param in Input.
+	 * @param io Offset of the input.
+	 * @param is Input side length.
+	 * @param c Channels.
+	 * @param out Output buffer.
+	 * @param oo Offset of the output.
+	 */
+	public static void rot180(double[] in, int io, int is, int c, double[] out, int oo) {
+		final int isq = is * is;
+		for(int ch = 0; ch < c; ch++) {
+			final int a = io + ch * isq, //Input channel index.
+					  b = oo + ch * isq + isq - 1; //Last index of output channel.
+			for(int i = 0; i < isq; i++)
+				out[b - i] = in[a + i];
+		}
 	}
 	
 	public static double[] sum(double[] a, double[] b) {
@@ -80,6 +166,54 @@ public final class Tensor {
 		return a;
 	}
 	
+	/**
+	 * Multiplies two vectors element-wise.
+	 * 
+	 * @param a First vector, which receives the product.
+	 * @param b Second vector.
+	 * @return <code>a</code>.
+	 */
+	public static double[] product(double[] a, double[] b) {
+		for(int i = 0; i < a.length; i++)
+			a[i] *= b[i];
+		return a;
+	}
+	
+	/**
+	 * @param a Vector.
+	 * @return A copy of the vector, for use with the in-place operations.
+	 */
+	public static double[] dupe(double[] a) {return a.clone();}
+	
+	/**
+	 * Packs the signs of a vector into a bitmask.
+	 * 
+	 * @param in Input vector.
+	 * @param mask Bitmask to reuse, or null to allocate a new one.
+	 * @return A bitmask where bit <code>i</code> is set iff <code>in[i] > 0</code>.
+	 */
+	public static long[] positiveMask(double[] in, long[] mask) {
+		final int il = in.length,
+				  ml = (il + 63) >>> 6; //Number of words.
+		if(mask == null || mask.length != ml)
+			mask = new long[ml];
+		for(int w = 0, i = 0; w < ml; w++) { //For each word:
+			long m = 0L;
+			for(int b = 0; b < 64 && i < il; b++, i++) //For each bit:
+				if(in[i] > 0.0)
+					m |= 1L << b; //Set bit if positive.
+			mask[w] = m;
+		}
+		return mask;
+	}
+	
+	/**
+	 * @param mask Bitmask created by {@linkplain #positiveMask(double[], long[])}.
+	 * @param i Element index.
+	 * @return True if bit <code>i</code> is set.
+	 */
+	public static boolean isSet(long[] mask, int i) {return (mask[i >>> 6] & (1L << i)) != 0L;}
+	
 	/**
 	 * Performs a convolution operation using flattened arrays.
 	 * 
@@ -93,31 +227,103 @@ public final class Tensor {
 	 * @return The flattened output map.
 	 */
 	public static double[] convolve(double[] in, int is, double[] filter, int fs, int c, int step, int pad) {
-		if((is + 2 * pad - fs) % step != 0) //TODO include pad in check?
+		final int os = outputSize(is, fs, step, pad);
+		final double[] out = new double[os * os];
+		convolve(in, 0, is, filter, 0, fs, c, step, pad, out, 0);
+		return out;
+	}
+	
+	/**
+	 * Computes the side length of a convolution output.
+	 * 
+	 * @param is Input map side length.
+	 * @param fs Filter side length.
+	 * @param step Step size.
+	 * @param pad Padding.
+	 * @return The side length of the output map.
+	 */
+	public static int outputSize(int is, int fs, int step, int pad) {return outputSize(is, fs, step, pad, 1);}
+	
+	/**
+	 * Computes the side length of a dilated convolution output.
+	 * 
+	 * @param is Input map side length.
+	 * @param fs Filter side length.
+	 * @param step Step size.
+	 * @param pad Padding.
+	 * @param dil Distance between adjacent filter elements on the input map.
+	 * @return The side length of the output map.
+	 */
+	public static int outputSize(int is, int fs, int step, int pad, int dil) {
+		if(dil <= 0)
+			error("Invalid dilation.");
+		final int fe = (fs - 1) * dil + 1; //Extent of the dilated filter.
+		if(fe > is + 2 * pad || (is + 2 * pad - fe) % step != 0)
 			error("Input and filter size difference is not a factor of the step size.");
-		
-		final int os  = (is + 2 * pad - fs) / step,
-				  osq = os * os,
+		return (is + 2 * pad - fe) / step + 1;
+	}
+	
+	/**
+	 * Performs a convolution operation using flattened arrays at the given offsets.
+	 * The shapes are not validated; see {@linkplain #outputSize(int, int, int, int)}.
+	 * 
+	 * @param in Flattened input map.
+	 * @param io Offset of the input map.
+	 * @param is Input map side length.
+	 * @param filter Flattened filter.
+	 * @param fo Offset of the filter.
+	 * @param fs Filter side length.
+ 	 * @param c Channels.
+	 * @param step Step size.
+	 * @param pad Padding.
+	 * @param out Flattened output map.
+	 * @param oo Offset of the output map.
+	 */
+	public static void convolve(double[] in, int io, int is, double[] filter, int fo, int fs, int c, int step, int pad, double[] out, int oo) {
+		convolve(in, io, is, filter, fo, fs, c, step, pad, 1, out, oo);
+	}
+	
+	/**
+	 * Performs a dilated convolution operation using flattened arrays at the given
+	 * offsets. Filter elements are applied to input elements <code>dil</code> apart,
+	 * so no dilated copy of the filter is made. The shapes are not validated; see
+	 * {@linkplain #outputSize(int, int, int, int, int)}.
+	 * 
+	 * @param in Flattened input map.
+	 * @param io Offset of the input map.
+	 * @param is Input map side length.
+	 * @param filter Flattened filter.
+	 * @param fo Offset of the filter.
+	 * @param fs Filter side length.
+ 	 * @param c Channels.
+	 * @param step Step size.
+	 * @param pad Padding.
+	 * @param dil Distance between adjacent filter elements on the input map.
+	 * @param out Flattened output map.
+	 * @param oo Offset of the output map.
+	 */
+	public static void convolve(double[] in, int io, int is, double[] filter, int fo, int fs, int c, int step, int pad, int dil,
+								double[] out, int oo) {
+		final int os  = (is + 2 * pad - (fs - 1) * dil - 1) / step + 1,
 				  isq = is * is,
 				  fsq = fs * fs;
-		final double[] out = new double[osq];
 		
 		for(int or = 0; or < os; or++) {
-			final int oros = or * os,
-					  orst = or * step;
+			final int oros = oo + or * os,
+					  orst = or * step - pad;
 			for(int oc = 0; oc < os; oc++) {
-				final int ocst = oc * step;
+				final int ocst = oc * step - pad;
 				double o = 0.0;
 				for(int ch = 0; ch < c; ch++) {
-					final int chisq = ch * isq,
-							  chfsq = ch * fsq;
+					final int chisq = io + ch * isq,
+							  chfsq = fo + ch * fsq;
 					for(int fr = 0; fr < fs; fr++) {
-						final int ir = orst + fr - pad,
+						final int ir = orst + fr * dil,
 								  frfs = fr * fs + chfsq;
 						if(ir >= 0 && ir < is) {
 							final int iris = ir * is + chisq;
 							for(int fc = 0; fc < fs; fc++) {
-								final int ic = ocst + fc - pad;
+								final int ic = ocst + fc * dil;
 								if(ic >= 0 && ic < is)
 									o += in[iris + ic]
 									   * filter[frfs + fc];
@@ -128,7 +334,587 @@ public final class Tensor {
 				out[oros + oc] = o;
 			}
 		}
-		return out;
+	}
+	
+	/**
+	 * Performs the backpropagation operation for {@linkplain #convolve(double[], int, int, double[], int, int, int, int, int, double[], int)}.
+	 * Both gradients are added to the given arrays. The shapes are not validated; see
+	 * {@linkplain #outputSize(int, int, int, int)}.
+	 * 
+	 * @param loss Flattened gradient with respect to the output map.
+	 * @param lo Offset of the output gradient.
+	 * @param in Flattened input map.
+	 * @param io Offset of the input map.
+	 * @param is Input map side length.
+	 * @param filter Flattened filter.
+	 * @param fs Filter side length.
+	 * @param c Channels.
+	 * @param step Step size.
+	 * @param pad Padding.
+	 * @param di Flattened gradient with respect to the input map.
+	 * @param dio Offset of the input gradient.
+	 * @param df Flattened gradient with respect to the filter.
+	 */
+	public static void backConvolve(double[] loss, int lo, double[] in, int io, int is, double[] filter, int fs,
+									int c, int step, int pad, double[] di, int dio, double[] df) {
+		backConvolve(loss, lo, in, io, is, filter, fs, c, step, pad, 1, di, dio, df);
+	}
+	
+	/**
+	 * Performs the backpropagation operation for {@linkplain #convolve(double[], int, int, double[], int, int, int, int, int, int, double[], int)}.
+	 * Each output gradient is scattered directly to the input and filter elements it
+	 * was computed from, so the step size and dilation are handled by index striding
+	 * instead of dilating the gradient or the filter. Both gradients are added to the
+	 * given arrays. The shapes are not validated; see {@linkplain #outputSize(int, int, int, int, int)}.
+	 * 
+	 * @param loss Flattened gradient with respect to the output map.
+	 * @param lo Offset of the output gradient.
+	 * @param in Flattened input map.
+	 * @param io Offset of the input map.
+	 * @param is Input map side length.
+	 * @param filter Flattened filter.
+	 * @param fs Filter side length.
+	 * @param c Channels.
+	 * @param step Step size.
+	 * @param pad Padding.
+	 * @param dil Distance between adjacent filter elements on the input map.
+	 * @param di Flattened gradient with respect to the input map.
+	 * @param dio Offset of the input gradient.
+	 * @param df Flattened gradient with respect to the filter.
+	 */
+	public static void backConvolve(double[] loss, int lo, double[] in, int io, int is, double[] filter, int fs,
+									int c, int step, int pad, int dil, double[] di, int dio, double[] df) {
+		final int os  = (is + 2 * pad - (fs - 1) * dil - 1) / step + 1,
+				  isq = is * is,
+				  fsq = fs * fs;
+		for(int ch = 0; ch < c; ch++) {
+			final int chisq = ch * isq,
+					  chfsq = ch * fsq;
+			for(int or = 0; or < os; or++) {
+				final int orst = or * step - pad,
+						  loro = lo + or * os;
+				for(int oc = 0; oc < os; oc++) {
+					final double g = loss[loro + oc];
+					if(g == 0.0)
+						continue;
+					final int ocst = oc * step - pad;
+					for(int fr = 0; fr < fs; fr++) {
+						final int ir = orst + fr * dil;
+						if(ir < 0 || ir >= is)
+							continue;
+						final int iris = chisq + ir * is,
+								  frfs = chfsq + fr * fs;
+						for(int fc = 0; fc < fs; fc++) {
+							final int ic = ocst + fc * dil;
+							if(ic >= 0 && ic < is) {
+								df[frfs + fc] += g * in[io + iris + ic];
+								di[dio + iris + ic] += g * filter[frfs + fc];
+							}
+						}
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Performs a convolution operation on flattened {@linkplain Layout#HWC} arrays at the
+	 * given offsets. The channel loop is innermost, so both the input and the filter are
+	 * read sequentially. The shapes are not validated; see {@linkplain #outputSize(int, int, int, int)}.
+	 * 
+	 * @param in Flattened input map.
+	 * @param io Offset of the input map.
+	 * @param is Input map side length.
+	 * @param filter Flattened filter.
+	 * @param fo Offset of the filter.
+	 * @param fs Filter side length.
+	 * @param c Channels.
+	 * @param step Step size.
+	 * @param pad Padding.
+	 * @param out Flattened output map.
+	 * @param oo Offset of the output map.
+	 * @param ostride Distance between consecutive output elements, which is the
+	 * 				  number of output channels.
+	 */
+	public static void convolveHWC(double[] in, int io, int is, double[] filter, int fo, int fs, int c, int step, int pad,
+								   double[] out, int oo, int ostride) {
+		convolveHWC(in, io, is, c, filter, fo, fs, c, step, pad, out, oo, ostride);
+	}
+	
+	/**
+	 * Same as {@linkplain #convolveHWC(double[], int, int, double[], int, int, int, int, int, double[], int, int)},
+	 * except that the filter may cover only a contiguous subset of the input channels.
+	 * 
+	 * @param in Flattened input map.
+	 * @param io Offset of the first input channel covered by the filter.
+	 * @param is Input map side length.
+	 * @param istride Distance between consecutive input elements, which is the
+	 * 				  number of input channels.
+	 * @param filter Flattened filter.
+	 * @param fo Offset of the filter.
+	 * @param fs Filter side length.
+	 * @param c Channels covered by the filter.
+	 * @param step Step size.
+	 * @param pad Padding.
+	 * @param out Flattened output map.
+	 * @param oo Offset of the output map.
+	 * @param ostride Distance between consecutive output elements.
+	 */
+	public static void convolveHWC(double[] in, int io, int is, int istride, double[] filter, int fo, int fs, int c, int step, int pad,
+								   double[] out, int oo, int ostride) {
+		convolveHWC(in, io, is, istride, filter, fo, fs, c, step, pad, 1, out, oo, ostride);
+	}
+	
+	/**
+	 * Same as {@linkplain #convolveHWC(double[], int, int, int, double[], int, int, int, int, int, double[], int, int)},
+	 * except that filter elements are applied to input elements <code>dil</code> apart.
+	 * 
+	 * @param in Flattened input map.
+	 * @param io Offset of the first input channel covered by the filter.
+	 * @param is Input map side length.
+	 * @param istride Distance between consecutive input elements.
+	 * @param filter Flattened filter.
+	 * @param fo Offset of the filter.
+	 * @param fs Filter side length.
+	 * @param c Channels covered by the filter.
+	 * @param step Step size.
+	 * @param pad Padding.
+	 * @param dil Distance between adjacent filter elements on the input map.
+	 * @param out Flattened output map.
+	 * @param oo Offset of the output map.
+	 * @param ostride Distance between consecutive output elements.
+	 */
+	public static void convolveHWC(double[] in, int io, int is, int istride, double[] filter, int fo, int fs, int c, int step, int pad,
+								   int dil, double[] out, int oo, int ostride) {
+		final int os = (is + 2 * pad - (fs - 1) * dil - 1) / step + 1;
+		for(int or = 0; or < os; or++) {
+			final int orst = or * step - pad;
+			for(int oc = 0; oc < os; oc++) {
+				final int ocst = oc * step - pad;
+				double o = 0.0;
+				for(int fr = 0; fr < fs; fr++) {
+					final int ir = orst + fr * dil;
+					if(ir < 0 || ir >= is)
+						continue;
+					for(int fc = 0; fc < fs; fc++) {
+						final int ic = ocst + fc * dil;
+						if(ic < 0 || ic >= is)
+							continue;
+						final int x = io + (ir * is + ic) * istride,
+								  y = fo + (fr * fs + fc) * c;
+						for(int ch = 0; ch < c; ch++)
+							o += in[x + ch] * filter[y + ch];
+					}
+				}
+				out[oo + (or * os + oc) * ostride] = o;
+			}
+		}
+	}
+	
+	/**
+	 * Performs the backpropagation operation for {@linkplain #convolveHWC(double[], int, int, double[], int, int, int, int, int, double[], int, int)}
+	 * by scattering each output gradient directly into the input and filter gradients.
+	 * Both gradients are added to the given arrays.
+	 * 
+	 * @param loss Flattened gradient with respect to the output map.
+	 * @param lo Offset of the output gradient.
+	 * @param lstride Distance between consecutive output gradient elements.
+	 * @param in Flattened input map.
+	 * @param io Offset of the input map.
+	 * @param is Input map side length.
+	 * @param filter Flattened filter.
+	 * @param fs Filter side length.
+	 * @param c Channels.
+	 * @param step Step size.
+	 * @param pad Padding.
+	 * @param di Flattened gradient with respect to the input map.
+	 * @param dio Offset of the input gradient.
+	 * @param df Flattened gradient with respect to the filter.
+	 */
+	public static void backConvolveHWC(double[] loss, int lo, int lstride, double[] in, int io, int is, double[] filter, int fs,
+									   int c, int step, int pad, double[] di, int dio, double[] df) {
+		backConvolveHWC(loss, lo, lstride, in, io, is, c, filter, fs, c, step, pad, di, dio, df);
+	}
+	
+	/**
+	 * Performs the backpropagation operation for {@linkplain #convolveHWC(double[], int, int, int, double[], int, int, int, int, int, double[], int, int)}.
+	 * Both gradients are added to the given arrays.
+	 * 
+	 * @param loss Flattened gradient with respect to the output map.
+	 * @param lo Offset of the output gradient.
+	 * @param lstride Distance between consecutive output gradient elements.
+	 * @param in Flattened input map.
+	 * @param io Offset of the first input channel covered by the filter.
+	 * @param is Input map side length.
+	 * @param istride Distance between consecutive input elements.
+	 * @param filter Flattened filter.
+	 * @param fs Filter side length.
+	 * @param c Channels covered by the filter.
+	 * @param step Step size.
+	 * @param pad Padding.
+	 * @param di Flattened gradient with respect to the input map.
+	 * @param dio Offset of the input gradient, matching <code>io</code>.
+	 * @param df Flattened gradient with respect to the filter.
+	 */
+	public static void backConvolveHWC(double[] loss, int lo, int lstride, double[] in, int io, int is, int istride, double[] filter, int fs,
+									   int c, int step, int pad, double[] di, int dio, double[] df) {
+		backConvolveHWC(loss, lo, lstride, in, io, is, istride, filter, fs, c, step, pad, 1, di, dio, df);
+	}
+	
+	/**
+	 * Performs the backpropagation operation for {@linkplain #convolveHWC(double[], int, int, int, double[], int, int, int, int, int, int, double[], int, int)}.
+	 * Both gradients are added to the given arrays.
+	 * 
+	 * @param loss Flattened gradient with respect to the output map.
+	 * @param lo Offset of the output gradient.
+	 * @param lstride Distance between consecutive output gradient elements.
+	 * @param in Flattened input map.
+	 * @param io Offset of the first input channel covered by the filter.
+	 * @param is Input map side length.
+	 * @param istride Distance between consecutive input elements.
+	 * @param filter Flattened filter.
+	 * @param fs Filter side length.
+	 * @param c Channels covered by the filter.
+	 * @param step Step size.
+	 * @param pad Padding.
+	 * @param dil Distance between adjacent filter elements on the input map.
+	 * @param di Flattened gradient with respect to the input map.
+	 * @param dio Offset of the input gradient, matching <code>io</code>.
+	 * @param df Flattened gradient with respect to the filter.
+	 */
+	public static void backConvolveHWC(double[] loss, int lo, int lstride, double[] in, int io, int is, int istride, double[] filter, int fs,
+									   int c, int step, int pad, int dil, double[] di, int dio, double[] df) {
+		final int os = (is + 2 * pad - (fs - 1) * dil - 1) / step + 1;
+		for(int or = 0; or < os; or++) {
+			final int orst = or * step - pad;
+			for(int oc = 0; oc < os; oc++) {
+				final double g = loss[lo + (or * os + oc) * lstride];
+				if(g == 0.0)
+					continue;
+				final int ocst = oc * step - pad;
+				for(int fr = 0; fr < fs; fr++) {
+					final int ir = orst + fr * dil;
+					if(ir < 0 || ir >= is)
+						continue;
+					for(int fc = 0; fc < fs; fc++) {
+						final int ic = ocst + fc * dil;
+						if(ic < 0 || ic >= is)
+							continue;
+						final int x = (ir * is + ic) * istride,
+								  y = (fr * fs + fc) * c;
+						for(int ch = 0; ch < c; ch++) {
+							df[y + ch] += g * in[io + x + ch];
+							di[dio + x + ch] += g * filter[y + ch];
+						}
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Unrolls the receptive field of every output position into the columns of a
+	 * matrix, so that a convolution becomes a single matrix multiply with the filters
+	 * flattened into rows; see {@linkplain #pointwise(double[], int, int, int, double[], int, double[], int, boolean)}.
+	 * Elements that fall in the padding are set to zero.
+	 * 
+	 * @param in Flattened input map.
+	 * @param io Offset of the input map.
+	 * @param is Input map side length.
+	 * @param fs Filter side length.
+	 * @param c Channels.
+	 * @param step Step size.
+	 * @param pad Padding.
+	 * @param dil Distance between adjacent filter elements on the input map.
+	 * @param col Column matrix with <code>c * fs * fs</code> rows and one column per
+	 * 			  output position.
+	 */
+	public static void im2col(double[] in, int io, int is, int fs, int c, int step, int pad, int dil, double[] col) {
+		final int os  = (is + 2 * pad - (fs - 1) * dil - 1) / step + 1,
+				  osq = os * os,
+				  isq = is * is;
+		for(int ch = 0; ch < c; ch++)
+			for(int fr = 0; fr < fs; fr++)
+				for(int fc = 0; fc < fs; fc++) {
+					final int row = ((ch * fs + fr) * fs + fc) * osq,
+							  chisq = io + ch * isq;
+					for(int or = 0; or < os; or++) {
+						final int ir = or * step - pad + fr * dil,
+								  x = row + or * os;
+						if(ir < 0 || ir >= is) {
+							Arrays.fill(col, x, x + os, 0.0);
+							continue;
+						}
+						final int iris = chisq + ir * is;
+						for(int oc = 0; oc < os; oc++) {
+							final int ic = oc * step - pad + fc * dil;
+							col[x + oc] = (ic >= 0 && ic < is)? in[iris + ic]:0.0;
+						}
+					}
+				}
+	}
+	
+	/**
+	 * Adds each entry of a column matrix built by {@linkplain #im2col(double[], int, int, int, int, int, int, int, double[])}
+	 * back to the input element it was copied from.
+	 * 
+	 * @param col Column matrix.
+	 * @param is Input map side length.
+	 * @param fs Filter side length.
+	 * @param c Channels.
+	 * @param step Step size.
+	 * @param pad Padding.
+	 * @param dil Distance between adjacent filter elements on the input map.
+	 * @param out Flattened input map.
+	 * @param oo Offset of the input map.
+	 */
+	public static void col2im(double[] col, int is, int fs, int c, int step, int pad, int dil, double[] out, int oo) {
+		final int os  = (is + 2 * pad - (fs - 1) * dil - 1) / step + 1,
+				  osq = os * os,
+				  isq = is * is;
+		for(int ch = 0; ch < c; ch++)
+			for(int fr = 0; fr < fs; fr++)
+				for(int fc = 0; fc < fs; fc++) {
+					final int row = ((ch * fs + fr) * fs + fc) * osq,
+							  chisq = oo + ch * isq;
+					for(int or = 0; or < os; or++) {
+						final int ir = or * step - pad + fr * dil;
+						if(ir < 0 || ir >= is)
+							continue;
+						final int iris = chisq + ir * is,
+								  x = row + or * os;
+						for(int oc = 0; oc < os; oc++) {
+							final int ic = oc * step - pad + fc * dil;
+							if(ic >= 0 && ic < is)
+								out[iris + ic] += col[x + oc];
+						}
+					}
+				}
+	}
+	
+	/**Number of positions in each block of the 1x1 convolution kernels.*/
+	private static final int POSITION_BLOCK = 256;
+	
+	/**
+	 * Performs a 1x1 convolution with unit step and no padding as a single matrix
+	 * multiply, mixing the channels of every position at once. The weights form a
+	 * matrix with one row per filter and one column per input channel. Filters
+	 * are computed four at a time so each input element is loaded once per group,
+	 * and in the {@linkplain Layout#CHW} layout the positions are split into blocks
+	 * which stay in cache while every group of filters reads them.
+	 * 
+	 * @param in Flattened input map.
+	 * @param io Offset of the input map.
+	 * @param sq Number of positions in each channel.
+	 * @param c Input channels.
+	 * @param w Weight matrix, indexed by filter, then by channel.
+	 * @param k Number of filters.
+	 * @param out Flattened output map.
+	 * @param oo Offset of the output map.
+	 * @param hwc True if the maps use the {@linkplain Layout#HWC} layout.
+	 */
+	public static void pointwise(double[] in, int io, int sq, int c, double[] w, int k, double[] out, int oo, boolean hwc) {
+		final int k4 = k & ~3; //Number of filters in complete groups of four.
+		if(hwc) {
+			for(int pos = 0; pos < sq; pos++) { //For each position:
+				final int x = io + pos * c,
+						  y = oo + pos * k;
+				int f = 0;
+				for(; f < k4; f += 4) { //For each group of four filters:
+					final int w0 = f * c,
+							  w1 = w0 + c,
+							  w2 = w1 + c,
+							  w3 = w2 + c;
+					double o0 = 0.0, o1 = 0.0, o2 = 0.0, o3 = 0.0;
+					for(int ch = 0; ch < c; ch++) { //For each channel:
+						final double v = in[x + ch];
+						o0 += v * w[w0 + ch];
+						o1 += v * w[w1 + ch];
+						o2 += v * w[w2 + ch];
+						o3 += v * w[w3 + ch];
+					}
+					out[y + f] = o0;
+					out[y + f + 1] = o1;
+					out[y + f + 2] = o2;
+					out[y + f + 3] = o3;
+				}
+				for(; f < k; f++) { //For each remaining filter:
+					final int wf = f * c;
+					double o = 0.0;
+					for(int ch = 0; ch < c; ch++) //For each channel:
+						o += in[x + ch] * w[wf + ch];
+					out[y + f] = o;
+				}
+			}
+			return;
+		}
+		for(int p0 = 0; p0 < sq; p0 += POSITION_BLOCK) { //For each block of positions:
+			final int p1 = Math.min(p0 + POSITION_BLOCK, sq);
+			int f = 0;
+			for(; f < k4; f += 4) { //For each group of four filters:
+				final int y0 = oo + f * sq,
+						  y1 = y0 + sq,
+						  y2 = y1 + sq,
+						  y3 = y2 + sq;
+				Arrays.fill(out, y0 + p0, y0 + p1, 0.0);
+				Arrays.fill(out, y1 + p0, y1 + p1, 0.0);
+				Arrays.fill(out, y2 + p0, y2 + p1, 0.0);
+				Arrays.fill(out, y3 + p0, y3 + p1, 0.0);
+				for(int ch = 0; ch < c; ch++) { //For each channel:
+					final int a = f * c + ch;
+					final double w0 = w[a],
+								 w1 = w[a + c],
+								 w2 = w[a + 2 * c],
+								 w3 = w[a + 3 * c];
+					final int x = io + ch * sq;
+					for(int pos = p0; pos < p1; pos++) { //For each position in the block:
+						final double v = in[x + pos];
+						out[y0 + pos] += w0 * v;
+						out[y1 + pos] += w1 * v;
+						out[y2 + pos] += w2 * v;
+						out[y3 + pos] += w3 * v;
+					}
+				}
+			}
+			for(; f < k; f++) { //For each remaining filter:
+				final int y = oo + f * sq;
+				Arrays.fill(out, y + p0, y + p1, 0.0);
+				for(int ch = 0; ch < c; ch++) { //For each channel:
+					final double wv = w[f * c + ch];
+					final int x = io + ch * sq;
+					for(int pos = p0; pos < p1; pos++) //For each position in the block:
+						out[y + pos] += wv * in[x + pos];
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Performs the backpropagation operation for {@linkplain #pointwise(double[], int, int, int, double[], int, double[], int, boolean)}.
+	 * Both gradients are added to the given arrays. The filters and positions are
+	 * grouped in the same way as the feed-forward operation.
+	 * 
+	 * @param loss Flattened gradient with respect to the output map.
+	 * @param lo Offset of the output gradient.
+	 * @param in Flattened input map.
+	 * @param io Offset of the input map.
+	 * @param sq Number of positions in each channel.
+	 * @param c Input channels.
+	 * @param w Weight matrix, indexed by filter, then by channel.
+	 * @param k Number of filters.
+	 * @param di Flattened gradient with respect to the input map.
+	 * @param dio Offset of the input gradient.
+	 * @param dw Gradient with respect to the weight matrix.
+	 * @param hwc True if the maps use the {@linkplain Layout#HWC} layout.
+	 */
+	public static void backPointwise(double[] loss, int lo, double[] in, int io, int sq, int c, double[] w, int k,
+									 double[] di, int dio, double[] dw, boolean hwc) {
+		final int k4 = k & ~3; //Number of filters in complete groups of four.
+		if(hwc) {
+			for(int pos = 0; pos < sq; pos++) { //For each position:
+				final int x = pos * c,
+						  y = lo + pos * k;
+				int f = 0;
+				for(; f < k4; f += 4) { //For each group of four filters:
+					final double g0 = loss[y + f],
+								 g1 = loss[y + f + 1],
+								 g2 = loss[y + f + 2],
+								 g3 = loss[y + f + 3];
+					final int w0 = f * c,
+							  w1 = w0 + c,
+							  w2 = w1 + c,
+							  w3 = w2 + c;
+					for(int ch = 0; ch < c; ch++) { //For each channel:
+						final double v = in[io + x + ch];
+						dw[w0 + ch] += g0 * v;
+						dw[w1 + ch] += g1 * v;
+						dw[w2 + ch] += g2 * v;
+						dw[w3 + ch] += g3 * v;
+						di[dio + x + ch] += g0 * w[w0 + ch] + g1 * w[w1 + ch] + g2 * w[w2 + ch] + g3 * w[w3 + ch];
+					}
+				}
+				for(; f < k; f++) { //For each remaining filter:
+					final double g = loss[y + f];
+					if(g == 0.0)
+						continue;
+					final int wf = f * c;
+					for(int ch = 0; ch < c; ch++) { //For each channel:
+						dw[wf + ch] += g * in[io + x + ch];
+						di[dio + x + ch] += g * w[wf + ch];
+					}
+				}
+			}
+			return;
+		}
+		for(int p0 = 0; p0 < sq; p0 += POSITION_BLOCK) { //For each block of positions:
+			final int p1 = Math.min(p0 + POSITION_BLOCK, sq);
+			int f = 0;
+			for(; f < k4; f += 4) { //For each group of four filters:
+				final int y0 = lo + f * sq,
+						  y1 = y0 + sq,
+						  y2 = y1 + sq,
+						  y3 = y2 + sq;
+				for(int ch = 0; ch < c; ch++) { //For each channel:
+					final int a = f * c + ch,
+							  x = ch * sq;
+					final double w0 = w[a],
+								 w1 = w[a + c],
+								 w2 = w[a + 2 * c],
+								 w3 = w[a + 3 * c];
+					double s0 = 0.0, s1 = 0.0, s2 = 0.0, s3 = 0.0;
+					for(int pos = p0; pos < p1; pos++) { //For each position in the block:
+						final double v = in[io + x + pos],
+									 g0 = loss[y0 + pos],
+									 g1 = loss[y1 + pos],
+									 g2 = loss[y2 + pos],
+									 g3 = loss[y3 + pos];
+						s0 += g0 * v;
+						s1 += g1 * v;
+						s2 += g2 * v;
+						s3 += g3 * v;
+						di[dio + x + pos] += w0 * g0 + w1 * g1 + w2 * g2 + w3 * g3;
+					}
+					dw[a] += s0;
+					dw[a + c] += s1;
+					dw[a + 2 * c] += s2;
+					dw[a + 3 * c] += s3;
+				}
+			}
+			for(; f < k; f++) { //For each remaining filter:
+				final int y = lo + f * sq;
+				for(int ch = 0; ch < c; ch++) { //For each channel:
+					final double wv = w[f * c + ch];
+					final int x = ch * sq;
+					double s = 0.0;
+					for(int pos = p0; pos < p1; pos++) { //For each position in the block:
+						final double g = loss[y + pos];
+						s += g * in[io + x + pos];
+						di[dio + x + pos] += wv * g;
+					}
+					dw[f * c + ch] += s;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Performs the backpropagation operation for {@linkplain #convolve(double[], int, double[], int, int, int, int)}.
+	 * 
+	 * @param loss Flattened gradient with respect to the output map.
+	 * @param in Flattened input map.
+	 * @param is Input map side length.
+	 * @param filter Flattened filter.
+	 * @param fs Filter side length.
+	 * @param c Channels.
+	 * @param step Step size.
+	 * @param pad Padding.
+	 * @return The flattened gradients with respect to the input map and the filter.
+	 */
+	public static double[][] backConvolve(double[] loss, double[] in, int is, double[] filter, int fs, int c, int step, int pad) {
+		final double[] di = new double[c * is * is],
+					   df = new double[c * fs * fs];
+		backConvolve(loss, 0, in, 0, is, filter, fs, c, step, pad, di, 0, df);
+		return new double[][] {di,df};
 	}
 	
 	/**
@@ -59,12 +59,125 @@ public class Vector implements Serializable {
 		public String toString() {return "Blank";}
 	}
 	
+	/**
+	 * A function whose derivative depends on the sign of its input rather
+	 * than its value. When compact storage is enabled, the input is replaced
+	 * with a packed bitmask after the feed-forward operation.
+	 * 
+	 * @author prgmTrouble
+	 */
+	private static abstract class Piecewise extends Function<ListOfTypes> {
+		/***/
+		private static final long serialVersionUID = 1L;
+		
+		/**Packed input signs, or null if the input is stored.*/
+		private transient long[] mask;
+		/**Number of elements recorded in the mask.*/
+		private transient int maskLength;
+		
+		public Piecewise(ListOfTypes[] types) {super(types);}
+		
+		/**
+		 * Records the state required by the derivative. If compact storage is
+		 * enabled, the sign of each input is packed into a bitmask and the
+		 * stored input is released.
+		 * 
+		 * @param in Input vector.
+		 */
+		protected void record(double[] in) {
+			if(isCompact()) { //If compact storage is enabled:
+				mask = Tensor.positiveMask(in, mask); //Pack signs.
+				maskLength = in.length;
+				getForwardParameter().clear(); //Release input.
+			} else
+				mask = null;
+		}
+		
+		/**@return The stored input, or null if only its signs were recorded.*/
+		protected double[] input() {
+			if(mask != null)
+				return null;
+			final double[] in = (double[]) getForwardParameter().getValues()[0]; // I
+			if(in == null)
+				error(toString()+": Null Input.");
+			return in;
+		}
+		
+		/**
+		 * @param in Value returned by {@linkplain #input()}.
+		 * @return Length of the recorded input.
+		 */
+		protected int length(double[] in) {return (mask == null)? in.length:maskLength;}
+		
+		/**
+		 * @param in Value returned by {@linkplain #input()}.
+		 * @param i Element index.
+		 * @return True if the input at index <code>i</code> was positive.
+		 */
+		protected boolean positive(double[] in, int i) {return (mask == null)? (in[i] > 0.0):Tensor.isSet(mask, i);}
+		
+		/**
+		 * @param x A non-positive input.
+		 * @return Output of the function.
+		 */
+		protected abstract double negative(double x);
+		
+		/**
+		 * @param o Output of the function for a non-positive input.
+		 * @return Derivative of the function.
+		 */
+		protected abstract double negativeSlope(double o);
+		
+		/**@return Derivative of the function for positive inputs.*/
+		protected double positiveSlope() {return 1.0;}
+		
+		/**
+		 * Runs the function over the first <code>n</code> elements of the input
+		 * without recording any state.
+		 * 
+		 * @param in Input vector.
+		 * @param out Output vector. May be the same array as the input.
+		 * @param n Number of elements.
+		 */
+		protected void apply(double[] in, double[] out, int n) {
+			final double k = positiveSlope();
+			for(int i = 0; i < n; i++) {
+				final double t = in[i];
+				out[i] = (t > 0.0)? (k * t) : negative(t);
+			}
+		}
+		
+		/**
+		 * Computes the gradient with respect to the input from the output of
+		 * {@linkplain #apply(double[], double[], int)}. The output is positive
+		 * exactly when the input is positive, so the input is not needed.
+		 * 
+		 * @param loss Gradient with respect to the output.
+		 * @param out Output vector.
+		 * @param grad Gradient with respect to the input. May be the same array as the loss.
+		 * @param n Number of elements.
+		 */
+		protected void gradient(double[] loss, double[] out, double[] grad, int n) {
+			final double k = positiveSlope();
+			for(int i = 0; i < n; i++) {
+				final double o = out[i];
+				grad[i] = loss[i] * ((o > 0.0)? k : negativeSlope(o));
+			}
+		}
+		
+		@Override
+		public void release() {
+			super.release();
+			mask = null;
+		}
+	}
+	
 	/**
 	 * A Rectified Linear Unit activation function.
 	 * 
 	 * @author prgmTrouble
 	 */
-	private static final class ReLU extends Function<ListOfTypes> {
+	private static final class ReLU extends Piecewise {
 		/***/
 		private static final long serialVersionUID = 1L;
 		
@@ -94,6 +207,7 @@ public class Vector implements Serializable {
 				}
 				
 				setOutputParameter(new Object[] {out});
+				record(in);
 			} catch(ClassCastException e) {
 				e.printStackTrace();
 				error(toString()+": Could not cast parameters.");
@@ -109,10 +223,8 @@ public class Vector implements Serializable {
 				error(toString()+": Invalid Parameters.");
 			setBackwardParameter(backwardParams);
 			try {
-				final double[] in = (double[]) getForwardParameter().getValues()[0]; // I
-				if(in == null)
-					error(toString()+": Null Input.");
-				final int il = in.length;
+				final double[] in = input(); // I
+				final int il = length(in);
 				
 				final double[] l = (double[]) backwardParams[0]; // dL/dO
 				if(l == null)
@@ -122,7 +234,7 @@ public class Vector implements Serializable {
 				
 				final double[] out = new double[il]; // dL/dI
 				for(int i = 0; i < il; i++)
-					if(in[i] > 0.0)
+					if(positive(in,i))
 						out[i] = l[i]; // dL/dI = dL/dO * dO/dI = dL/dO * [(I>0)? 1:0] = (I>0)? (dL/dO):0
 				
 				setGradientParameter(new Object[] {out});
@@ -133,6 +245,12 @@ public class Vector implements Serializable {
 			return getGradientParameter();
 		}
 		
+		@Override
+		protected double negative(double x) {return 0.0;}
+		
+		@Override
+		protected double negativeSlope(double o) {return 0.0;}
+		
 		@Override
 		public void learnParameters(double learningRate) {}
 		
@@ -145,7 +263,7 @@ public class Vector implements Serializable {
 	 * 
 	 * @author prgmTrouble
 	 */
-	private static final class LeakyReLU_DEF extends Function<ListOfTypes> {
+	private static final class LeakyReLU_DEF extends Piecewise {
 		/***/
 		private static final long serialVersionUID = 1L;
 		
@@ -174,6 +292,7 @@ public class Vector implements Serializable {
 						out[i] *= LEAKY_RELU_DEFAULT_W; // O = max(I,w*I) = I * [(I>0)? 1:w]
 				
 				setOutputParameter(new Object[] {out});
+				record(in);
 			} catch(ClassCastException e) {
 				e.printStackTrace();
 				error(toString()+": Could not cast parameters.");
@@ -189,10 +308,8 @@ public class Vector implements Serializable {
 				error(toString()+": Invalid Parameters.");
 			setBackwardParameter(backwardParams);
 			try {
-				final double[] in = (double[]) getForwardParameter().getValues()[0]; // I
-				if(in == null)
-					error(toString()+": Null Input.");
-				final int il = in.length;
+				final double[] in = input(); // I
+				final int il = length(in);
 				
 				final double[] l = (double[]) backwardParams[0]; // dL/dO
 				if(l == null)
@@ -203,7 +320,7 @@ public class Vector implements Serializable {
 				final double[] out = new double[il]; // dL/dI
 				System.arraycopy(l, 0, out, 0, il);
 				for(int i = 0; i < il; i++)
-					if(in[i] <= 0.0)
+					if(!positive(in,i))
 						out[i] *= LEAKY_RELU_DEFAULT_W; // dL/dI = dL/dO * dO/dI = dL/dO * [(I>0)? 1:w]
 				
 				setGradientParameter(new Object[] {out});
@@ -214,6 +331,12 @@ public class Vector implements Serializable {
 			return getGradientParameter();
 		}
 		
+		@Override
+		protected double negative(double x) {return x * LEAKY_RELU_DEFAULT_W;}
+		
+		@Override
+		protected double negativeSlope(double o) {return LEAKY_RELU_DEFAULT_W;}
+		
 		@Override
 		public void learnParameters(double learningRate) {}
 		
@@ -331,7 +454,7 @@ public class Vector implements Serializable {
 	 * 
 	 * @author prgmTrouble
 	 */
-	private static final class ELU_DEF extends Function<ListOfTypes> {
+	private static final class ELU_DEF extends Piecewise {
 		/***/
 		private static final long serialVersionUID = 1L;
 		
@@ -360,6 +483,7 @@ public class Vector implements Serializable {
 				}
 				
 				setOutputParameter(new Object[] {out});
+				record(in);
 			} catch(ClassCastException e) {
 				e.printStackTrace();
 				error(toString()+": Could not cast parameters.");
@@ -375,10 +499,8 @@ public class Vector implements Serializable {
 				error(toString()+": Invalid Parameters.");
 			setBackwardParameter(backwardParams);
 			try {
-				final double[] in = (double[]) getForwardParameter().getValues()[0]; // I
-				if(in == null)
-					error(toString()+": Null Input.");
-				final int il = in.length;
+				final double[] in = input(); // I
+				final int il = length(in);
 				
 				final double[] l = (double[]) backwardParams[0]; // dL/dO
 				if(l == null)
@@ -390,7 +512,7 @@ public class Vector implements Serializable {
 				final double[] out = new double[il]; // dL/dI
 				System.arraycopy(l, 0, out, 0, il);
 				for(int i = 0; i < il; i++)
-					if(in[i] <= 0.0)
+					if(!positive(in,i))
 						out[i] *= pOut[i] + ELU_DEFAULT_W; // dL/dI = dL/dO * dO/dI = dL/dO * [(I>0)? 1:(O+w)]
 				
 				setGradientParameter(new Object[] {out});
@@ -401,6 +523,12 @@ public class Vector implements Serializable {
 			return getGradientParameter();
 		}
 		
+		@Override
+		protected double negative(double x) {return ELU_DEFAULT_W * (Math.exp(x) - 1.0);}
+		
+		@Override
+		protected double negativeSlope(double o) {return o + ELU_DEFAULT_W;}
+		
 		@Override
 		public void learnParameters(double learningRate) {}
 		
@@ -718,7 +846,7 @@ public class Vector implements Serializable {
 	 * 
 	 * @author prgmTrouble
 	 */
-	private static final class SELU_DEF extends Function<ListOfTypes> {
+	private static final class SELU_DEF extends Piecewise {
 		/***/
 		private static final long serialVersionUID = 1L;
 		
@@ -748,6 +876,7 @@ public class Vector implements Serializable {
 				}
 				
 				setOutputParameter(new Object[] {out});
+				record(in);
 			} catch(ClassCastException e) {
 				e.printStackTrace();
 				error(toString()+": Could not cast parameters.");
@@ -763,10 +892,8 @@ public class Vector implements Serializable {
 				error(toString()+": Invalid Parameters.");
 			setBackwardParameter(backwardParams);
 			try {
-				final double[] in = (double[]) getForwardParameter().getValues()[0]; // I
-				if(in == null)
-					error(toString()+": Null Input.");
-				final int il = in.length;
+				final double[] in = input(); // I
+				final int il = length(in);
 				
 				final double[] l = (double[]) backwardParams[0]; // dL/dO
 				if(l == null)
@@ -778,7 +905,7 @@ public class Vector implements Serializable {
 				final double[] out = new double[il]; // dL/dI
 				System.arraycopy(l, 0, out, 0, il);
 				for(int i = 0; i < il; i++) // dL/dI = dL/dO * dO/dI = dL/dO * [(I>0)? l:(O+l*a)]
-					out[i] *= (in[i] > 0.0)? (SELU_DEFAULT_L) : (pOut[i] + SELU_DEFAULT_L * SELU_DEFAULT_A);
+					out[i] *= positive(in,i)? (SELU_DEFAULT_L) : (pOut[i] + SELU_DEFAULT_L * SELU_DEFAULT_A);
 				
 				setGradientParameter(new Object[] {out});
 			} catch(ClassCastException e) {
@@ -788,6 +915,15 @@ public class Vector implements Serializable {
 			return getGradientParameter();
 		}
 		
+		@Override
+		protected double negative(double x) {return SELU_DEFAULT_L * (SELU_DEFAULT_A * (Math.exp(x) - 1.0));}
+		
+		@Override
+		protected double negativeSlope(double o) {return o + SELU_DEFAULT_L * SELU_DEFAULT_A;}
+		
+		@Override
+		protected double positiveSlope() {return SELU_DEFAULT_L;}
+		
 		@Override
 		public void learnParameters(double learningRate) {}
 		
@@ -2049,6 +2185,9 @@ public class Vector implements Serializable {
 		public String toString() {return "CrossEntropy";}
 	};
 	
+	/**Type of the function which operates on all elements of an input.*/
+	private final FunctionTypes function;
+	
 	/**Function which operates on all elements of an input.*/
 	private final Function<ListOfTypes> f;
 	
@@ -2069,6 +2208,7 @@ public class Vector implements Serializable {
 	 */
 	public Vector(FunctionTypes function) {
 		forwardExecuted = false;
+		this.function = function;
 		switch(function) {
 		case ReLU		  : f = new ReLU()		   ; break;
 		case LeakyReLU_DEF: f = new LeakyReLU_DEF(); break;
@@ -2144,6 +2284,98 @@ public class Vector implements Serializable {
 	
 	public ListOfTypes[] getFunctionTypes() {return f.getTypes();}
 	
+	/**@return True if the feed-forward operation stores only the packed signs of its input.*/
+	public boolean isCompact() {return f instanceof Piecewise && f.isCompact();}
+	
+	/**@return True if {@linkplain #forward(double[], double[])} and {@linkplain #backward(double[], double[], double[])} run without allocating.*/
+	public boolean isBuffered() {return isBlank || f instanceof Piecewise;}
+	
+	/**
+	 * Runs a single-input function over a vector into the given buffer. Piecewise
+	 * functions such as {@linkplain FunctionTypes#ReLU} write directly to the buffer
+	 * and record no state; other functions run through {@linkplain #forward(Parameter)}
+	 * and their output is copied.
+	 * 
+	 * @param in Input vector.
+	 * @param out Output buffer, which must be a different array than the input.
+	 */
+	public void forward(double[] in, double[] out) {
+		if(isBlank)
+			System.arraycopy(in, 0, out, 0, in.length);
+		else if(f instanceof Piecewise)
+			((Piecewise) f).apply(in, out, in.length);
+		else {
+			final double[] o = (double[]) forward(new Parameter<ListOfTypes>(f.getTypes()[0], new Object[] {in})).getValues()[0];
+			System.arraycopy(o, 0, out, 0, o.length);
+		}
+	}
+	
+	/**
+	 * Computes the gradient of a function run by {@linkplain #forward(double[], double[])}
+	 * into the given buffer.
+	 * 
+	 * @param loss Gradient with respect to the output.
+	 * @param out Output buffer written by {@linkplain #forward(double[], double[])}.
+	 * @param grad Gradient buffer. May be the same array as the loss.
+	 */
+	public void backward(double[] loss, double[] out, double[] grad) {
+		if(isBlank) {
+			if(grad != loss)
+				System.arraycopy(loss, 0, grad, 0, loss.length);
+		} else if(f instanceof Piecewise)
+			((Piecewise) f).gradient(loss, out, grad, loss.length);
+		else {
+			final double[] g = (double[]) backward(new Parameter<ListOfTypes>(f.getTypes()[1], new Object[] {loss})).getValues()[0];
+			System.arraycopy(g, 0, grad, 0, g.length);
+		}
+	}
+	
+	/**
+	 * Sets the activation-memory mode. When enabled, piecewise functions
+	 * such as {@linkplain FunctionTypes#ReLU} store a packed sign bitmask
+	 * instead of their input.
+	 * 
+	 * @param compact True if compact storage should be used.
+	 */
+	public void setCompact(boolean compact) {f.setCompact(compact);}
+	
+	/**@return True if the function maps an input of zero to zero.*/
+	public boolean preservesZero() {
+		switch(function) {
+		case Sigmoid_DEF :
+		case Sigmoid	 :
+		case Softmax_DEF :
+		case Softmax	 :
+		case NSoftmax_DEF:
+		case NSoftmax	 :
+		case CrossEntropy: return false;
+		default			 : return true;
+		}
+	}
+	
+	/**
+	 * Creates a vector which runs the same function as this vector with its own
+	 * state, so that it can run without disturbing the state recorded by this
+	 * vector for backpropagation. Learned function parameters are supplied by the
+	 * caller of {@linkplain #forward(Parameter)}, so they remain shared.
+	 * 
+	 * @return A new vector with the same function type and storage mode.
+	 */
+	public Vector copy() {
+		final Vector r = new Vector(function);
+		r.setCompact(f.isCompact());
+		return r;
+	}
+	
+	/**
+	 * Releases the state stored by {@linkplain #forward(Parameter)}. The
+	 * forward operation must be run again before {@linkplain #backward(Parameter)}.
+	 */
+	public void release() {
+		f.release();
+		forwardExecuted = false;
+	}
+	
 	/**
 	 * A custom exception which indicates an error in the vector.
 	 * 
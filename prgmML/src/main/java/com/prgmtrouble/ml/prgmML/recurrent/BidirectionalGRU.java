@@ -0,0 +1,208 @@
+package com.prgmtrouble.ml.prgmML.recurrent;
+
+import java.io.Serializable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A bidirectional encoder made of two {@linkplain GRU} objects, one
+ * which reads the sequence forward and one which reads it in reverse.
+ * The output at each time step is the output of the forward unit
+ * followed by the output of the reverse unit. Since the two directions
+ * are independent until their outputs are merged, they run on separate
+ * threads for both the feed-forward and backpropagation operations.
+ * 
+ * @author prgmTrouble
+ */
+public class BidirectionalGRU implements Serializable {
+	/***/
+	private static final long serialVersionUID = 1L;
+	
+	/**Minimum number of element updates per direction for which the directions run on separate threads.*/
+	private static final int GRAIN = 1 << 12;
+	
+	/**Unit which reads the sequence forward.*/
+	private final GRU forwardUnit = new GRU();
+	/**Unit which reads the sequence in reverse.*/
+	private final GRU reverseUnit = new GRU();
+	
+	/**Input vectors of the last feed-forward operation, indexed by time.*/
+	private transient double[][] in;
+	/**Input vectors of the last feed-forward operation, in reverse order.*/
+	private transient double[][] reversed;
+	/**Outputs of the forward unit, shifted up once.*/
+	private transient double[][] fwdOut;
+	/**Outputs of the reverse unit, shifted up once, in reverse order.*/
+	private transient double[][] revOut;
+	/**Merged outputs, indexed by time.*/
+	private transient double[][] out;
+	/**Gradient with respect to the outputs of the forward unit.*/
+	private transient double[][] fwdLoss;
+	/**Gradient with respect to the outputs of the reverse unit, in reverse order.*/
+	private transient double[][] revLoss;
+	/**Gradient with respect to the inputs of the forward unit.*/
+	private transient double[][] fwdGrad;
+	/**Gradient with respect to the inputs of the reverse unit, in reverse order.*/
+	private transient double[][] revGrad;
+	/**Merged gradient with respect to the inputs, indexed by time.*/
+	private transient double[][] inGrad;
+	/**Size of input vectors.*/
+	private transient int size;
+	/**True if the feed-forward operation has been called.*/
+	private transient boolean forwardExecuted = false;
+	
+	/**Creates a new bidirectional Gated Recurrent Unit.*/
+	public BidirectionalGRU() {}
+	
+	/**
+	 * Performs the feed-forward operation. The returned vectors are
+	 * overwritten by the next call with the same sequence length.
+	 * 
+	 * @param in Input vectors indexed by time.
+	 * @return The outputs indexed by time. Each output holds the output of
+	 * 		   the forward unit followed by the output of the reverse unit.
+	 */
+	public double[][] forward(double[][] in) {
+		if(in.length == 0)
+			error("Empty input sequence.");
+		final int T = in.length;
+		size = in[0].length;
+		if(out == null || out.length != T || out[0].length != 2 * size) {
+			reversed = new double[T][];
+			out = new double[T][2 * size];
+			fwdLoss = new double[T][size];
+			revLoss = new double[T][size];
+			inGrad = new double[T][size];
+		}
+		for(int t = 0; t < T; t++) //For each time step:
+			reversed[T - 1 - t] = in[t];
+		this.in = in;
+		run(new Task(true, 0.0, -1), T);
+		for(int t = 0; t < T; t++) { //For each time step:
+			System.arraycopy(fwdOut[t + 1], 0, out[t], 0, size);
+			System.arraycopy(revOut[T - t], 0, out[t], size, size);
+		}
+		forwardExecuted = true;
+		return out;
+	}
+	
+	/**
+	 * Performs the backpropagation operation. The returned vectors
+	 * are overwritten by the next call with the same sequence length.
+	 * 
+	 * @param loss Gradient with respect to the output indexed by time.
+	 * @param learningRate Learning rate.
+	 * @return Gradient with respect to the input indexed by time.
+	 */
+	public double[][] backward(double[][] loss, double learningRate) {
+		if(!forwardExecuted)
+			error("Feed-forward function has not been called for the current cycle.");
+		final int T = in.length;
+		if(loss.length != T)
+			error("Invalid gradient length.");
+		forwardExecuted = false;
+		for(int t = 0; t < T; t++) { //For each time step:
+			if(loss[t].length != 2 * size)
+				error("Invalid gradient size.");
+			System.arraycopy(loss[t], 0, fwdLoss[t], 0, size);
+			System.arraycopy(loss[t], size, revLoss[T - 1 - t], 0, size);
+		}
+		run(new Task(false, learningRate, -1), T);
+		for(int t = 0; t < T; t++) { //For each time step:
+			final double[] f = fwdGrad[t],
+						   r = revGrad[T - 1 - t],
+						   g = inGrad[t];
+			for(int i = 0; i < size; i++)
+				g[i] = f[i] + r[i];
+		}
+		return inGrad;
+	}
+	
+	/**@return The unit which reads the sequence forward.*/
+	public GRU forwardUnit() {return forwardUnit;}
+	
+	/**@return The unit which reads the sequence in reverse.*/
+	public GRU reverseUnit() {return reverseUnit;}
+	
+	/**
+	 * Runs a task on the common {@linkplain ForkJoinPool} if the sequence is
+	 * large enough for the directions to run on separate threads, otherwise
+	 * runs both directions on the calling thread.
+	 * 
+	 * @param task Task to run.
+	 * @param T Number of time steps.
+	 */
+	private void run(Task task, int T) {
+		if((long) T * size > GRAIN)
+			ForkJoinPool.commonPool().invoke(task);
+		else {
+			new Task(task.fwd, task.lr, 0).compute();
+			new Task(task.fwd, task.lr, 1).compute();
+		}
+	}
+	
+	/**
+	 * A task which runs one direction, or both directions in parallel.
+	 * 
+	 * @author prgmTrouble
+	 */
+	private final class Task extends RecursiveAction {
+		/***/
+		private static final long serialVersionUID = 1L;
+		
+		/**True if running forward, false if running backward.*/
+		private final boolean fwd;
+		/**Learning rate.*/
+		private final double lr;
+		/**Zero for the forward unit, one for the reverse unit, or a negative value for both.*/
+		private final int direction;
+		
+		public Task(boolean fwd, double lr, int direction) {
+			this.fwd = fwd;
+			this.lr = lr;
+			this.direction = direction;
+		}
+		
+		@Override
+		protected void compute() {
+			if(direction < 0)
+				invokeAll(new Task(fwd, lr, 0), new Task(fwd, lr, 1));
+			else if(direction == 0) {
+				if(fwd)
+					fwdOut = forwardUnit.forward(in);
+				else
+					fwdGrad = forwardUnit.backward(fwdLoss, lr);
+			} else if(fwd)
+				revOut = reverseUnit.forward(reversed);
+			else
+				revGrad = reverseUnit.backward(revLoss, lr);
+		}
+	}
+	
+	/**
+	 * A custom exception which indicates an error in a bidirectional GRU.
+	 * 
+	 * @author prgmTrouble
+	 */
+	private static class BidirectionalGRUException extends Exception {
+		/***/
+		private static final long serialVersionUID = 1L;
+		private static final String prefix = "Bidirectional GRU Exception: ";
+		
+		public BidirectionalGRUException(String s) {super(prefix + s);}
+	}
+	
+	/**
+	 * Throws a {@linkplain BidirectionalGRUException} and terminates execution.
+	 * 
+	 * @param s Description of error.
+	 */
+	private static void error(String s) {
+		try {
+			throw new BidirectionalGRUException(s);
+		} catch (BidirectionalGRUException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+}
@@ -1,14 +1,36 @@
 package com.prgmtrouble.ml.prgmML.recurrent;
 
 import java.io.Serializable;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.concurrent.ThreadLocalRandom;
 
-import com.prgmtrouble.ml.prgmML.math.Tensor;
-
 /**
  * A lightweight Gated Recurrent Unit object. For the
  * sake of keeping the math simple, I chose not to
  * support customizable functions.
+ * <br>
+ * The weights of all three gates are packed into a single
+ * block which is indexed by element, then by gate and weight,
+ * so each time step is computed in one fused pass. Every
+ * buffer used by a sequence is allocated once and reused
+ * while the sequence length and vector size stay the same.
+ * <br>
+ * For online inference, {@linkplain #step(double[], double[], double[])}
+ * advances a stream by one time step in constant memory. The
+ * state of each stream is held by the caller, so any number of
+ * streams may share one set of weights.
+ * <br>
+ * Long sequences may be trained with truncated backpropagation
+ * through time by {@linkplain #train(double[][], int, Target, double)},
+ * which only stores the time steps of one window.
+ * <br>
+ * Batches of sequences with different lengths are run by
+ * {@linkplain #forward(double[][][], double[][][])}, which computes
+ * each time step across the whole batch. Since every element of a
+ * GRU evolves independently, the batch is split across threads by
+ * element.
  * 
  * @author prgmTrouble
  */
@@ -34,16 +56,71 @@ public class GRU implements Serializable {
 	/**Gate R.*/
 	private static final int idxR = 2;
 	
-	/**Number of elements in cache.*/
-	private static final int nCacheElements = 5;
-	/**Variable cache for each time step.*/
-	private double[][][] timeCache;
-	/**Weights indexed <code>[gate][weight]</code>.*/
-	private double[][][] weights;
+	/**Minimum number of element updates in a batch for which work is split across threads.*/
+	private static final int GRAIN = 1 << 15;
+	
+	/**Number of parameters per element.*/
+	private static final int nParams = nGates * nWeights;
+	/**Offset of each parameter within the parameters of an element.*/
+	private static final int zW = idxZ * nWeights + idxW, zU = idxZ * nWeights + idxU, zB = idxZ * nWeights + idxB,
+							 hW = idxH * nWeights + idxW, hU = idxH * nWeights + idxU, hB = idxH * nWeights + idxB,
+							 rW = idxR * nWeights + idxW, rU = idxR * nWeights + idxU, rB = idxR * nWeights + idxB;
+	
+	/**Weights of every gate, indexed <code>[element][gate][weight]</code>.*/
+	private double[] weights;
 	/**Output for <code>time = -1</code>.*/
 	private double[] initOut;
 	
-	/**Number of time steps.*/
+	/**Input vectors of the last feed-forward operation, indexed by time.*/
+	private transient double[][] in;
+	/**Output of gate Z, indexed by time, then by element.*/
+	private transient double[] gateZ;
+	/**Output of gate R, indexed by time, then by element.*/
+	private transient double[] gateR;
+	/**Output of gate H, indexed by time, then by element.*/
+	private transient double[] gateH;
+	/**Output vectors, indexed by time. Index zero holds the initial output.*/
+	private transient double[][] out;
+	/**Gradient with respect to the input vectors, indexed by time.*/
+	private transient double[][] inGrad;
+	/**Gradient with respect to the weights, packed like {@linkplain #weights}.*/
+	private transient double[] weightGrad;
+	/**Gradient with respect to the previous output, carried backward through time.*/
+	private transient double[] carry;
+	/**State of the stream advanced by {@linkplain #step(double[], double[])}.*/
+	private transient double[] stream;
+	/**Output carried across the windows of {@linkplain #train(double[][], int, Target, double)}.*/
+	private transient double[] carried;
+	/**Gradient with respect to the output of each time step of a window.*/
+	private transient double[][] windowLoss;
+	/**Index of the first input vector of the last feed-forward operation.*/
+	private transient int first;
+	/**True if the last feed-forward operation started from a carried output rather than the initial output.*/
+	private transient boolean truncated;
+	/**Input sequences of the last batched feed-forward operation.*/
+	private transient double[][][] batchIn;
+	/**Output sequences of the last batched feed-forward operation.*/
+	private transient double[][][] batchOut;
+	/**Indices of the sequences of the last batch, sorted by decreasing length.*/
+	private transient int[] order;
+	/**Number of sequences which have not finished at each time step of the last batch.*/
+	private transient int[] active;
+	/**Number of time steps of the longest sequence in the last batch.*/
+	private transient int batchSteps;
+	/**Number of sequence time steps in the last batch.*/
+	private transient long batchWork;
+	/**Output of gate Z for the last batch, indexed by time, then by sorted sequence and element.*/
+	private transient double[] batchZ;
+	/**Output of gate R for the last batch, indexed by time, then by sorted sequence and element.*/
+	private transient double[] batchR;
+	/**Output of gate H for the last batch, indexed by time, then by sorted sequence and element.*/
+	private transient double[] batchH;
+	/**Gradient with respect to the previous output of each sequence, indexed by sorted sequence, then by element.*/
+	private transient double[] batchCarry;
+	/**True if the batched feed-forward operation has been called.*/
+	private transient boolean batchExecuted;
+	
+	/**Number of time steps in the last feed-forward operation.*/
 	private int maxT;
 	/**Size of input vectors.*/
 	private int size;
@@ -61,392 +138,547 @@ public class GRU implements Serializable {
 	public GRU() {}
 	
 	/**
-	 * Performs the feed-forward operation.
+	 * Performs the feed-forward operation. The returned vectors are
+	 * overwritten by the next call with the same sequence length.
 	 * 
 	 * @param in Input vectors indexed by time.
-	 * @return The outputs indexed by time.
+	 * @return The outputs indexed by time, shifted up once so that
+	 * 		   index zero holds the initial output.
 	 */
 	public double[][] forward(double[][] in) {
-		maxT = in.length;
-		size = in[0].length;
-		
-		if(!initialized) {
-			final double v = Math.sqrt(2.0 / (double) (maxT * size));
-			final ThreadLocalRandom r = ThreadLocalRandom.current();
-			weights = new double[nGates][nWeights][];
-			for(int i = 0; i < nGates; i++) {
-				final double[][] Wi = new double[nWeights][];
-				for(int j = 0; j < nWeights; j++)
-					Wi[j] = gaussian(v,size,r);
-				weights[i] = Wi;
-			}
-			initOut = gaussian(v,size,r);
-			initialized = true;
+		if(in.length == 0)
+			error("Empty input sequence.");
+		if(!initialized)
+			initialize(in.length, in[0].length);
+		for(double[] x : in)
+			if(x.length != size)
+				error("Invalid input size.");
+		workspace(in.length, true);
+		run(in, 0, initOut);
+		return out;
+	}
+	
+	/**
+	 * Trains the unit on a long sequence using truncated backpropagation
+	 * through time. The sequence is split into windows of <code>k</code>
+	 * time steps, and the weights are updated after each window. The output
+	 * at the end of each window is carried into the next window without a
+	 * gradient, so only <code>k</code> time steps are stored at once.
+	 * 
+	 * @param in Input vectors indexed by time.
+	 * @param k Number of time steps in each window.
+	 * @param target Supplies the gradient with respect to each output.
+	 * @param learningRate Learning rate.
+	 */
+	public void train(double[][] in, int k, Target target, double learningRate) {
+		if(in.length == 0)
+			error("Empty input sequence.");
+		if(k <= 0)
+			error("Invalid window length.");
+		if(!initialized)
+			initialize(Math.min(k, in.length), in[0].length);
+		for(double[] x : in)
+			if(x.length != size)
+				error("Invalid input size.");
+		if(carried == null)
+			carried = new double[size];
+		if(windowLoss == null || windowLoss.length < Math.min(k, in.length))
+			windowLoss = new double[Math.min(k, in.length)][size];
+		for(int t0 = 0; t0 < in.length; t0 += k) { //For each window:
+			workspace(Math.min(k, in.length - t0), false);
+			run(in, t0, (t0 == 0)? initOut:carried);
+			for(int t = 0; t < maxT; t++) //For each time step:
+				target.gradient(t0 + t, out[t + 1], windowLoss[t]);
+			backPropagate(windowLoss, learningRate);
+			System.arraycopy(out[maxT], 0, carried, 0, size);
 		}
-		
-		final double[][] out = new double[maxT + 1][]; //Note: indices are shifted up once.
-		out[0] = initOut;
-		timeCache = new double[maxT][][];
-		
-		for(int t = 0; t < maxT; t++) {
-			final double[][] cache = new double[nCacheElements][];
-			final double[] xt = cache[0] =  in[t],
-						   pO = cache[1] = out[t];
-			double[][] Wn = weights[idxZ];
-			final double[] az = cache[2] = getAlpha(Wn[idxW],xt,Wn[idxU],pO,Wn[idxB]);
-			Wn = weights[idxR];
-			double[] ar = cache[3] = getAlpha(Wn[idxW],xt,Wn[idxU],pO,Wn[idxB]);
-			Wn = weights[idxH];
-			final double[] b  = cache[4] = getBeta(Wn[idxW],xt,Wn[idxU],pO,ar,Wn[idxB]);
-			ar = null;
-			out[t + 1] = getOut(az, pO, b);
-			timeCache[t] = cache;
+	}
+	
+	/**
+	 * Runs the time steps held by the workspace.
+	 * 
+	 * @param in Input vectors indexed by time.
+	 * @param from Index of the first input vector.
+	 * @param h Output before the first time step.
+	 */
+	private void run(double[][] in, int from, double[] h) {
+		this.in = in;
+		first = from;
+		truncated = (h != initOut);
+		out[0] = h;
+		for(int t = 0; t < maxT; t++) //For each time step:
+			cell(in[from + t], out[t], out[t + 1], gateZ, gateR, gateH, t * size, 0, size);
+		forwardExecuted = true;
+	}
+	
+	/**
+	 * Advances the stream held by this unit by one time step.
+	 * 
+	 * @param x Input vector.
+	 * @param hOut Buffer for the output, or null.
+	 * 
+	 * @see #snapshot()
+	 * @see #restore(double[])
+	 */
+	public void step(double[] x, double[] hOut) {
+		if(!initialized)
+			initialize(1, x.length);
+		if(stream == null)
+			reset();
+		step(x, stream, hOut);
+	}
+	
+	/**
+	 * Advances a stream by one time step without allocating. Only
+	 * the weights are shared, so streams with different states may
+	 * be advanced concurrently.
+	 * 
+	 * @param x Input vector.
+	 * @param state Output of the previous time step, which is replaced
+	 * 				by the output of this time step.
+	 * @param hOut Buffer for the output, or null.
+	 * 
+	 * @see #newState()
+	 */
+	public void step(double[] x, double[] state, double[] hOut) {
+		if(!initialized)
+			error("Weights have not been initialized.");
+		if(x.length != size || state.length != size)
+			error("Invalid input size.");
+		cell(x, state, state, null, null, null, -1, 0, size);
+		if(hOut != null)
+			System.arraycopy(state, 0, hOut, 0, size);
+	}
+	
+	/**@return A new stream state which holds the initial output.*/
+	public double[] newState() {
+		if(!initialized)
+			error("Weights have not been initialized.");
+		return initOut.clone();
+	}
+	
+	/**@return A copy of the state of the stream held by this unit.*/
+	public double[] snapshot() {
+		if(stream == null)
+			reset();
+		return stream.clone();
+	}
+	
+	/**
+	 * Replaces the state of the stream held by this unit.
+	 * 
+	 * @param state State returned by {@linkplain #snapshot()}.
+	 */
+	public void restore(double[] state) {
+		if(state.length != size)
+			error("Invalid state size.");
+		if(stream == null)
+			stream = new double[size];
+		System.arraycopy(state, 0, stream, 0, size);
+	}
+	
+	/**Restarts the stream held by this unit from the initial output.*/
+	public void reset() {stream = newState();}
+	
+	/**
+	 * Computes one time step for a range of elements.
+	 * 
+	 * @param xt Input vector.
+	 * @param pO Previous output vector.
+	 * @param o Buffer for the output vector. May be the same array as the previous output.
+	 * @param gz Buffer for the output of gate Z, or null.
+	 * @param gr Buffer for the output of gate R, or null.
+	 * @param gh Buffer for the output of gate H, or null.
+	 * @param to Offset of the time step in the gate buffers, or a negative
+	 * 			 value if the gate outputs should not be stored.
+	 * @param lo First element.
+	 * @param hi Last element, exclusive.
+	 */
+	private void cell(double[] xt, double[] pO, double[] o, double[] gz, double[] gr, double[] gh, int to, int lo, int hi) {
+		final double[] w = weights;
+		for(int i = lo, p = lo * nParams; i < hi; i++, p += nParams) { //For each element:
+			final double x = xt[i],
+						 h = pO[i],
+						 z = sigmoid(w[p + zW] * x + w[p + zU] * h + w[p + zB]),
+						 r = sigmoid(w[p + rW] * x + w[p + rU] * h + w[p + rB]),
+						 b = Math.tanh(w[p + hW] * x + r * w[p + hU] * h + w[p + hB]);
+			if(to >= 0) {
+				gz[to + i] = z;
+				gr[to + i] = r;
+				gh[to + i] = b;
+			}
+			o[i] = (1.0 - z) * h + z * b;
 		}
-		return out;
 	}
 	
 	/**
-	 * Performs the backpropagation operation.
+	 * Creates the weights and the initial output.
+	 * 
+	 * @param T Number of time steps.
+	 * @param n Size of input vectors.
+	 */
+	private void initialize(int T, int n) {
+		maxT = T;
+		size = n;
+		final double v = Math.sqrt(2.0 / (double) (T * n));
+		final ThreadLocalRandom r = ThreadLocalRandom.current();
+		weights = gaussian(v,nParams * n,r);
+		initOut = gaussian(v,n,r);
+		initialized = true;
+	}
+	
+	/**
+	 * Performs the backpropagation operation. The returned vectors
+	 * are overwritten by the next call with the same sequence length.
 	 * 
 	 * @param loss Gradient with respect to the output indexed by time.
 	 * @param learningRate Learning rate.
 	 * @return Gradient with respect to the input indexed by time.
 	 */
 	public double[][] backward(double[][] loss, double learningRate) {
+		if(loss.length != maxT)
+			error("Invalid gradient length.");
+		return backPropagate(loss, learningRate);
+	}
+	
+	/**
+	 * Backpropagates through the time steps of the last feed-forward
+	 * operation. The initial output is only updated if the operation
+	 * started from it.
+	 * 
+	 * @param loss Gradient with respect to the output indexed by time.
+	 * 			   Only the first {@linkplain #maxT} vectors are read.
+	 * @param learningRate Learning rate.
+	 * @return Gradient with respect to the input indexed by time.
+	 */
+	private double[][] backPropagate(double[][] loss, double learningRate) {
 		if(!forwardExecuted)
 			error("Feed-forward function has not been called for the current cycle.");
-		double[]   lo = new double[size];
-		double[][] lx = new double[maxT][];
-		double[] dOdbz = new double[size],
-				 dOdbh = new double[size],
-				 dOdbr = new double[size],
-				 dOdWz = new double[size],
-				 dOdWh = new double[size],
-				 dOdWr = new double[size],
-				 dOdUz = new double[size],
-				 dOdUh = new double[size],
-				 dOdUr = new double[size];
-		for(int t = maxT - 1; t >= 0; t--) {
-			double[][] cache = timeCache[t];
-			final double[] l = loss[t],
-						  xt = cache[0],
-						  pO = cache[1],
-						  az = cache[2],
-						  ar = cache[3],
-						  b  = cache[4];
-			cache = timeCache[t] = null;
-			double[] dOdX = new double[size];
-			
-			//Gate Z:
-			double[][] Wn = weights[idxZ];
-			double[] dOdb =
-				Tensor.product(
-					Tensor.product(
-						dOdA(Wn[idxB], pO),
-						l
-					),
-					dAdb(az)
-				);
-			Tensor.sum(
-				dOdbz,
-				dOdb
-			);
-			
-			dOdXpO(dOdX, lo, dOdb, Wn[idxW], Wn[idxU]);
-			
-			dOdUW(dOdUz, dOdWz, xt, pO, dOdb);
-			
-			//Gate H
-			Wn = weights[idxH];
-			dOdb =
-				Tensor.product(
-					Tensor.dupe(l),
-					Tensor.product(
-						oneMinus(
-							Tensor.product(
-								Tensor.dupe(b),
-								b
-							)
-						),
-						az
-					)
-				);
-			Tensor.sum(
-				dOdbh,
-				dOdb
-			);
-			
-			dOdXpO(dOdX, lo, dOdb, Wn[idxW], Tensor.product(Tensor.dupe(Wn[idxU]),ar));
-			double[] Ut = Tensor.dupe(Wn[idxU]);
-			dOdUW(dOdUh, dOdWh, xt, Tensor.product(Tensor.dupe(pO),ar), dOdb);
-			
-			//Gate R
-			Wn = weights[idxR];
-			Tensor.product(
-				dOdb,
-				Tensor.product(
-					Ut,
-					Tensor.product(
-						pO,
-						Tensor.product(
-							dOdA(Wn[idxB],pO),
-							dAdb(ar)
-						)
-					)
-				)
-			);
-			Ut = null;
-			Tensor.sum(
-				dOdbr,
-				dOdb
-			);
-			
-			dOdXpO(dOdX, lo, dOdb, Wn[idxW], Wn[idxU]);
-			Wn = null;
-			
-			lx[t] = dOdX;
-			dOdX = null;
-			
-			dOdUW(dOdUr, dOdWr, xt, pO, dOdb);
-		}
-		
-		double[][][] dw = new double[][][] {new double[][] {dOdWz,dOdUz,dOdbz},
-											new double[][] {dOdWh,dOdUh,dOdbh},
-											new double[][] {dOdWr,dOdUr,dOdbr}};
-		dOdbz = dOdbh = dOdbr =
-		dOdWz = dOdWh = dOdWr =
-		dOdUz = dOdUh = dOdUr = null;
-		
-		for(int g = 0; g < nGates; g++) {
-			final double[][] gate = weights[g],
-							 grad = dw[g];
-			for(int w = 0; w < nWeights; w++)
-				update(gate[w],grad[w],learningRate);
-		}
-		dw = null;
-		
-		update(initOut,lo,learningRate);
-		return lx;
+		forwardExecuted = false;
+		final double[] w = weights,
+					  dp = carry;
+		Arrays.fill(weightGrad, 0.0);
+		Arrays.fill(dp, 0.0);
+		for(int t = maxT - 1; t >= 0; t--) //For each time step, starting from last:
+			backCell(loss[t], in[first + t], out[t], inGrad[t], gateZ, gateR, gateH, t * size, dp, 0, 0, size);
+		update(w,weightGrad,learningRate);
+		if(!truncated)
+			update(initOut,dp,learningRate);
+		return inGrad;
 	}
 	
 	/**
-	 * Creates a new vector with a gaussian distribution.
+	 * Backpropagates through one time step for a range of elements,
+	 * accumulating the gradient with respect to the weights.
 	 * 
-	 * @param v Standard deviation.
-	 * @param size Size of vector.
-	 * @param r Random object.
-	 * @return A vector with elements of a gaussian distribution.
+	 * @param l Gradient with respect to the output vector.
+	 * @param xt Input vector.
+	 * @param pO Previous output vector.
+	 * @param dx Buffer for the gradient with respect to the input vector.
+	 * @param gz Output of gate Z.
+	 * @param gr Output of gate R.
+	 * @param gh Output of gate H.
+	 * @param to Offset of the time step in the gate buffers.
+	 * @param dp Gradient with respect to the output carried from the next
+	 * 			 time step, which is replaced by the gradient with respect
+	 * 			 to the previous output.
+	 * @param po Offset of the carried gradient.
+	 * @param lo First element.
+	 * @param hi Last element, exclusive.
 	 */
-	private static double[] gaussian(double v, int size, ThreadLocalRandom r) {
-		final double[] out = new double[size];
-		for(int i = 0; i < size; i++)
-			out[i] = r.nextGaussian() * v;
-		return out;
+	private void backCell(double[] l, double[] xt, double[] pO, double[] dx, double[] gz, double[] gr, double[] gh, int to,
+						  double[] dp, int po, int lo, int hi) {
+		final double[] w = weights,
+					  dw = weightGrad;
+		for(int i = lo, p = lo * nParams; i < hi; i++, p += nParams) { //For each element:
+			final double g = l[i] + dp[po + i], //Gradient with respect to the output.
+						 x = xt[i],
+						 h = pO[i],
+						 z = gz[to + i],
+						 r = gr[to + i],
+						 b = gh[to + i],
+						 uh = w[p + hU],
+						 dz = g * (b - h) * z * (z - 1.0), //Gradient with respect to the weighted input of each gate.
+						 dh = g * z * (1.0 - b * b),
+						 dr = dh * uh * h * r * (r - 1.0);
+			dp[po + i] = g * (1.0 - z) + dz * w[p + zU] + dh * r * uh + dr * w[p + rU];
+			dx[i] = dz * w[p + zW] + dh * w[p + hW] + dr * w[p + rW];
+			dw[p + zW] += dz * x;
+			dw[p + zU] += dz * h;
+			dw[p + zB] += dz;
+			dw[p + hW] += dh * x;
+			dw[p + hU] += dh * r * h;
+			dw[p + hB] += dh;
+			dw[p + rW] += dr * x;
+			dw[p + rU] += dr * h;
+			dw[p + rB] += dr;
+		}
 	}
 	
 	/**
-	 * Returns the sigmoid output of the weighted input.
+	 * Performs the feed-forward operation for a batch of sequences with
+	 * different lengths. Each time step is computed across every sequence
+	 * which has not finished, and finished sequences are masked out, so
+	 * they keep their last output and receive no gradient. Every sequence
+	 * starts from the initial output. Batches with similar lengths waste
+	 * the least work, see {@linkplain #buckets(double[][][], int)}.
 	 * 
-	 * @param W Input weight vector.
-	 * @param xt Input vector.
-	 * @param U Previous output weight vector.
-	 * @param pO Previous output.
-	 * @param b Bias vector.
-	 * @return Output of the sigmoid function.
+	 * @param in Input sequences, indexed by sequence, then by time.
+	 * @param out Buffers for the output sequences, indexed by sequence, then
+	 * 			  by time. They must not be modified before the matching call
+	 * 			  to {@linkplain #backward(double[][][], double[][][], double)}.
 	 */
-	private static double[] getAlpha(double[] W, double[] xt, double[] U, double[] pO, double[] b) {
-		return
-			sigmoid(
-				Tensor.sum(
-					Tensor.product(
-						Tensor.dupe(W),
-						xt
-					),
-					Tensor.sum(
-						Tensor.product(
-							Tensor.dupe(U),
-							pO
-						),
-						b
-					)
-				)
-			);
+	public void forward(double[][][] in, double[][][] out) {
+		final int B = in.length;
+		if(B == 0 || out.length != B)
+			error("Invalid batch size.");
+		int T = 0;
+		for(double[][] seq : in) {
+			if(seq.length == 0)
+				error("Empty input sequence.");
+			T = Math.max(T, seq.length);
+		}
+		if(!initialized)
+			initialize(T, in[0][0].length);
+		for(int b = 0; b < B; b++) { //For each sequence:
+			if(out[b].length < in[b].length)
+				error("Output buffer is shorter than its sequence.");
+			for(int t = 0; t < in[b].length; t++)
+				if(in[b][t].length != size || out[b][t].length != size)
+					error("Invalid input size.");
+		}
+		batchWorkspace(in, T);
+		batchIn = in;
+		batchOut = out;
+		run(new BatchTask(0, size, true, 0.0));
+		batchExecuted = true;
 	}
 	
 	/**
-	 * Returns the hyperbolic tangent of the weighted input vector and R gate.
+	 * Performs the backpropagation operation for the last batch. The
+	 * weights are updated once using their gradient summed across the batch.
 	 * 
-	 * @param W Input weight vector.
-	 * @param xt Input vector.
-	 * @param U Previous output weight vector.
-	 * @param pO Previous output vector.
-	 * @param ar Alpha-R gate output vector.
-	 * @param b Bias vector.
-	 * @return The output of the hyperbolic tangent function.
+	 * @param loss Gradient with respect to the outputs, indexed by sequence, then by time.
+	 * @param inGrad Buffers for the gradient with respect to the inputs, indexed
+	 * 				 by sequence, then by time.
+	 * @param learningRate Learning rate.
 	 */
-	private static double[] getBeta(double[] W, double[] xt, double[] U, double[] pO, double[] ar, double[] b) {
-		return 
-			tanH(
-				Tensor.sum(
-					Tensor.product(
-						Tensor.dupe(W),
-						xt
-					),
-					Tensor.sum(
-						Tensor.product(
-							Tensor.product(
-								Tensor.dupe(ar),
-								U
-							),
-							pO
-						),
-						b
-					)
-				)
-			);
+	public void backward(double[][][] loss, double[][][] inGrad, double learningRate) {
+		if(!batchExecuted)
+			error("Batched feed-forward function has not been called for the current cycle.");
+		final int B = batchIn.length;
+		if(loss.length != B || inGrad.length != B)
+			error("Invalid batch size.");
+		for(int b = 0; b < B; b++) //For each sequence:
+			if(loss[b].length < batchIn[b].length || inGrad[b].length < batchIn[b].length)
+				error("Gradient is shorter than its sequence.");
+		batchExecuted = false;
+		if(weightGrad == null) {
+			weightGrad = new double[weights.length];
+			carry = new double[size];
+		}
+		run(new BatchTask(0, size, false, learningRate, loss, inGrad));
 	}
 	
 	/**
-	 * Calculates the output of the GRU cell at the current time.
+	 * Groups sequences with similar lengths into batches.
 	 * 
-	 * @param az Alpha-Z gate output vector.
-	 * @param pO Previous output vector.
-	 * @param B Beta gate output vector.
-	 * @return The output of the GRU at the current time.
+	 * @param in Input sequences, indexed by sequence, then by time.
+	 * @param batchSize Maximum number of sequences in each batch.
+	 * @return Indices of the sequences in each batch. Batches are ordered by
+	 * 		   decreasing length.
 	 */
-	private static double[] getOut(double[] az, double[] pO, double[] B) {
-		return
-			Tensor.sum(
-				Tensor.product(
-					oneMinus(az),
-					pO
-				),
-				Tensor.product(
-					Tensor.dupe(az),
-					B
-				)
-			);
+	public static int[][] buckets(double[][][] in, int batchSize) {
+		if(batchSize <= 0)
+			error("Invalid batch size.");
+		final int[] idx = sort(in, new int[in.length]);
+		final int[][] out = new int[(in.length + batchSize - 1) / batchSize][];
+		for(int k = 0; k < out.length; k++) //For each batch:
+			out[k] = Arrays.copyOfRange(idx, k * batchSize, Math.min((k + 1) * batchSize, idx.length));
+		return out;
 	}
 	
 	/**
-	 * Calculates the gradient of an Alpha gate with respect to
-	 * the bias vector.
-	 * <br>
-	 * Since the gradient of the weighted input vector with respect
-	 * to the bias vector is always <code>1.0</code>, this value
-	 * is exactly the same as the gradient of the Alpha gate with
-	 * respect to the weighted input vector and therefore may be
-	 * used interchangeably.
+	 * Sorts the indices of sequences by decreasing length. Sequences with
+	 * the same length keep their order.
 	 * 
-	 * @param a Output of Alpha gate.
-	 * @return The gradient of the Alpha gate with respect to the
-	 * 		   bias vector.
+	 * @param in Input sequences.
+	 * @param idx Buffer for the indices.
+	 * @return The sorted indices.
 	 */
-	private static double[] dAdb(double[] a) {
-		return // dA/dI = A(I)*(A(I)-1)
-			Tensor.product(
-				minusOne(a),
-				a
-			);
+	private static int[] sort(double[][][] in, int[] idx) {
+		for(int b = 0; b < in.length; b++) { //For each sequence:
+			int j = b;
+			for(; j > 0 && in[idx[j - 1]].length < in[b].length; j--)
+				idx[j] = idx[j - 1];
+			idx[j] = b;
+		}
+		return idx;
 	}
 	
 	/**
-	 * Calculates the gradient of the output with respect to
-	 * the Alpha gate output.
+	 * Allocates the buffers for a batch, reusing the current buffers if they fit.
 	 * 
-	 * @param b Bias vector.
-	 * @param pO Previous output vector.
-	 * @return Gradient of the output with respect to the Alpha
-	 * 		   gate output.
+	 * @param in Input sequences.
+	 * @param T Number of time steps of the longest sequence.
 	 */
-	private static double[] dOdA(double[] b, double[] pO) {
-		return // dO/dA = b - pO
-			Tensor.sum(
-				Tensor.scale(Tensor.dupe(pO), -1.0),
-				b
-			);
+	private void batchWorkspace(double[][][] in, int T) {
+		final int B = in.length,
+				  n = T * B * size;
+		if(order == null || order.length != B) {
+			order = new int[B];
+			batchCarry = new double[B * size];
+		}
+		if(active == null || active.length < T)
+			active = new int[T];
+		if(batchZ == null || batchZ.length < n) {
+			batchZ = new double[n];
+			batchR = new double[n];
+			batchH = new double[n];
+		}
+		sort(in, order);
+		batchWork = 0L;
+		for(int t = 0, a = B; t < T; t++) { //For each time step:
+			while(a > 0 && in[order[a - 1]].length <= t)
+				a--;
+			active[t] = a;
+			batchWork += a;
+		}
+		batchSteps = T;
 	}
 	
 	/**
-	 * Calculates the gradient of the output with respect to the
-	 * input and previous output vectors in-place.
+	 * Runs a batch task on the common {@linkplain ForkJoinPool} if it is large
+	 * enough to be split, otherwise runs it on the calling thread.
 	 * 
-	 * @param dOdX Gradient of the output vector with respect to
-	 * 			   the input vector.
-	 * @param dOdpO Gradient of the output vector with respect to
-	 * 				the previous output vector.
-	 * @param dOdb Gradient of the output vector with respect to
-	 * 			   the bias vector.
-	 * @param W Input weight vector.
-	 * @param U Previous output weight vector.
+	 * @param task Task to run.
 	 */
-	private static void dOdXpO(double[] dOdX, double[] dOdpO, double[] dOdb, double[] W, double[] U) {
-		Tensor.sum(
-			dOdX,
-			Tensor.product(
-				Tensor.dupe(W),
-				dOdb
-			)
-		);
-		
-		Tensor.sum(
-			dOdpO,
-			Tensor.product(
-				Tensor.dupe(U),
-				dOdb
-			)
-		);
+	private void run(BatchTask task) {
+		if((long) (task.hi - task.lo) * batchWork > GRAIN)
+			ForkJoinPool.commonPool().invoke(task);
+		else
+			task.compute();
 	}
 	
 	/**
-	 * Calculates the gradient of the output with respect to the
-	 * input and previous output weight vectors in-place.
+	 * A task which runs the last batch forward or backward through time for
+	 * a range of elements, splitting the range in half until it is small
+	 * enough to run on one thread.
 	 * 
-	 * @param dU Gradient of the output with respect to the
-	 * 			 previous output weight vector.
-	 * @param dW Gradient of the output with respect to the
-	 * 			 input weight vector.
-	 * @param xt Input vector.
-	 * @param pO Previous output vector.
-	 * @param dOdb Gradient of the output with respect to the
-	 * 			   bias vector.
+	 * @author prgmTrouble
 	 */
-	private static void dOdUW(double[] dU, double[] dW, double[] xt, double[] pO, double[] dOdb) {
-		Tensor.sum(
-			dW,
-			Tensor.product(
-				Tensor.dupe(dOdb),
-				xt
-			)
-		);
+	private final class BatchTask extends RecursiveAction {
+		/***/
+		private static final long serialVersionUID = 1L;
+		
+		/**First element.*/
+		private final int lo;
+		/**Last element, exclusive.*/
+		private final int hi;
+		/**True if running forward, false if running backward.*/
+		private final boolean fwd;
+		/**Learning rate.*/
+		private final double lr;
+		/**Gradient with respect to the outputs, or null when running forward.*/
+		private final double[][][] loss;
+		/**Buffers for the gradient with respect to the inputs, or null when running forward.*/
+		private final double[][][] inGrad;
+		
+		public BatchTask(int lo, int hi, boolean fwd, double lr) {this(lo, hi, fwd, lr, null, null);}
+		
+		public BatchTask(int lo, int hi, boolean fwd, double lr, double[][][] loss, double[][][] inGrad) {
+			this.lo = lo;
+			this.hi = hi;
+			this.fwd = fwd;
+			this.lr = lr;
+			this.loss = loss;
+			this.inGrad = inGrad;
+		}
+		
+		@Override
+		protected void compute() {
+			if(hi - lo > 1 && (long) (hi - lo) * batchWork > GRAIN) { //If the range should be split:
+				final int mid = (lo + hi) >>> 1;
+				invokeAll(new BatchTask(lo, mid, fwd, lr, loss, inGrad), new BatchTask(mid, hi, fwd, lr, loss, inGrad));
+			} else if(fwd)
+				forward();
+			else
+				backward();
+		}
 		
-		Tensor.sum(
-			dU,
-			Tensor.product(
-				Tensor.dupe(dOdb),
-				pO
-			)
-		);
+		/**Runs every time step of the batch for the range of elements.*/
+		private void forward() {
+			final int B = order.length;
+			for(int t = 0; t < batchSteps; t++) //For each time step:
+				for(int b = 0; b < active[t]; b++) { //For each sequence which has not finished:
+					final int s = order[b];
+					cell(batchIn[s][t], (t == 0)? initOut:batchOut[s][t - 1], batchOut[s][t], batchZ, batchR, batchH, (t * B + b) * size, lo, hi);
+				}
+		}
+		
+		/**Backpropagates through every time step of the batch for the range of elements, then updates their weights.*/
+		private void backward() {
+			final int B = order.length;
+			final double[] w = weights,
+						  dw = weightGrad,
+						  dp = batchCarry;
+			Arrays.fill(dw, lo * nParams, hi * nParams, 0.0);
+			for(int b = 0; b < B; b++) //For each sequence:
+				Arrays.fill(dp, b * size + lo, b * size + hi, 0.0);
+			for(int t = batchSteps - 1; t >= 0; t--) //For each time step, starting from last:
+				for(int b = 0; b < active[t]; b++) { //For each sequence which has not finished:
+					final int s = order[b];
+					backCell(loss[s][t], batchIn[s][t], (t == 0)? initOut:batchOut[s][t - 1], inGrad[s][t],
+							 batchZ, batchR, batchH, (t * B + b) * size, dp, b * size, lo, hi);
+				}
+			for(int p = lo * nParams; p < hi * nParams; p++) //For each weight in the range:
+				w[p] -= dw[p] * lr;
+			for(int i = lo; i < hi; i++) { //For each element:
+				double g = 0.0;
+				for(int b = 0; b < B; b++) //For each sequence:
+					g += dp[b * size + i];
+				initOut[i] -= g * lr;
+			}
+		}
 	}
 	
 	/**
-	 * @param in Input vector.
-	 * @return <code>1.0 - in</code>
+	 * Allocates the buffers for a sequence, reusing the current
+	 * buffers if they fit.
+	 * 
+	 * @param T Number of time steps.
+	 * @param exact True if the buffers must hold exactly <code>T</code>
+	 * 				time steps, since they are returned to the caller.
 	 */
-	private static double[] oneMinus(double[] in) {
-		final double[] out = Tensor.dupe(in);
-		for(int o = 0; o < out.length; o++)
-			out[o] = 1.0 - out[o];
-		return out;
+	private void workspace(int T, boolean exact) {
+		if(out == null || (exact? out.length != T + 1:out.length < T + 1)) {
+			gateZ = new double[T * size];
+			gateR = new double[T * size];
+			gateH = new double[T * size];
+			out = new double[T + 1][];
+			inGrad = new double[T][size];
+			for(int t = 1; t <= T; t++)
+				out[t] = new double[size];
+		}
+		if(weightGrad == null) {
+			weightGrad = new double[weights.length];
+			carry = new double[size];
+		}
+		maxT = T;
 	}
 	
 	/**
-	 * @param in Input vector.
-	 * @return <code>in - 1.0</code>
+	 * Creates a new vector with a gaussian distribution.
+	 * 
+	 * @param v Standard deviation.
+	 * @param size Size of vector.
+	 * @param r Random object.
+	 * @return A vector with elements of a gaussian distribution.
 	 */
-	private static double[] minusOne(double[] in) {
-		final double[] out = Tensor.dupe(in);
-		for(int o = 0; o < out.length; out[o++]--);
+	private static double[] gaussian(double v, int size, ThreadLocalRandom r) {
+		final double[] out = new double[size];
+		for(int i = 0; i < size; i++)
+			out[i] = r.nextGaussian() * v;
 		return out;
 	}
 	
@@ -458,34 +690,31 @@ public class GRU implements Serializable {
 	 * @param learningRate Learning rate.
 	 */
 	private static void update(double[] in, double[] loss, double learningRate) {
-		Tensor.sum(
-			in,
-			Tensor.scale(Tensor.dupe(loss), -learningRate)
-		);
+		for(int i = 0; i < in.length; i++)
+			in[i] -= loss[i] * learningRate;
 	}
 	
 	/**
-	 * @param x Input vector.
+	 * @param x Input value.
 	 * @return The output of the sigmoid function with input <code>x</code>.
 	 */
-	private static double[] sigmoid(double[] x) {
-		final int il = x.length;
-		final double[] out = new double[il];
-		for(int i = 0; i < il; i++)
-			out[i] = 1.0 / (1.0 + Math.exp(x[i]));
-		return out;
-	}
+	private static double sigmoid(double x) {return 1.0 / (1.0 + Math.exp(x));}
 	
 	/**
-	 * @param x Input vector.
-	 * @return The output of the hyperbolic tangent function with input <code>x</code>.
+	 * Supplies the gradient of an objective with respect to the outputs
+	 * of a sequence during {@linkplain GRU#train(double[][], int, Target, double)}.
+	 * 
+	 * @author prgmTrouble
 	 */
-	private static double[] tanH(double[] x) {
-		final int il = x.length;
-		final double[] out = new double[il];
-		for(int i = 0; i < il; i++)
-			out[i] = Math.tanh(x[i]);
-		return out;
+	public static interface Target {
+		/**
+		 * Computes the gradient with respect to one output.
+		 * 
+		 * @param t Time step of the output within the whole sequence.
+		 * @param out Output vector.
+		 * @param loss Buffer for the gradient with respect to the output.
+		 */
+		public void gradient(int t, double[] out, double[] loss);
 	}
 	
 	/**
@@ -506,7 +735,7 @@ public class GRU implements Serializable {
 	 * 
 	 * @param s Description of error.
 	 */
-	private void error(String s) {
+	private static void error(String s) {
 		try {
 			throw new GRUException(s);
 		} catch (GRUException e) {
@@ -515,40 +744,3 @@ public class GRU implements Serializable {
 		}
 	}
 }
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
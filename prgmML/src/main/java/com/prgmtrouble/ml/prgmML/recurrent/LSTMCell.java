@@ -45,6 +45,8 @@ public class LSTMCell implements Serializable {
 	private double[][] inCache;
 	private double[][] state;
 	private int maxT = 0;
+	/**State of the stream advanced by {@linkplain #step(double[], double[])}.*/
+	private transient State stream;
 	
 	public LSTMCell(FunctionTypes activationType,
 					FunctionTypes     inGateType,
@@ -75,31 +77,12 @@ public class LSTMCell implements Serializable {
 	public double[][] forward(double[][] in) {
 		inCache = in;
 		maxT = in.length;
-		if(!initialized) {
-			initialized = true;
-			final double v = Math.sqrt(2.0 / (double) maxT);
-			final ThreadLocalRandom r = ThreadLocalRandom.current();
-			for(int i = 0; i < nGateParams; i++) {
-				final double[][] a = new double[nGates][];
-				for(int j = 0; j < nGates; j++) {
-					final double[] b = new double[maxT];
-					for(int k = 0; k < maxT; k++)
-						b[k] = r.nextGaussian() * v;
-					a[j] = b;
-				}
-				params[i] = a;
-			}
-		}
-		
 		final int vLength = in[0].length;
+		if(!initialized)
+			initialize(vLength);
+		
 		state = new double[maxT + 1][];
-		{
-			final ThreadLocalRandom r = ThreadLocalRandom.current();
-			final double[] s = new double[vLength];
-			for(int v = 0; v < vLength; v++)
-				s[v] = r.nextGaussian();
-			state[0] = s;
-		}
+		state[0] = new double[vLength];
 		final double[][] out = new double[maxT][],
 						 W = params[paramW],
 						 U = params[paramU],
@@ -110,13 +93,13 @@ public class LSTMCell implements Serializable {
 			final double[] Ot = (t > 0)? out[t - 1]:new double[vLength];
 			setParameter(activationParams, in[t], W[GateActivation], Ot, U[GateActivation], B[GateActivation]);
 			setParameter(    inGateParams, in[t], W[GateIn],         Ot, U[GateIn],         B[GateIn]);
-			final double[] a = Tensor.product(cache[0] = (double[]) activation.forward(activationParams).getValues()[0], cache[1] = (double[]) gateIn.forward(inGateParams).getValues()[0]);
+			final double[] a = Tensor.product(Tensor.dupe(cache[0] = (double[]) activation.forward(activationParams).getValues()[0]), cache[1] = (double[]) gateIn.forward(inGateParams).getValues()[0]);
 			setParameter(forgetGateParams, in[t], W[GateForget],     Ot, U[GateForget], 	B[GateForget]);
-			final double[] b = Tensor.product((double[]) gateForget.forward(forgetGateParams).getValues()[0], state[t]);
-			state[t + 1] = Tensor.sum(Tensor.dupe(a), b);
-			stateGateParams.setValue(state[t], 0);
-			setParameter(   outGateParams, in[t], W[GateOut], 		 Ot, U[GateOut], 	    B[GateForget]);
-			out[t] = Tensor.product(cache[2] = (double[]) gateState.forward(stateGateParams).getValues()[0], cache[3] = (double[]) gateOut.forward(outGateParams).getValues()[0]);
+			final double[] b = Tensor.product(Tensor.dupe((double[]) gateForget.forward(forgetGateParams).getValues()[0]), state[t]);
+			state[t + 1] = Tensor.sum(a, b);
+			stateGateParams.setValue(state[t + 1], 0);
+			setParameter(   outGateParams, in[t], W[GateOut], 		 Ot, U[GateOut], 	    B[GateOut]);
+			out[t] = Tensor.product(Tensor.dupe(cache[2] = (double[]) gateState.forward(stateGateParams).getValues()[0]), cache[3] = (double[]) gateOut.forward(outGateParams).getValues()[0]);
 			cache[4] = Ot;
 			timeCache[t] = cache;
 		}
@@ -150,6 +133,187 @@ public class LSTMCell implements Serializable {
 		return null;
 	}
 	
+	/**
+	 * Creates the gate parameters.
+	 * 
+	 * @param length Length of each parameter vector.
+	 */
+	private void initialize(int length) {
+		initialized = true;
+		final double v = Math.sqrt(2.0 / (double) length);
+		final ThreadLocalRandom r = ThreadLocalRandom.current();
+		for(int i = 0; i < nGateParams; i++) {
+			final double[][] a = new double[nGates][];
+			for(int j = 0; j < nGates; j++) {
+				final double[] b = new double[length];
+				for(int k = 0; k < length; k++)
+					b[k] = r.nextGaussian() * v;
+				a[j] = b;
+			}
+			params[i] = a;
+		}
+	}
+	
+	/**
+	 * Advances the stream held by this cell by one time step.
+	 * 
+	 * @param x Input vector.
+	 * @param hOut Buffer for the output, or null.
+	 * 
+	 * @see #snapshot()
+	 * @see #restore(double[])
+	 */
+	public void step(double[] x, double[] hOut) {
+		if(!initialized)
+			initialize(x.length);
+		if(stream == null)
+			stream = newState();
+		step(x, stream, hOut);
+	}
+	
+	/**
+	 * Advances a stream by one time step. The cell state is updated as
+	 * <code>c = activation(x, h) * in(x, h) + forget(x, h) * c</code> and the
+	 * output as <code>h = state(c) * out(x, h)</code>. No memory is allocated
+	 * when every gate function is piecewise, in which case streams with
+	 * different states may also be advanced concurrently.
+	 * 
+	 * @param x Input vector.
+	 * @param s State of the stream, which is advanced in-place.
+	 * @param hOut Buffer for the output, or null.
+	 * 
+	 * @see Vector#isBuffered()
+	 */
+	public void step(double[] x, State s, double[] hOut) {
+		if(!initialized)
+			error("Parameters have not been initialized.");
+		final int n = x.length;
+		if(n != params[paramW][0].length || n != s.h.length)
+			error("Invalid input size.");
+		final double[][] W = params[paramW],
+						 U = params[paramU],
+						 B = params[paramB];
+		weigh(x, W[GateActivation], s.h, U[GateActivation], B[GateActivation], s.pre);
+		activation.forward(s.pre, s.a);
+		weigh(x, W[GateIn], s.h, U[GateIn], B[GateIn], s.pre);
+		gateIn.forward(s.pre, s.i);
+		weigh(x, W[GateForget], s.h, U[GateForget], B[GateForget], s.pre);
+		gateForget.forward(s.pre, s.f);
+		weigh(x, W[GateOut], s.h, U[GateOut], B[GateOut], s.pre);
+		gateOut.forward(s.pre, s.o);
+		final double[] c = s.c;
+		for(int k = 0; k < n; k++) //For each element:
+			c[k] = s.a[k] * s.i[k] + s.f[k] * c[k];
+		gateState.forward(c, s.pre);
+		for(int k = 0; k < n; k++) //For each element:
+			s.h[k] = s.pre[k] * s.o[k];
+		if(hOut != null)
+			System.arraycopy(s.h, 0, hOut, 0, n);
+	}
+	
+	/**
+	 * Computes the weighted input of a gate into a buffer.
+	 * 
+	 * @param x Input vector.
+	 * @param W Input weight vector.
+	 * @param h Previous output vector.
+	 * @param U Previous output weight vector.
+	 * @param B Bias vector.
+	 * @param out Buffer for the weighted input.
+	 */
+	private static void weigh(double[] x, double[] W, double[] h, double[] U, double[] B, double[] out) {
+		for(int k = 0; k < x.length; k++)
+			out[k] = x[k] * W[k] + h[k] * U[k] + B[k];
+	}
+	
+	/**@return A new stream state with a zero output and cell state.*/
+	public State newState() {
+		if(!initialized)
+			error("Parameters have not been initialized.");
+		return new State(params[paramW][0].length);
+	}
+	
+	/**@return A copy of the output and cell state of the stream held by this cell, in that order.*/
+	public double[] snapshot() {
+		if(stream == null)
+			stream = newState();
+		return stream.snapshot();
+	}
+	
+	/**
+	 * Replaces the state of the stream held by this cell.
+	 * 
+	 * @param state State returned by {@linkplain #snapshot()}.
+	 */
+	public void restore(double[] state) {
+		if(stream == null)
+			stream = newState();
+		stream.restore(state);
+	}
+	
+	/**Restarts the stream held by this cell from a zero state.*/
+	public void reset() {stream = null;}
+	
+	/**
+	 * The output and cell state of one stream, along with the buffers
+	 * used to advance it.
+	 * 
+	 * @author prgmTrouble
+	 */
+	public static final class State {
+		/**Output vector.*/
+		private final double[] h;
+		/**Cell state vector.*/
+		private final double[] c;
+		/**Weighted input of the current gate.*/
+		private final double[] pre;
+		/**Output of the activation gate.*/
+		private final double[] a;
+		/**Output of the input gate.*/
+		private final double[] i;
+		/**Output of the forget gate.*/
+		private final double[] f;
+		/**Output of the output gate.*/
+		private final double[] o;
+		
+		/**
+		 * Creates a zero state.
+		 * 
+		 * @param n Size of the vectors.
+		 */
+		private State(int n) {
+			h = new double[n];
+			c = new double[n];
+			pre = new double[n];
+			a = new double[n];
+			i = new double[n];
+			f = new double[n];
+			o = new double[n];
+		}
+		
+		/**@return A copy of the output and cell state, in that order.*/
+		public double[] snapshot() {
+			final int n = h.length;
+			final double[] out = new double[2 * n];
+			System.arraycopy(h, 0, out, 0, n);
+			System.arraycopy(c, 0, out, n, n);
+			return out;
+		}
+		
+		/**
+		 * Replaces the output and cell state.
+		 * 
+		 * @param state State returned by {@linkplain #snapshot()}.
+		 */
+		public void restore(double[] state) {
+			final int n = h.length;
+			if(state.length != 2 * n)
+				error("Invalid state size.");
+			System.arraycopy(state, 0, h, 0, n);
+			System.arraycopy(state, n, c, 0, n);
+		}
+	}
+	
 	private static void setParameter(Parameter<ListOfTypes> gateParam, double[] in, double[] W, double[] pOut, double[] U, double[] B) {
 		gateParam.setValue(Tensor.sum(Tensor.sum(Tensor.product(Tensor.dupe(in), W), Tensor.product(Tensor.dupe(pOut), U)), B), 0);
 	}
@@ -202,6 +366,33 @@ public class LSTMCell implements Serializable {
 									   double[] dW, double[] dU, double[] dB) {
 		
 	}
+	
+	/**
+	 * A custom exception which indicates an error in an LSTM cell.
+	 * 
+	 * @author prgmTrouble
+	 */
+	private static class LSTMCellException extends Exception {
+		/***/
+		private static final long serialVersionUID = 1L;
+		private static final String prefix = "LSTM Cell Exception: ";
+		
+		public LSTMCellException(String s) {super(prefix + s);}
+	}
+	
+	/**
+	 * Throws a {@linkplain LSTMCellException} and terminates execution.
+	 * 
+	 * @param s Description of error.
+	 */
+	private static void error(String s) {
+		try {
+			throw new LSTMCellException(s);
+		} catch (LSTMCellException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
 }
 
 
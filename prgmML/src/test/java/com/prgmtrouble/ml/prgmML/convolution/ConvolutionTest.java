@@ -0,0 +1,452 @@
+package com.prgmtrouble.ml.prgmML.convolution;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.commons.lang3.SerializationUtils;
+import org.junit.Test;
+
+import com.prgmtrouble.ml.prgmML.convolution.Convolution.LayerTypes;
+import com.prgmtrouble.ml.prgmML.convolution.Pool.PoolingTypes;
+import com.prgmtrouble.ml.prgmML.generic.ListOfTypes;
+import com.prgmtrouble.ml.prgmML.generic.Parameter;
+import com.prgmtrouble.ml.prgmML.math.FunctionTypes;
+import com.prgmtrouble.ml.prgmML.math.Tensor.Layout;
+
+/**
+ * Unit tests for {@link Convolution}.
+ */
+public class ConvolutionTest
+{
+    /**Number of input channels.*/
+    private static final int C = 2;
+    /**Side length of the input maps.*/
+    private static final int L = 12;
+    /**Number of training steps compared by each test.*/
+    private static final int STEPS = 3;
+    /**Type of a flattened tensor wrapped in a {@link Parameter}.*/
+    private static final ListOfTypes TENSOR = new ListOfTypes( new Class<?>[] {double[].class} );
+
+    /**
+     * @param hwc True to store maps with the channels innermost.
+     * @return A network with 12x12 inputs and 3x3 outputs which does not pad.
+     */
+    private static Convolution network( boolean hwc )
+    {
+        final Convolution net = new Convolution(
+            new int[] {L, 10, 10, 5, 3},
+            new LayerTypes[] {LayerTypes.Activation, LayerTypes.Affine, LayerTypes.Pool, LayerTypes.Activation},
+            new FunctionTypes[] {FunctionTypes.LeakyReLU_DEF, FunctionTypes.TanH},
+            new int[][] {{3, 1, 4}, {3, 1, 3}},
+            new PoolingTypes[] {PoolingTypes.Max},
+            new int[] {2},
+            C, 0.01 );
+        if( hwc )
+            net.setLayout( Layout.HWC );
+        return net;
+    }
+
+    /**
+     * @param hwc True to store maps with the channels innermost.
+     * @return A network with 12x12 inputs and 6x6 outputs whose filters pad
+     *         their inputs.
+     */
+    private static Convolution padded( boolean hwc )
+    {
+        final Convolution net = new Convolution(
+            new int[] {L, L, L, L / 2, L / 2},
+            new LayerTypes[] {LayerTypes.Activation, LayerTypes.Affine, LayerTypes.Pool, LayerTypes.Activation},
+            new FunctionTypes[] {FunctionTypes.LeakyReLU_DEF, FunctionTypes.TanH},
+            new int[][] {{3, 1, 4}, {3, 1, 3}},
+            new PoolingTypes[] {PoolingTypes.Max},
+            new int[] {2},
+            C, 0.01 );
+        if( hwc )
+            net.setLayout( Layout.HWC );
+        return net;
+    }
+
+    /**
+     * @param r Random number generator.
+     * @param length Length of the array.
+     * @return An array of random values.
+     */
+    private static double[] random( Random r, int length )
+    {
+        final double[] x = new double[length];
+        for( int i = 0; i < length; i++ )
+            x[i] = r.nextGaussian();
+        return x;
+    }
+
+    /**
+     * @param net Network.
+     * @return The weights and biases of every filter and the transform of every
+     *         affine layer, in a fixed order.
+     */
+    private static double[] parameters( Convolution net )
+    {
+        double[] p = new double[0];
+        for( ConvolutionLayer layer : net.layers() )
+            if( layer instanceof Activation )
+                for( Filter f : ((Activation) layer).getFilters() )
+                {
+                    final int n = p.length;
+                    p = Arrays.copyOf( p, n + f.get().length + 1 );
+                    System.arraycopy( f.get(), 0, p, n, f.get().length );
+                    p[p.length - 1] = f.bias();
+                }
+            else if( layer instanceof AffineLayer )
+            {
+                final AffineLayer a = (AffineLayer) layer;
+                final int n = p.length, c = a.scale().length;
+                p = Arrays.copyOf( p, n + 2 * c );
+                System.arraycopy( a.scale(), 0, p, n, c );
+                System.arraycopy( a.shift(), 0, p, n + c, c );
+            }
+        return p;
+    }
+
+    /**
+     * @param x Flattened tensor.
+     * @return The tensor wrapped in a new {@link Parameter}.
+     */
+    private static Parameter<ListOfTypes> wrap( double[] x )
+    {
+        return new Parameter<ListOfTypes>( TENSOR, new Object[] {x} );
+    }
+
+    /**
+     * @param p A {@link Parameter} holding a flattened tensor.
+     * @return A copy of the tensor.
+     */
+    private static double[] unwrap( Parameter<ListOfTypes> p )
+    {
+        return ((double[]) p.getValues()[0]).clone();
+    }
+
+    /**
+     * Trains two networks on the same images one at a time and compares their
+     * outputs and input gradients at each step.
+     *
+     * @param a First network.
+     * @param b Second network.
+     * @param seed Seed for the images.
+     */
+    private static void assertSameSingleTraining( Convolution a, Convolution b, long seed )
+    {
+        final Random r = new Random( seed );
+        for( int s = 0; s < STEPS; s++ )
+        {
+            final double[] x = random( r, C * L * L ),
+                           oa = unwrap( a.forward( wrap( x.clone() ) ) ),
+                           ob = unwrap( b.forward( wrap( x.clone() ) ) );
+            assertArrayEquals( oa, ob, 1e-12 );
+            final double[] loss = random( r, oa.length );
+            assertArrayEquals( unwrap( a.backward( wrap( loss.clone() ) ) ), unwrap( b.backward( wrap( loss.clone() ) ) ), 1e-12 );
+        }
+    }
+
+    /**
+     * Trains two networks on the same batches and compares their outputs and
+     * input gradients at each step.
+     *
+     * @param a First network.
+     * @param b Second network.
+     * @param n Number of images per batch.
+     * @param seed Seed for the batches.
+     */
+    private static void assertSameTraining( Convolution a, Convolution b, int n, long seed )
+    {
+        final Random r = new Random( seed );
+        for( int s = 0; s < STEPS; s++ )
+        {
+            final double[] x = random( r, n * C * L * L ),
+                           oa = a.forward( x.clone(), n ).clone(),
+                           ob = b.forward( x.clone(), n ).clone();
+            assertArrayEquals( oa, ob, 1e-12 );
+            final double[] loss = random( r, oa.length );
+            assertArrayEquals( a.backward( loss.clone(), n ).clone(), b.backward( loss.clone(), n ), 1e-12 );
+        }
+    }
+
+    /**
+     * Runs the network over every window of a larger input separately and
+     * compares the outputs with the scan of the whole input.
+     *
+     * @param net Network.
+     * @param x Input maps of one image.
+     * @param size Side length of the input maps.
+     */
+    private static void assertScanMatchesWindows( Convolution net, double[] x, int size )
+    {
+        final int K = 3, so = 3,
+                  S = net.scanStride(),
+                  W = (size - L) / S + 1,
+                  M = W + so - 1;
+        final double[] d = net.scan( x, 1, size ).clone();
+        assertEquals( K * M * M, d.length );
+        for( int wy = 0; wy < W; wy++ )
+            for( int wx = 0; wx < W; wx++ )
+            {
+                final double[] p = new double[C * L * L];
+                for( int ch = 0; ch < C; ch++ )
+                    for( int i = 0; i < L; i++ )
+                        System.arraycopy( x, (ch * size + wy * S + i) * size + wx * S, p, (ch * L + i) * L, L );
+                final double[] o = net.forward( p, 1 );
+                for( int k = 0; k < K; k++ )
+                    for( int i = 0; i < so; i++ )
+                        for( int j = 0; j < so; j++ )
+                            assertEquals( o[(k * so + i) * so + j], d[(k * M + wy + i) * M + wx + j], 1e-12 );
+            }
+    }
+
+    /**
+     * Storing only the signs of activation inputs and the offsets of pooled
+     * elements should not change the outputs or the gradients.
+     */
+    @Test
+    public void compactModeMatchesNormalMode()
+    {
+        final Convolution normal = network( false ),
+                          compact = SerializationUtils.clone( normal );
+        compact.setCompact( true );
+        assertSameTraining( normal, compact, 2, 1 );
+    }
+
+    /**
+     * Recomputing released segments during backpropagation should give the
+     * same outputs and gradients as keeping every layer's state.
+     */
+    @Test
+    public void checkpointingMatchesPlainBackward()
+    {
+        for( int interval : new int[] {1, 2, 3} )
+        {
+            final Convolution plain = network( false ),
+                              checkpointed = SerializationUtils.clone( plain );
+            checkpointed.setCheckpointInterval( interval );
+            assertSameSingleTraining( plain, checkpointed, 2 );
+        }
+    }
+
+    /**
+     * A batch should give each image the output and input gradient it gets on
+     * its own, and update the parameters by the sum of the updates each image
+     * makes on its own.
+     */
+    @Test
+    public void batchMatchesSingleImages()
+    {
+        final int n = 3;
+        final Random r = new Random( 3 );
+        final Convolution base = network( false ),
+                          batch = SerializationUtils.clone( base );
+        final double[] x = random( r, n * C * L * L ),
+                       out = batch.forward( x.clone(), n ).clone(),
+                       loss = random( r, out.length ),
+                       grad = batch.backward( loss.clone(), n ).clone(),
+                       p0 = parameters( base ),
+                       expected = p0.clone();
+        final int in = C * L * L,
+                  o = out.length / n;
+        for( int i = 0; i < n; i++ )
+        {
+            final Convolution single = SerializationUtils.clone( base );
+            assertArrayEquals( Arrays.copyOfRange( out, i * o, (i + 1) * o ),
+                               unwrap( single.forward( wrap( Arrays.copyOfRange( x, i * in, (i + 1) * in ) ) ) ), 1e-12 );
+            assertArrayEquals( Arrays.copyOfRange( grad, i * in, (i + 1) * in ),
+                               unwrap( single.backward( wrap( Arrays.copyOfRange( loss, i * o, (i + 1) * o ) ) ) ), 1e-12 );
+            final double[] p = parameters( single );
+            for( int k = 0; k < p.length; k++ )
+                expected[k] += p[k] - p0[k];
+        }
+        assertArrayEquals( expected, parameters( batch ), 1e-12 );
+    }
+
+    /**
+     * Storing maps with the channels innermost should not change the outputs,
+     * gradients, or training of a network.
+     */
+    @Test
+    public void channelsLastMatchesChannelsFirst()
+    {
+        final Convolution chw = network( false ),
+                          hwc = SerializationUtils.clone( chw );
+        hwc.setLayout( Layout.HWC );
+        assertSameTraining( chw, hwc, 2, 4 );
+        assertSameSingleTraining( chw, hwc, 5 );
+    }
+
+    /**
+     * Converting to the channels-last layout should not modify the tensors
+     * the caller passes in, so a parameter can be passed in again.
+     */
+    @Test
+    public void channelsLastKeepsCallerParameters()
+    {
+        final Random r = new Random( 6 );
+        final Convolution net = network( true );
+        final double[] x = random( r, C * L * L );
+        final Parameter<ListOfTypes> in = wrap( x.clone() );
+        final double[] out = unwrap( net.forward( in ) );
+        assertArrayEquals( x, unwrap( in ), 0.0 );
+        final double[] loss = random( r, out.length );
+        final Parameter<ListOfTypes> l = wrap( loss.clone() );
+        net.backward( l );
+        assertArrayEquals( loss, unwrap( l ), 0.0 );
+        assertArrayEquals( unwrap( net.forward( wrap( x.clone() ) ) ), unwrap( net.forward( in ) ), 0.0 );
+    }
+
+    /**
+     * Each window of a scan should match the feed-forward operation over that
+     * window, including after the network has been trained.
+     */
+    @Test
+    public void scanMatchesForward()
+    {
+        final Random r = new Random( 7 );
+        final int size = 20;
+        for( boolean hwc : new boolean[] {false, true} )
+        {
+            final Convolution net = network( hwc );
+            final double[] x = random( r, C * size * size );
+            assertScanMatchesWindows( net, x, size );
+            final double[] o = net.forward( random( r, C * L * L ), 1 );
+            net.backward( random( r, o.length ), 1 );
+            assertScanMatchesWindows( net, x, size );
+        }
+    }
+
+    /**
+     * A scan run between the feed-forward operation and backpropagation should
+     * not change the gradients, since the activation functions of the scan
+     * layers record their own state.
+     */
+    @Test
+    public void scanKeepsTrainingState()
+    {
+        final int n = 2, size = 20;
+        final Random r = new Random( 8 );
+        final Convolution plain = network( false ),
+                          scanned = SerializationUtils.clone( plain );
+        final double[] x = random( r, n * C * L * L ),
+                       big = random( r, C * size * size ),
+                       out = plain.forward( x.clone(), n ).clone();
+        assertArrayEquals( out, scanned.forward( x.clone(), n ), 0.0 );
+        scanned.scan( big, 1, size );
+        final double[] loss = random( r, out.length );
+        assertArrayEquals( plain.backward( loss.clone(), n ).clone(), scanned.backward( loss.clone(), n ), 0.0 );
+        assertArrayEquals( parameters( plain ), parameters( scanned ), 0.0 );
+
+        final double[] single = random( r, C * L * L ),
+                       o = unwrap( plain.forward( wrap( single.clone() ) ) );
+        assertArrayEquals( o, unwrap( scanned.forward( wrap( single.clone() ) ) ), 0.0 );
+        scanned.scan( big, 1, size );
+        final double[] l = random( r, o.length );
+        assertArrayEquals( unwrap( plain.backward( wrap( l.clone() ) ) ), unwrap( scanned.backward( wrap( l.clone() ) ) ), 0.0 );
+    }
+
+    /**
+     * Compares a tiled execution plan with the feed-forward operation for
+     * every tile size, including tiles larger than the output.
+     *
+     * @param net Network.
+     * @param x Input maps of one image.
+     */
+    private static void assertTilerMatchesForward( Convolution net, double[] x )
+    {
+        final double[] ref = net.forward( x, 1 ).clone();
+        for( int tile : new int[] {1, 2, 3, 4, 100} )
+            assertArrayEquals( ref, new ConvolutionTiler( net, L, tile ).run( x ), 1e-12 );
+    }
+
+    /**
+     * A tiled execution plan should match the feed-forward operation in both
+     * memory layouts.
+     */
+    @Test
+    public void tilerMatchesForward()
+    {
+        final Random r = new Random( 9 );
+        for( boolean hwc : new boolean[] {false, true} )
+            assertTilerMatchesForward( network( hwc ), random( r, C * L * L ) );
+    }
+
+    /**
+     * Zeroing the parts of each tile outside the image should reproduce the
+     * padding of every layer, including at the corners of the image.
+     */
+    @Test
+    public void tilerMatchesForwardWithPadding()
+    {
+        final Random r = new Random( 10 );
+        for( boolean hwc : new boolean[] {false, true} )
+            assertTilerMatchesForward( padded( hwc ), random( r, C * L * L ) );
+    }
+
+    /**
+     * Folding the affine layer into the filters before it should not change
+     * the outputs of a batch in either memory layout, including after the
+     * network has been trained.
+     */
+    @Test
+    public void foldMatchesForward()
+    {
+        final int n = 2;
+        final Random r = new Random( 11 );
+        for( boolean hwc : new boolean[] {false, true} )
+        {
+            final Convolution net = network( hwc );
+            for( int s = 0; s < STEPS; s++ )
+            {
+                final double[] x = random( r, n * C * L * L ),
+                               folded = net.fold().forward( x.clone(), n ).clone(),
+                               out = net.forward( x.clone(), n ).clone();
+                assertEquals( net.layers().length - 1, net.fold().layers().length );
+                assertArrayEquals( out, folded, 1e-12 );
+                net.backward( random( r, out.length ), n );
+            }
+        }
+    }
+
+    /**
+     * Reading the features of the frozen layers from the cache should give the
+     * same outputs and training as running every sample through them, for
+     * batches which mix cached and uncached samples, in both memory layouts.
+     */
+    @Test
+    public void featureCacheMatchesForward()
+    {
+        final int n = 4, in = C * L * L;
+        final long[][] ids = {{0, 1, 2, 3}, {2, 4, 0, 5}, {5, 4, 3, 1}};
+        final Random r = new Random( 12 );
+        final double[][] samples = new double[6][];
+        for( int i = 0; i < samples.length; i++ )
+            samples[i] = random( r, in );
+        for( boolean hwc : new boolean[] {false, true} )
+        {
+            final Convolution plain = network( hwc ),
+                              cached = SerializationUtils.clone( plain );
+            final FeatureCache cache = new FeatureCache( 1L << 20 );
+            plain.setFrozen( 2 );
+            cached.setFrozen( 2 );
+            cached.setFeatureCache( cache );
+            for( long[] batch : ids )
+            {
+                final double[] x = new double[n * in];
+                for( int b = 0; b < n; b++ )
+                    System.arraycopy( samples[(int) batch[b]], 0, x, b * in, in );
+                final double[] out = plain.forward( x.clone(), n ).clone();
+                assertArrayEquals( out, cached.forward( x.clone(), n, batch ), 1e-12 );
+                final double[] loss = random( r, out.length );
+                assertArrayEquals( plain.backward( loss.clone(), n ).clone(), cached.backward( loss.clone(), n ), 1e-12 );
+            }
+            assertEquals( samples.length, cache.misses() );
+            assertEquals( ids.length * n - samples.length, cache.hits() );
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.prgmtrouble.ml.prgmML.fcl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.prgmtrouble.ml.prgmML.generic.ListOfTypes;
+import com.prgmtrouble.ml.prgmML.generic.Parameter;
+import com.prgmtrouble.ml.prgmML.math.FunctionTypes;
+
+/**
+ * Unit tests for {@link FCL}.
+ */
+public class FCLTest
+{
+    /**Number of training steps compared by each test.*/
+    private static final int STEPS = 3;
+
+    /**
+     * Creates a network with deterministic weights, so that networks created
+     * with the same arguments are identical.
+     *
+     * @param inputSize Size of input vector.
+     * @param depth Number of layers.
+     * @return A network of leaky rectifiers followed by a cross entropy output.
+     */
+    @SuppressWarnings( {"unchecked", "rawtypes"} )
+    private static FCL network( int inputSize, int depth )
+    {
+        final ListOfTypes d = new ListOfTypes( new Class<?>[] {double[].class} );
+        final FunctionTypes[] f = new FunctionTypes[depth];
+        final Parameter<ListOfTypes>[][] p = new Parameter[depth][];
+        for( int l = 0; l < depth - 1; l++ )
+        {
+            f[l] = FunctionTypes.LeakyReLU_DEF;
+            p[l] = new Parameter[] {new Parameter<ListOfTypes>( d ), new Parameter<ListOfTypes>( d ),
+                                    new Parameter<ListOfTypes>( d ), new Parameter<ListOfTypes>( d )};
+        }
+        f[depth - 1] = FunctionTypes.CrossEntropy;
+        p[depth - 1] = new Parameter[] {
+            new Parameter<ListOfTypes>( new ListOfTypes( new Class<?>[] {double[].class, Integer.class} ) ),
+            new Parameter<ListOfTypes>( new ListOfTypes( new Class<?>[] {null} ) ),
+            new Parameter<ListOfTypes>( new ListOfTypes( new Class<?>[] {double[].class, Double.class} ) ),
+            new Parameter<ListOfTypes>( d )};
+        return new FCL( inputSize, (byte) depth, 3, f, p, true );
+    }
+
+    /**
+     * @param length Length of the array.
+     * @param value Value of each element.
+     * @return An array filled with one value.
+     */
+    private static double[] fill( int length, double value )
+    {
+        final double[] a = new double[length];
+        Arrays.fill( a, value );
+        return a;
+    }
+
+    /**
+     * Runs one training step.
+     *
+     * @param net Network.
+     * @param in Input vector.
+     * @param depth Number of layers.
+     * @return The output followed by the gradient with respect to the input.
+     */
+    private static double[][] step( FCL net, double[] in, int depth )
+    {
+        net.setExpected( 1 );
+        final double[] out = net.forward( in.clone() );
+        return new double[][] {out, net.backward( fill( depth, 1e-4 ), fill( depth, -1.0 ), null )};
+    }
+
+    /**
+     * Storing only the signs of the inputs to piecewise activations should
+     * not change the outputs or the gradients.
+     */
+    @Test
+    public void compactModeMatchesNormalMode()
+    {
+        final int depth = 5;
+        final FCL normal = network( 4, depth ),
+                  compact = network( 4, depth );
+        compact.setCompact( true );
+        final double[] in = {0.3, -0.2, 0.5, 0.1};
+        for( int s = 0; s < STEPS; s++ )
+        {
+            final double[][] a = step( normal, in, depth ),
+                             b = step( compact, in, depth );
+            assertArrayEquals( a[0], b[0], 0.0 );
+            assertArrayEquals( a[1], b[1], 0.0 );
+        }
+    }
+
+    /**
+     * Recomputing released segments during backpropagation should give the
+     * same outputs and gradients as keeping every layer's state, for intervals
+     * which do and do not divide the depth.
+     */
+    @Test
+    public void checkpointingMatchesPlainBackward()
+    {
+        final int depth = 6;
+        final double[] in = {0.3, -0.2, 0.5, 0.1};
+        for( int interval : new int[] {1, 2, 4} )
+        {
+            final FCL plain = network( 4, depth ),
+                      checkpointed = network( 4, depth );
+            checkpointed.setCheckpointInterval( interval );
+            for( int s = 0; s < STEPS; s++ )
+            {
+                final double[][] a = step( plain, in, depth ),
+                                 b = step( checkpointed, in, depth );
+                assertArrayEquals( a[0], b[0], 0.0 );
+                assertArrayEquals( a[1], b[1], 0.0 );
+            }
+        }
+    }
+
+    /**
+     * A sparse input given as index/value pairs should give the same outputs
+     * as the equivalent dense input, and the gradient of each given value,
+     * with and without checkpointing.
+     */
+    @Test
+    public void sparseInputMatchesDenseInput()
+    {
+        final int depth = 4;
+        final double[] in = new double[10];
+        in[2] = 0.5;
+        in[7] = -0.25;
+        final int[] indices = {2, 7};
+        final double[] values = {0.5, -0.25};
+        for( int interval : new int[] {0, 2} )
+        {
+            final FCL dense = network( 10, depth ),
+                      sparse = network( 10, depth );
+            dense.setCheckpointInterval( interval );
+            sparse.setCheckpointInterval( interval );
+            for( int s = 0; s < STEPS; s++ )
+            {
+                final double[][] a = step( dense, in, depth );
+                sparse.setExpected( 1 );
+                assertArrayEquals( a[0], sparse.forward( indices, values.clone() ), 0.0 );
+                final double[] g = sparse.backward( fill( depth, 1e-4 ), fill( depth, -1.0 ), null );
+                assertEquals( indices.length, g.length );
+                for( int k = 0; k < indices.length; k++ )
+                    assertEquals( a[1][indices[k]], g[k], 0.0 );
+            }
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.prgmtrouble.ml.prgmML.fcl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link WeightVector}.
+ */
+public class WeightVectorTest
+{
+    /**
+     * Visiting only the weights attached to non-zero inputs should give the
+     * same outputs, gradients, weight updates, and pruning as the dense path.
+     */
+    @Test
+    public void sparsePathMatchesDensePath()
+    {
+        final double[] in = {0.0, 1.5, 0.0, 0.0, -2.0, 0.0, 0.0, 0.5},
+                       loss = {0.1, -0.3, 0.2};
+        for( double prune : new double[] {-1.0, 0.5} )
+        {
+            final WeightVector dense = new WeightVector( 8, 3, true ),
+                               sparse = new WeightVector( 8, 3, true );
+            dense.setSparseThreshold( 0.0 );
+            for( int s = 0; s < 3; s++ )
+            {
+                assertArrayEquals( dense.forward( in ), sparse.forward( in ), 0.0 );
+                final Object[] a = dense.backward( loss, 0.1, prune ),
+                               b = sparse.backward( loss, 0.1, prune );
+                assertArrayEquals( (double[]) a[0], (double[]) b[0], 0.0 );
+                assertEquals( a[1], b[1] );
+            }
+        }
+    }
+
+    /**
+     * An input given as index/value pairs should give the same outputs as the
+     * equivalent dense input, and the gradient of each given value.
+     */
+    @Test
+    public void indexValueInputMatchesDenseInput()
+    {
+        final double[] in = {0.0, 1.5, 0.0, 0.0, -2.0, 0.0, 0.0, 0.5},
+                       loss = {0.1, -0.3, 0.2};
+        final int[] indices = {1, 4, 7};
+        final double[] values = {1.5, -2.0, 0.5};
+        final WeightVector dense = new WeightVector( 8, 3, true ),
+                           sparse = new WeightVector( 8, 3, true );
+        for( int s = 0; s < 3; s++ )
+        {
+            assertArrayEquals( dense.forward( in ), sparse.forward( indices, values ), 0.0 );
+            final double[] a = (double[]) dense.backward( loss, 0.1, -1.0 )[0],
+                           b = (double[]) sparse.backward( loss, 0.1, -1.0 )[0];
+            for( int k = 0; k < indices.length; k++ )
+                assertEquals( a[indices[k]], b[k], 0.0 );
+        }
+    }
+}
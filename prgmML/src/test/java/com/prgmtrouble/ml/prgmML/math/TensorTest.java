@@ -0,0 +1,98 @@
+package com.prgmtrouble.ml.prgmML.math;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link Tensor}.
+ */
+public class TensorTest
+{
+    /**
+     * @param r Random number generator.
+     * @param length Length of the array.
+     * @return An array of random values.
+     */
+    private static double[] random( Random r, int length )
+    {
+        final double[] x = new double[length];
+        for( int i = 0; i < length; i++ )
+            x[i] = r.nextGaussian();
+        return x;
+    }
+
+    /**
+     * @param in Flattened tensor in the {@link Tensor.Layout#CHW} layout.
+     * @param sq Number of elements in each channel.
+     * @param c Channels.
+     * @return The tensor in the {@link Tensor.Layout#HWC} layout.
+     */
+    private static double[] hwc( double[] in, int sq, int c )
+    {
+        final double[] out = new double[in.length];
+        Tensor.toHWC( in, 0, sq, c, out, 0 );
+        return out;
+    }
+
+    /**
+     * @param in Flattened tensor in the {@link Tensor.Layout#HWC} layout.
+     * @param sq Number of elements in each channel.
+     * @param c Channels.
+     * @return The tensor in the {@link Tensor.Layout#CHW} layout.
+     */
+    private static double[] chw( double[] in, int sq, int c )
+    {
+        final double[] out = new double[in.length];
+        Tensor.toCHW( in, 0, sq, c, out, 0 );
+        return out;
+    }
+
+    /**
+     * The 1x1 matrix multiply and its backpropagation should match the generic
+     * convolution kernels in both layouts. The sizes leave partial blocks of
+     * positions and a partial group of filters.
+     */
+    @Test
+    public void pointwiseMatchesConvolve()
+    {
+        final Random r = new Random( 1 );
+        final int is = 20, sq = is * is, c = 40, k = 37;
+        final double[] in = random( r, c * sq ),
+                       w = random( r, k * c ),
+                       loss = random( r, k * sq );
+
+        final double[] out = new double[k * sq],
+                       di = new double[c * sq],
+                       dw = new double[k * c];
+        for( int f = 0; f < k; f++ )
+        {
+            final double[] filter = Arrays.copyOfRange( w, f * c, (f + 1) * c ),
+                           df = new double[c];
+            Tensor.convolve( in, 0, is, filter, 0, 1, c, 1, 0, out, f * sq );
+            Tensor.backConvolve( loss, f * sq, in, 0, is, filter, 1, c, 1, 0, di, 0, df );
+            System.arraycopy( df, 0, dw, f * c, c );
+        }
+
+        final double[] pOut = new double[k * sq],
+                       pDi = new double[c * sq],
+                       pDw = new double[k * c];
+        Tensor.pointwise( in, 0, sq, c, w, k, pOut, 0, false );
+        Tensor.backPointwise( loss, 0, in, 0, sq, c, w, k, pDi, 0, pDw, false );
+        assertArrayEquals( out, pOut, 1e-10 );
+        assertArrayEquals( di, pDi, 1e-10 );
+        assertArrayEquals( dw, pDw, 1e-10 );
+
+        final double[] hOut = new double[k * sq],
+                       hDi = new double[c * sq],
+                       hDw = new double[k * c];
+        Tensor.pointwise( hwc( in, sq, c ), 0, sq, c, w, k, hOut, 0, true );
+        Tensor.backPointwise( hwc( loss, sq, k ), 0, hwc( in, sq, c ), 0, sq, c, w, k, hDi, 0, hDw, true );
+        assertArrayEquals( out, chw( hOut, sq, k ), 1e-10 );
+        assertArrayEquals( di, chw( hDi, sq, c ), 1e-10 );
+        assertArrayEquals( dw, hDw, 1e-10 );
+    }
+}
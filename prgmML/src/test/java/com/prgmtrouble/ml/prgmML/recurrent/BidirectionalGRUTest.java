@@ -0,0 +1,109 @@
+package com.prgmtrouble.ml.prgmML.recurrent;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.lang.reflect.Field;
+import java.util.Random;
+
+import org.apache.commons.lang3.SerializationUtils;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link BidirectionalGRU}.
+ */
+public class BidirectionalGRUTest
+{
+    /**
+     * Gets a private array of a unit.
+     *
+     * @param g Unit.
+     * @param name Name of the field.
+     * @return The array, which is shared with the unit.
+     */
+    private static double[] field( GRU g, String name ) throws Exception
+    {
+        final Field f = GRU.class.getDeclaredField( name );
+        f.setAccessible( true );
+        return (double[]) f.get( g );
+    }
+
+    /**
+     * @param r Random number generator.
+     * @param t Number of time steps.
+     * @param n Size of each vector.
+     * @return A random sequence.
+     */
+    private static double[][] sequence( Random r, int t, int n )
+    {
+        final double[][] x = new double[t][n];
+        for( double[] v : x )
+            for( int i = 0; i < n; i++ )
+                v[i] = r.nextGaussian();
+        return x;
+    }
+
+    /**
+     * @param x Sequence.
+     * @return The sequence in reverse order.
+     */
+    private static double[][] reverse( double[][] x )
+    {
+        final double[][] r = new double[x.length][];
+        for( int t = 0; t < x.length; t++ )
+            r[x.length - 1 - t] = x[t];
+        return r;
+    }
+
+    /**
+     * The outputs, input gradients, and updates of a bidirectional unit should
+     * match two units run by hand over the sequence and its reverse, both for
+     * short sequences, which run on the calling thread, and long sequences,
+     * which run the two directions in parallel.
+     */
+    @Test
+    public void matchesTwoUnits() throws Exception
+    {
+        final Random r = new Random( 1 );
+        final int n = 16;
+        final double lr = 0.1;
+        for( int T : new int[] {5, 300} )
+        {
+            final BidirectionalGRU bi = new BidirectionalGRU();
+            final double[][] x = sequence( r, T, n ),
+                             loss = sequence( r, T, 2 * n );
+            bi.forward( x );
+            final GRU fwd = SerializationUtils.clone( bi.forwardUnit() ),
+                      rev = SerializationUtils.clone( bi.reverseUnit() );
+
+            final double[][] out = bi.forward( x ),
+                             fo = fwd.forward( x ),
+                             ro = rev.forward( reverse( x ) );
+            final double[][] fl = new double[T][n],
+                             rl = new double[T][n];
+            for( int t = 0; t < T; t++ )
+            {
+                final double[] expected = new double[2 * n];
+                System.arraycopy( fo[t + 1], 0, expected, 0, n );
+                System.arraycopy( ro[T - t], 0, expected, n, n );
+                assertArrayEquals( expected, out[t], 0.0 );
+                System.arraycopy( loss[t], 0, fl[t], 0, n );
+                System.arraycopy( loss[t], n, rl[T - 1 - t], 0, n );
+            }
+
+            final double[][] grad = bi.backward( loss, lr ),
+                             fg = fwd.backward( fl, lr ),
+                             rg = rev.backward( rl, lr );
+            for( int t = 0; t < T; t++ )
+            {
+                final double[] expected = new double[n];
+                for( int i = 0; i < n; i++ )
+                    expected[i] = fg[t][i] + rg[T - 1 - t][i];
+                assertArrayEquals( expected, grad[t], 0.0 );
+            }
+            assertArrayEquals( field( fwd, "weights" ), field( bi.forwardUnit(), "weights" ), 0.0 );
+            assertArrayEquals( field( fwd, "initOut" ), field( bi.forwardUnit(), "initOut" ), 0.0 );
+            assertArrayEquals( field( rev, "weights" ), field( bi.reverseUnit(), "weights" ), 0.0 );
+            assertArrayEquals( field( rev, "initOut" ), field( bi.reverseUnit(), "initOut" ), 0.0 );
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package com.prgmtrouble.ml.prgmML.recurrent;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.lang.reflect.Field;
+import java.util.Random;
+
+import org.apache.commons.lang3.SerializationUtils;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link GRU}.
+ */
+public class GRUTest
+{
+    /**Step used for central differences.*/
+    private static final double EPS = 1e-6;
+
+    /**
+     * Gets a private array of a unit.
+     *
+     * @param g Unit.
+     * @param name Name of the field.
+     * @return The array, which is shared with the unit.
+     */
+    private static double[] field( GRU g, String name ) throws Exception
+    {
+        final Field f = GRU.class.getDeclaredField( name );
+        f.setAccessible( true );
+        return (double[]) f.get( g );
+    }
+
+    /**
+     * @param g Unit.
+     * @param x Input sequence.
+     * @param c Coefficient of each output.
+     * @return The loss <code>sum(c[t][i] * out[t][i])</code>.
+     */
+    private static double loss( GRU g, double[][] x, double[][] c )
+    {
+        final double[][] o = g.forward( x );
+        double s = 0.0;
+        for( int t = 0; t < x.length; t++ )
+            for( int i = 0; i < c[t].length; i++ )
+                s += c[t][i] * o[t + 1][i];
+        return s;
+    }
+
+    /**
+     * @param g Unit.
+     * @param x Input sequence.
+     * @param c Coefficient of each output.
+     * @param v Array holding the value to perturb.
+     * @param i Index of the value.
+     * @return The central difference of the loss with respect to <code>v[i]</code>.
+     */
+    private static double difference( GRU g, double[][] x, double[][] c, double[] v, int i )
+    {
+        final double s = v[i];
+        v[i] = s + EPS;
+        final double p = loss( g, x, c );
+        v[i] = s - EPS;
+        final double m = loss( g, x, c );
+        v[i] = s;
+        return (p - m) / (2.0 * EPS);
+    }
+
+    /**
+     * @param r Random number generator.
+     * @param t Number of time steps.
+     * @param n Size of each vector.
+     * @return A random sequence.
+     */
+    private static double[][] sequence( Random r, int t, int n )
+    {
+        final double[][] x = new double[t][n];
+        for( double[] v : x )
+            for( int i = 0; i < n; i++ )
+                v[i] = r.nextGaussian();
+        return x;
+    }
+
+    /**
+     * The gradients from backpropagation should match central differences
+     * for the weights, the initial output, and the inputs.
+     */
+    @Test
+    public void backwardMatchesFiniteDifferences() throws Exception
+    {
+        final Random r = new Random( 1 );
+        final int T = 5, n = 4;
+        final GRU g = new GRU();
+        final double[][] x = sequence( r, T, n ),
+                         c = sequence( r, T, n );
+        loss( g, x, c );
+        final double[] w = field( g, "weights" ),
+                       init = field( g, "initOut" );
+
+        final double[] dw = new double[w.length],
+                       dInit = new double[n];
+        final double[][] dx = new double[T][n];
+        for( int i = 0; i < w.length; i++ )
+            dw[i] = difference( g, x, c, w, i );
+        for( int i = 0; i < n; i++ )
+            dInit[i] = difference( g, x, c, init, i );
+        for( int t = 0; t < T; t++ )
+            for( int i = 0; i < n; i++ )
+                dx[t][i] = difference( g, x, c, x[t], i );
+
+        final double[] w0 = w.clone(),
+                       init0 = init.clone();
+        loss( g, x, c );
+        final double[][] grad = g.backward( c, 1.0 );
+        for( int t = 0; t < T; t++ )
+            for( int i = 0; i < n; i++ )
+                assertEquals( dx[t][i], grad[t][i], 1e-7 );
+        for( int i = 0; i < w.length; i++ )
+            assertEquals( dw[i], w0[i] - w[i], 1e-7 );
+        for( int i = 0; i < n; i++ )
+            assertEquals( dInit[i], init0[i] - init[i], 1e-7 );
+    }
+
+    /**
+     * Truncated backpropagation with a window at least as long as the
+     * sequence should update the weights and the initial output exactly as
+     * backpropagation through the whole sequence.
+     */
+    @Test
+    public void truncatedMatchesFullBackward() throws Exception
+    {
+        final Random r = new Random( 2 );
+        final int T = 5, n = 4;
+        final double lr = 0.1;
+        final GRU base = new GRU();
+        final double[][] x = sequence( r, T, n ),
+                         c = sequence( r, T, n );
+        base.forward( x );
+
+        final GRU full = SerializationUtils.clone( base );
+        full.forward( x );
+        full.backward( c, lr );
+        for( int k : new int[] {T, T + 3} )
+        {
+            final GRU truncated = SerializationUtils.clone( base );
+            truncated.train( x, k, new GRU.Target()
+            {
+                @Override
+                public void gradient( int t, double[] out, double[] loss )
+                {
+                    System.arraycopy( c[t], 0, loss, 0, n );
+                }
+            }, lr );
+            assertArrayEquals( field( full, "weights" ), field( truncated, "weights" ), 0.0 );
+            assertArrayEquals( field( full, "initOut" ), field( truncated, "initOut" ), 0.0 );
+        }
+    }
+
+    /**
+     * A batch of sequences of different lengths should produce the outputs and
+     * input gradients of each sequence on its own, and update the parameters by
+     * the sum of the updates from each sequence.
+     */
+    @Test
+    public void batchMatchesSingleSequences() throws Exception
+    {
+        final Random r = new Random( 3 );
+        final int B = 6, n = 4;
+        final double[][][] x = new double[B][][],
+                           c = new double[B][][],
+                           out = new double[B][][],
+                           grad = new double[B][][];
+        for( int b = 0; b < B; b++ )
+        {
+            final int T = 1 + r.nextInt( 12 );
+            x[b] = sequence( r, T, n );
+            c[b] = sequence( r, T, n );
+            out[b] = new double[T][n];
+            grad[b] = new double[T][n];
+        }
+        final GRU g = new GRU();
+        g.forward( x[0] );
+        final GRU base = SerializationUtils.clone( g );
+        final double[] w0 = field( base, "weights" ),
+                       init0 = field( base, "initOut" ),
+                       dw = new double[w0.length],
+                       dInit = new double[n];
+
+        g.forward( x, out );
+        g.backward( c, grad, 1.0 );
+        for( int b = 0; b < B; b++ )
+        {
+            final GRU s = SerializationUtils.clone( base );
+            final double[][] o = s.forward( x[b] );
+            for( int t = 0; t < x[b].length; t++ )
+                for( int i = 0; i < n; i++ )
+                    assertEquals( o[t + 1][i], out[b][t][i], 1e-12 );
+            final double[][] d = s.backward( c[b], 1.0 );
+            for( int t = 0; t < x[b].length; t++ )
+                for( int i = 0; i < n; i++ )
+                    assertEquals( d[t][i], grad[b][t][i], 1e-12 );
+            final double[] w = field( s, "weights" ),
+                           init = field( s, "initOut" );
+            for( int i = 0; i < w.length; i++ )
+                dw[i] += w[i] - w0[i];
+            for( int i = 0; i < n; i++ )
+                dInit[i] += init[i] - init0[i];
+        }
+        final double[] w = field( g, "weights" ),
+                       init = field( g, "initOut" );
+        for( int i = 0; i < w.length; i++ )
+            assertEquals( w0[i] + dw[i], w[i], 1e-12 );
+        for( int i = 0; i < n; i++ )
+            assertEquals( init0[i] + dInit[i], init[i], 1e-12 );
+    }
+}
@@ -0,0 +1,98 @@
+package com.prgmtrouble.ml.prgmML.recurrent;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.prgmtrouble.ml.prgmML.generic.ListOfTypes;
+import com.prgmtrouble.ml.prgmML.generic.Parameter;
+import com.prgmtrouble.ml.prgmML.math.FunctionTypes;
+
+/**
+ * Unit tests for {@link LSTMCell}.
+ */
+public class LSTMCellTest
+{
+    /**
+     * @return A cell with a hyperbolic tangent activation and state, and
+     *         logistic gates.
+     */
+    private static LSTMCell cell()
+    {
+        final ListOfTypes d = new ListOfTypes( new Class<?>[] {double[].class} );
+        return new LSTMCell( FunctionTypes.TanH, FunctionTypes.Sigmoid_DEF, FunctionTypes.Sigmoid_DEF,
+                             FunctionTypes.Sigmoid_DEF, FunctionTypes.TanH,
+                             new Parameter<ListOfTypes>( d ), new Parameter<ListOfTypes>( d ),
+                             new Parameter<ListOfTypes>( d ), new Parameter<ListOfTypes>( d ),
+                             new Parameter<ListOfTypes>( d ) );
+    }
+
+    /**
+     * @param r Random number generator.
+     * @param t Number of time steps.
+     * @param n Size of each vector.
+     * @return A random sequence.
+     */
+    private static double[][] sequence( Random r, int t, int n )
+    {
+        final double[][] x = new double[t][n];
+        for( double[] v : x )
+            for( int i = 0; i < n; i++ )
+                v[i] = r.nextGaussian();
+        return x;
+    }
+
+    /**
+     * Advancing a stream one step at a time should give the outputs of the
+     * feed-forward operation over the whole sequence, both for the stream
+     * held by the cell and for a separate stream state.
+     */
+    @Test
+    public void stepMatchesForward()
+    {
+        final Random r = new Random( 1 );
+        final int T = 6, n = 5;
+        final LSTMCell cell = cell();
+        final double[][] x = sequence( r, T, n ),
+                         out = cell.forward( x );
+        final LSTMCell.State s = cell.newState();
+        final double[] h = new double[n],
+                       g = new double[n];
+        for( int t = 0; t < T; t++ )
+        {
+            cell.step( x[t], h );
+            cell.step( x[t], s, g );
+            assertArrayEquals( out[t], h, 0.0 );
+            assertArrayEquals( out[t], g, 0.0 );
+        }
+    }
+
+    /**
+     * Restoring a snapshot should resume the stream from the point the
+     * snapshot was taken.
+     */
+    @Test
+    public void restoreResumesStream()
+    {
+        final Random r = new Random( 2 );
+        final int T = 6, n = 5;
+        final LSTMCell cell = cell();
+        final double[][] x = sequence( r, T, n ),
+                         out = cell.forward( x );
+        final double[] h = new double[n];
+        for( int t = 0; t < T / 2; t++ )
+            cell.step( x[t], h );
+        final double[] snapshot = cell.snapshot();
+        for( int t = T / 2; t < T; t++ )
+            cell.step( x[t], h );
+        cell.reset();
+        cell.restore( snapshot );
+        for( int t = T / 2; t < T; t++ )
+        {
+            cell.step( x[t], h );
+            assertArrayEquals( out[t], h, 0.0 );
+        }
+    }
+}